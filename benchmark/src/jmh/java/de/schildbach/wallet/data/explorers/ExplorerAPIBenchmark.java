@@ -0,0 +1,121 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data.explorers;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.spongycastle.util.encoders.Hex;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import okio.Buffer;
+
+/**
+ * The streaming UTXO parsers of the explorers, next to the tree parsing they replaced. Run with the gc profiler to
+ * compare the allocations per response. The responses repeat the outputs of the recorded fixtures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExplorerAPIBenchmark {
+    @Param({ "2", "200" })
+    private int numOutputs;
+
+    private byte[] cryptoidResponse;
+    private byte[] insightResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        final JSONArray cryptoidFixture = new JSONObject(fixture("cryptoid-unspent.json"))
+                .getJSONArray("unspent_outputs");
+        final JSONArray cryptoidOutputs = new JSONArray();
+        for (int i = 0; i < numOutputs; i++) {
+            final JSONObject output = cryptoidFixture.getJSONObject(i % cryptoidFixture.length());
+            cryptoidOutputs.put(new JSONObject(output.toString()).put("tx_ouput_n", i));
+        }
+        cryptoidResponse = new JSONObject().put("unspent_outputs", cryptoidOutputs).toString()
+                .getBytes(Charsets.UTF_8);
+
+        final JSONArray insightFixture = new JSONArray(fixture("insight-utxo.json"));
+        final JSONArray insightOutputs = new JSONArray();
+        for (int i = 0; i < numOutputs; i++) {
+            final JSONObject output = insightFixture.getJSONObject(i % insightFixture.length());
+            insightOutputs.put(new JSONObject(output.toString()).put("vout", i));
+        }
+        insightResponse = insightOutputs.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private String fixture(final String name) throws IOException {
+        return new String(ByteStreams.toByteArray(getClass().getResourceAsStream(name)), Charsets.UTF_8);
+    }
+
+    @Benchmark
+    public Set<UTXO> cryptoidStreaming() throws IOException {
+        return CryptoidAPI.getUTXOs(new Buffer().write(cryptoidResponse));
+    }
+
+    @Benchmark
+    public Set<UTXO> cryptoidTree() throws IOException {
+        final Set<UTXO> utxos = new HashSet<UTXO>();
+        final JSONArray outputs = new JSONObject(new Buffer().write(cryptoidResponse).readUtf8())
+                .optJSONArray("unspent_outputs");
+        for (int i = 0; i < outputs.length(); i++) {
+            final JSONObject output = outputs.getJSONObject(i);
+            utxos.add(new UTXO(Sha256Hash.wrap(output.getString("tx_hash")), output.getInt("tx_ouput_n"),
+                    Coin.valueOf(Long.parseLong(output.getString("value"))), -1, false,
+                    new Script(Hex.decode(output.getString("script")))));
+        }
+        return utxos;
+    }
+
+    @Benchmark
+    public Set<UTXO> insightStreaming() throws IOException {
+        return SxcInsightAPI.getUTXOs(new Buffer().write(insightResponse));
+    }
+
+    @Benchmark
+    public Set<UTXO> insightTree() throws IOException {
+        final Set<UTXO> utxos = new HashSet<UTXO>();
+        final JSONArray outputs = new JSONArray(new Buffer().write(insightResponse).readUtf8());
+        for (int i = 0; i < outputs.length(); i++) {
+            final JSONObject output = outputs.getJSONObject(i);
+            utxos.add(new UTXO(Sha256Hash.wrap(output.getString("txid")), output.getInt("vout"),
+                    Coin.valueOf(output.getLong("satoshis")), output.optInt("height", -1), false,
+                    new Script(Hex.decode(output.getString("scriptPubKey")))));
+        }
+        return utxos;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encryption of the key backups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    @Param({ "1024", "16384" })
+    private int size;
+
+    private byte[] plainBytes;
+    private String cipherText;
+
+    @Setup
+    public void setup() throws IOException {
+        plainBytes = QrBenchmark.transactionLikeBytes(size);
+        cipherText = Crypto.encrypt(plainBytes, PASSWORD);
+    }
+
+    @Benchmark
+    public String encrypt() throws IOException {
+        return Crypto.encrypt(plainBytes, PASSWORD);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws IOException {
+        return Crypto.decryptBytes(cipherText, PASSWORD);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Base43 and the compressed binary QR payload, as used for transactions passed around by QR code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QrBenchmark {
+    @Param({ "250", "1000" })
+    private int size;
+
+    private byte[] payload;
+    private String base43;
+    private String qrContent;
+
+    @Setup
+    public void setup() {
+        payload = transactionLikeBytes(size);
+        base43 = Base43.encode(payload);
+        qrContent = Qr.encodeCompressBinary(payload);
+    }
+
+    @Benchmark
+    public String base43Encode() {
+        return Base43.encode(payload);
+    }
+
+    @Benchmark
+    public byte[] base43Decode() {
+        return Base43.decode(base43);
+    }
+
+    @Benchmark
+    public String encodeCompressBinary() {
+        return Qr.encodeCompressBinary(payload);
+    }
+
+    @Benchmark
+    public byte[] decodeDecompressBinary() throws IOException {
+        return Qr.decodeDecompressBinary(qrContent);
+    }
+
+    /**
+     * Hashes and signatures don't compress, the repeated script templates of the outputs do.
+     */
+    static byte[] transactionLikeBytes(final int size) {
+        final Random random = new Random(0);
+        final byte[] script = { 0x76, (byte) 0xa9, 0x14 };
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size;) {
+            final int randomLength = Math.min(32, size - i);
+            final byte[] randomBytes = new byte[randomLength];
+            random.nextBytes(randomBytes);
+            System.arraycopy(randomBytes, 0, bytes, i, randomLength);
+            i += randomLength;
+            for (int j = 0; j < script.length && i < size; j++)
+                bytes[i++] = script[j];
+        }
+        return bytes;
+    }
+}
@@ -68,8 +68,14 @@ public final class Constants {
         /** Filename of the wallet. */
         public static final String WALLET_FILENAME_PROTOBUF = "wallet-protobuf" + FILENAME_NETWORK_SUFFIX;
 
-        /** How often the wallet is autosaved. */
-        public static final long WALLET_AUTOSAVE_DELAY_MS = 3 * DateUtils.SECOND_IN_MILLIS;
+        /** How often the wallet is autosaved. Changes in between are kept in the wallet journal. */
+        public static final long WALLET_AUTOSAVE_DELAY_MS = DateUtils.MINUTE_IN_MILLIS;
+
+        /** Filename of the journal of wallet changes since the last autosave. */
+        public static final String WALLET_JOURNAL_FILENAME = "wallet-journal" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the journal being superseded by an autosave in progress. */
+        public static final String WALLET_JOURNAL_ROTATED_FILENAME = WALLET_JOURNAL_FILENAME + ".old";
 
         /** Filename of the automatic key backup (old format, can only be read). */
         public static final String WALLET_KEY_BACKUP_BASE58 = "key-backup-base58" + FILENAME_NETWORK_SUFFIX;
@@ -97,9 +103,21 @@ public final class Constants {
         /** Filename of the block store for storing the chain. */
         public static final String BLOCKCHAIN_FILENAME = "blockchain" + FILENAME_NETWORK_SUFFIX;
 
+        /** Filename of the precomputed transaction list cache, relative to the cache dir. */
+        public static final String TRANSACTION_CACHE_FILENAME = "transaction-cache" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the persisted exchange rates table, relative to the cache dir. */
+        public static final String EXCHANGE_RATES_SNAPSHOT_FILENAME = "exchange-rates" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the database of known peers, relative to the block store dir. */
+        public static final String PEER_DATABASE_FILENAME = "peers" + FILENAME_NETWORK_SUFFIX;
+
         /** Filename of the block checkpoints file. */
         public static final String CHECKPOINTS_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX + ".txt";
 
+        /** Filename of the block checkpoints file in binary format, generated from the above at build time. */
+        public static final String CHECKPOINTS_BINARY_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX + ".bin";
+
         /** Filename of the fees files. */
         public static final String FEES_FILENAME = "fees" + FILENAME_NETWORK_SUFFIX + ".txt";
 
@@ -188,6 +206,9 @@ public final class Constants {
     public static final int PEER_TIMEOUT_MS = 60 * (int) DateUtils.SECOND_IN_MILLIS;
     public static final int PEER_MIN_BROADCAST_CONNECTIONS = 2;
 
+    /** Target false-positive rate of the Bloom filter, trading privacy for bandwidth. */
+    public static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.00001;
+
     public static final long LAST_USAGE_THRESHOLD_JUST_MS = DateUtils.HOUR_IN_MILLIS;
     public static final long LAST_USAGE_THRESHOLD_RECENTLY_MS = 2 * DateUtils.DAY_IN_MILLIS;
     public static final long LAST_USAGE_THRESHOLD_INACTIVE_MS = 4 * DateUtils.WEEK_IN_MILLIS;
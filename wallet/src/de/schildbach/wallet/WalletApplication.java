@@ -22,10 +22,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.time.Clock;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.VersionMessage;
@@ -36,6 +40,7 @@ import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletFiles;
 import org.bitcoinj.wallet.WalletProtobufSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,10 +49,18 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 
+import de.schildbach.wallet.data.AddressLabelCache;
+import de.schildbach.wallet.data.BlockTransactionIndex;
+import de.schildbach.wallet.data.StagedWalletLoader;
+import de.schildbach.wallet.data.TransactionHistory;
+import de.schildbach.wallet.data.WalletBackupWorker;
+import de.schildbach.wallet.data.WalletBalances;
+import de.schildbach.wallet.data.WalletJournal;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.CrashReporter;
+import de.schildbach.wallet.util.WalletEventHub;
 import de.schildbach.wallet_test.BuildConfig;
 import de.schildbach.wallet_test.R;
 
@@ -66,7 +79,11 @@ import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatDelegate;
@@ -93,6 +110,17 @@ public class WalletApplication extends Application {
 
     private File walletFile;
     private Wallet wallet;
+    private WalletJournal walletJournal;
+    private WalletBackupWorker walletBackupWorker;
+    @Nullable
+    private StagedWalletLoader walletHistoryLoader;
+    private volatile long lastAutosaveMs = -1;
+    private volatile long maxAutosaveMs = -1;
+    private TransactionHistory transactionHistory;
+    private BlockTransactionIndex blockTransactionIndex;
+    private WalletBalances walletBalances;
+    private final WalletEventHub walletEventHub = new WalletEventHub();
+    private AddressLabelCache addressLabelCache;
     private PackageInfo packageInfo;
 
     public static final String ACTION_WALLET_REFERENCE_CHANGED = WalletApplication.class.getPackage().getName()
@@ -143,6 +171,7 @@ public class WalletApplication extends Application {
 
         config = new Configuration(PreferenceManager.getDefaultSharedPreferences(this), getResources());
         activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        addressLabelCache = new AddressLabelCache(this);
 
         blockchainServiceIntent = new Intent(this, BlockchainServiceImpl.class);
         blockchainServiceCancelCoinsReceivedIntent = new Intent(BlockchainService.ACTION_CANCEL_COINS_RECEIVED, null,
@@ -151,8 +180,13 @@ public class WalletApplication extends Application {
                 BlockchainServiceImpl.class);
 
         walletFile = getFileStreamPath(Constants.Files.WALLET_FILENAME_PROTOBUF);
+        walletBackupWorker = new WalletBackupWorker(getFileStreamPath(Constants.Files.WALLET_KEY_BACKUP_PROTOBUF));
+
+        // before any background writer creates temp files
+        cleanupFiles();
 
         loadWalletFromProtobuf();
+        replayWalletJournal();
 
         if (config.versionCodeCrossed(packageInfo.versionCode, VERSION_CODE_SHOW_BACKUP_REMINDER)
                 && !wallet.getImportedKeys().isEmpty()) {
@@ -165,13 +199,55 @@ public class WalletApplication extends Application {
 
         afterLoadWallet();
 
-        cleanupFiles();
-
         initNotificationManager();
     }
 
     private void afterLoadWallet() {
-        wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS, null);
+        walletJournal = new WalletJournal(wallet, walletFile,
+                getFileStreamPath(Constants.Files.WALLET_JOURNAL_FILENAME),
+                getFileStreamPath(Constants.Files.WALLET_JOURNAL_ROTATED_FILENAME));
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletJournal);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletJournal);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletJournal);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletJournal);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, walletJournal);
+
+        // transactions whose value depends on the history are left out until it's merged
+        final Set<Sha256Hash> partialTransactions = walletHistoryLoader != null
+                ? walletHistoryLoader.getPartialTransactions() : Collections.<Sha256Hash> emptySet();
+
+        transactionHistory = new TransactionHistory(wallet, partialTransactions);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionHistory);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionHistory);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, transactionHistory);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, transactionHistory);
+
+        blockTransactionIndex = new BlockTransactionIndex(wallet, partialTransactions);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, blockTransactionIndex);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, blockTransactionIndex);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, blockTransactionIndex);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, blockTransactionIndex);
+
+        walletBalances = new WalletBalances(wallet);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletBalances);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletBalances);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletBalances);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletBalances);
+
+        // registered last, so that subscribers find the indexes above already marked stale
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletEventHub);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletEventHub);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletEventHub);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletEventHub);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, walletEventHub);
+
+        if (walletHistoryLoader != null) {
+            loadWalletHistory(walletHistoryLoader);
+            walletHistoryLoader = null;
+        } else {
+            wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS,
+                    autosaveListener);
+        }
 
         // clean up spam
         wallet.cleanup();
@@ -181,6 +257,88 @@ public class WalletApplication extends Application {
             backupWallet();
     }
 
+    private void loadWalletHistory(final StagedWalletLoader loader) {
+        final Wallet wallet = this.wallet;
+        final WalletJournal walletJournal = this.walletJournal;
+
+        // until the history is merged, the wallet file is its only complete copy
+        walletJournal.suspendSnapshots();
+
+        final Handler handler = new Handler();
+        final HandlerThread backgroundThread = new HandlerThread("walletHistory", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        new Handler(backgroundThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded = false;
+                try {
+                    loader.loadHistory();
+                    loaded = true;
+                } catch (final UnreadableWalletException x) {
+                    // saving now would replace the only complete copy of the wallet by the essential part, so the
+                    // wallet file is left alone and this session's changes are kept in the journal only; with the
+                    // journal present, the next start reads the complete wallet file and replays them
+                    log.error("problem loading wallet history, not saving wallet until restarted", x);
+                } finally {
+                    backgroundThread.getLooper().quit();
+                }
+                final boolean historyLoaded = loaded;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (wallet != WalletApplication.this.wallet)
+                            return;
+
+                        if (historyLoaded) {
+                            walletJournal.resumeSnapshots();
+                            wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS,
+                                    TimeUnit.MILLISECONDS, autosaveListener);
+                        }
+
+                        // make views reload, as merging doesn't fire any wallet events
+                        transactionHistory.invalidate();
+                        blockTransactionIndex.invalidate();
+                        walletBalances.invalidate();
+                        final Intent broadcast = new Intent(ACTION_WALLET_REFERENCE_CHANGED);
+                        broadcast.setPackage(getPackageName());
+                        LocalBroadcastManager.getInstance(WalletApplication.this).sendBroadcast(broadcast);
+                    }
+                });
+            }
+        });
+    }
+
+    private final WalletFiles.Listener autosaveListener = new WalletFiles.Listener() {
+        private long startedAt;
+        private int journalGeneration;
+
+        @Override
+        public void onBeforeAutoSave(final File tempFile) {
+            startedAt = SystemClock.elapsedRealtime();
+            journalGeneration = walletJournal.rotate();
+        }
+
+        @Override
+        public void onAfterAutoSave(final File newlySavedFile) {
+            walletJournal.discardRotated(journalGeneration);
+
+            final long durationMs = SystemClock.elapsedRealtime() - startedAt;
+            lastAutosaveMs = durationMs;
+            maxAutosaveMs = Math.max(maxAutosaveMs, durationMs);
+        }
+    };
+
+    /** Duration of the last wallet autosave in milliseconds, or -1 if there was none yet. */
+    public long getLastAutosaveMs() {
+        return lastAutosaveMs;
+    }
+
+    /** Duration of the slowest wallet autosave in milliseconds, or -1 if there was none yet. */
+    public long getMaxAutosaveMs() {
+        return maxAutosaveMs;
+    }
+
     private void initLogging() {
         // create log dir
         final File logDir = new File(getFilesDir(), "log");
@@ -262,6 +420,30 @@ public class WalletApplication extends Application {
         return wallet;
     }
 
+    public WalletJournal getWalletJournal() {
+        return walletJournal;
+    }
+
+    public TransactionHistory getTransactionHistory() {
+        return transactionHistory;
+    }
+
+    public BlockTransactionIndex getBlockTransactionIndex() {
+        return blockTransactionIndex;
+    }
+
+    public WalletBalances getWalletBalances() {
+        return walletBalances;
+    }
+
+    public WalletEventHub getWalletEventHub() {
+        return walletEventHub;
+    }
+
+    public AddressLabelCache getAddressLabelCache() {
+        return addressLabelCache;
+    }
+
     private void loadWalletFromProtobuf() {
         if (walletFile.exists()) {
             FileInputStream walletStream = null;
@@ -269,13 +451,23 @@ public class WalletApplication extends Application {
             try {
                 final Stopwatch watch = Stopwatch.createStarted();
                 walletStream = new FileInputStream(walletFile);
-                wallet = new WalletProtobufSerializer().readWallet(Constants.NETWORK_PARAMETERS, null, WalletProtobufSerializer.parseToProto(walletStream));
+                final Protos.Wallet walletProto = WalletProtobufSerializer.parseToProto(walletStream);
+                if (walletJournalExists()) {
+                    // the journal must be replayed onto the complete wallet
+                    wallet = new WalletProtobufSerializer().readWallet(Constants.NETWORK_PARAMETERS, null, walletProto);
+                } else {
+                    final StagedWalletLoader loader = new StagedWalletLoader(walletProto);
+                    wallet = loader.readEssentialWallet(Constants.NETWORK_PARAMETERS);
+                    if (loader.getNumHistorical() > 0)
+                        walletHistoryLoader = loader;
+                }
                 watch.stop();
 
                 if (!wallet.getParams().equals(Constants.NETWORK_PARAMETERS))
                     throw new UnreadableWalletException("bad wallet network parameters: " + wallet.getParams().getId());
 
-                log.info("wallet loaded from: '{}', took {}", walletFile, watch);
+                log.info("wallet loaded from: '{}', {} historical transactions deferred, took {}", walletFile,
+                        walletHistoryLoader != null ? walletHistoryLoader.getNumHistorical() : 0, watch);
             } catch (final FileNotFoundException x) {
                 log.error("problem loading wallet", x);
 
@@ -307,6 +499,7 @@ public class WalletApplication extends Application {
             if (!wallet.isConsistent()) {
                 Toast.makeText(this, "inconsistent wallet: " + walletFile, Toast.LENGTH_LONG).show();
 
+                walletHistoryLoader = null;
                 wallet = restoreWalletFromBackup();
             }
 
@@ -324,6 +517,24 @@ public class WalletApplication extends Application {
         }
     }
 
+    private void replayWalletJournal() {
+        final File journalFile = getFileStreamPath(Constants.Files.WALLET_JOURNAL_FILENAME);
+        final File rotatedFile = getFileStreamPath(Constants.Files.WALLET_JOURNAL_ROTATED_FILENAME);
+        if (WalletJournal.replay(wallet, rotatedFile, journalFile) > 0)
+            saveWallet();
+        discardWalletJournal();
+    }
+
+    private boolean walletJournalExists() {
+        return getFileStreamPath(Constants.Files.WALLET_JOURNAL_ROTATED_FILENAME).exists()
+                || getFileStreamPath(Constants.Files.WALLET_JOURNAL_FILENAME).exists();
+    }
+
+    private void discardWalletJournal() {
+        getFileStreamPath(Constants.Files.WALLET_JOURNAL_ROTATED_FILENAME).delete();
+        getFileStreamPath(Constants.Files.WALLET_JOURNAL_FILENAME).delete();
+    }
+
     private Wallet restoreWalletFromBackup() {
         InputStream is = null;
 
@@ -336,6 +547,8 @@ public class WalletApplication extends Application {
                 throw new Error("inconsistent backup");
 
             resetBlockchain();
+            discardWalletJournal();
+            walletHistoryLoader = null;
 
             Toast.makeText(this, R.string.toast_wallet_reset, Toast.LENGTH_LONG).show();
 
@@ -356,6 +569,12 @@ public class WalletApplication extends Application {
     }
 
     public void saveWallet() {
+        if (walletJournal != null) {
+            // also discards the journal; while the history is still loading, this only marks a snapshot as due
+            walletJournal.snapshot();
+            return;
+        }
+
         try {
             protobufSerializeWallet(wallet);
         } catch (final IOException x) {
@@ -372,32 +591,7 @@ public class WalletApplication extends Application {
     }
 
     public void backupWallet() {
-        final Stopwatch watch = Stopwatch.createStarted();
-        final Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
-
-        // strip redundant
-        builder.clearTransaction();
-        builder.clearLastSeenBlockHash();
-        builder.setLastSeenBlockHeight(-1);
-        builder.clearLastSeenBlockTimeSecs();
-        final Protos.Wallet walletProto = builder.build();
-
-        OutputStream os = null;
-
-        try {
-            os = openFileOutput(Constants.Files.WALLET_KEY_BACKUP_PROTOBUF, Context.MODE_PRIVATE);
-            walletProto.writeTo(os);
-            watch.stop();
-            log.info("wallet backed up to: '{}', took {}", Constants.Files.WALLET_KEY_BACKUP_PROTOBUF, watch);
-        } catch (final IOException x) {
-            log.error("problem writing wallet backup", x);
-        } finally {
-            try {
-                os.close();
-            } catch (final IOException x) {
-                // swallow
-            }
-        }
+        walletBackupWorker.requestBackup(wallet);
     }
 
     private void cleanupFiles() {
@@ -457,6 +651,31 @@ public class WalletApplication extends Application {
         resetBlockchain();
         wallet.shutdownAutosaveAndWait();
 
+        wallet.removeTransactionConfidenceEventListener(transactionHistory);
+        wallet.removeReorganizeEventListener(transactionHistory);
+        wallet.removeCoinsSentEventListener(transactionHistory);
+        wallet.removeCoinsReceivedEventListener(transactionHistory);
+        wallet.removeTransactionConfidenceEventListener(blockTransactionIndex);
+        wallet.removeReorganizeEventListener(blockTransactionIndex);
+        wallet.removeCoinsSentEventListener(blockTransactionIndex);
+        wallet.removeCoinsReceivedEventListener(blockTransactionIndex);
+        wallet.removeTransactionConfidenceEventListener(walletBalances);
+        wallet.removeReorganizeEventListener(walletBalances);
+        wallet.removeCoinsSentEventListener(walletBalances);
+        wallet.removeCoinsReceivedEventListener(walletBalances);
+        wallet.removeKeyChainEventListener(walletEventHub);
+        wallet.removeTransactionConfidenceEventListener(walletEventHub);
+        wallet.removeReorganizeEventListener(walletEventHub);
+        wallet.removeCoinsSentEventListener(walletEventHub);
+        wallet.removeCoinsReceivedEventListener(walletEventHub);
+        wallet.removeKeyChainEventListener(walletJournal);
+        wallet.removeTransactionConfidenceEventListener(walletJournal);
+        wallet.removeReorganizeEventListener(walletJournal);
+        wallet.removeCoinsSentEventListener(walletJournal);
+        wallet.removeCoinsReceivedEventListener(walletJournal);
+        walletJournal.close();
+        discardWalletJournal();
+
         wallet = newWallet;
         config.maybeIncrementBestChainHeightEver(newWallet.getLastBlockSeenHeight());
         afterLoadWallet();
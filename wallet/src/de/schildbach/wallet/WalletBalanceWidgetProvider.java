@@ -23,7 +23,6 @@ import android.support.v4.content.ContextCompat;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,7 +60,7 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(final Context context, final AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
         final WalletApplication application = (WalletApplication) context.getApplicationContext();
-        final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+        final Coin balance = application.getWalletBalances().get(BalanceType.ESTIMATED);
 
         updateWidgets(context, appWidgetManager, appWidgetIds, balance);
     }
@@ -74,12 +73,12 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
                     newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH));
 
         final WalletApplication application = (WalletApplication) context.getApplicationContext();
-        final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+        final Coin balance = application.getWalletBalances().get(BalanceType.ESTIMATED);
 
         updateWidget(context, appWidgetManager, appWidgetId, newOptions, balance);
     }
 
-    public static void updateWidgets(final Context context, final Wallet wallet) {
+    public static void updateWidgets(final Context context) {
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
         final ComponentName providerName = new ComponentName(context, WalletBalanceWidgetProvider.class);
 
@@ -87,7 +86,8 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
             final int[] appWidgetIds = appWidgetManager.getAppWidgetIds(providerName);
 
             if (appWidgetIds.length > 0) {
-                final Coin balance = wallet.getBalance(BalanceType.ESTIMATED);
+                final WalletApplication application = (WalletApplication) context.getApplicationContext();
+                final Coin balance = application.getWalletBalances().get(BalanceType.ESTIMATED);
                 WalletBalanceWidgetProvider.updateWidgets(context, appWidgetManager, appWidgetIds, balance);
             }
         } catch (final RuntimeException x) // system server dead?
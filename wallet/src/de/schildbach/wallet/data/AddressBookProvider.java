@@ -17,7 +17,12 @@
 
 package de.schildbach.wallet.data;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -62,6 +67,30 @@ public class AddressBookProvider extends ContentProvider {
         return label;
     }
 
+    /**
+     * Resolves the labels of many addresses with one query. Addresses without a label are missing from the result.
+     */
+    public static Map<String, String> resolveLabels(final Context context, final Collection<String> addresses) {
+        final Map<String, String> labels = new HashMap<String, String>(addresses.size());
+        if (addresses.isEmpty())
+            return labels;
+
+        final Uri uri = contentUri(context.getPackageName());
+        final Cursor cursor = context.getContentResolver().query(uri, new String[] { KEY_ADDRESS, KEY_LABEL },
+                SELECTION_IN, new String[] { Joiner.on(',').join(addresses) }, null);
+
+        if (cursor != null) {
+            final int addressIndex = cursor.getColumnIndexOrThrow(KEY_ADDRESS);
+            final int labelIndex = cursor.getColumnIndexOrThrow(KEY_LABEL);
+            while (cursor.moveToNext())
+                labels.put(cursor.getString(addressIndex), cursor.getString(labelIndex));
+
+            cursor.close();
+        }
+
+        return labels;
+    }
+
     private Helper helper;
 
     @Override
@@ -171,9 +200,9 @@ public class AddressBookProvider extends ContentProvider {
     }
 
     private static void appendAddresses(final SQLiteQueryBuilder qb, final String[] addresses) {
-        for (final String address : addresses) {
-            qb.appendWhereEscapeString(address.trim());
-            if (!address.equals(addresses[addresses.length - 1]))
+        for (int i = 0; i < addresses.length; i++) {
+            qb.appendWhereEscapeString(addresses[i].trim());
+            if (i < addresses.length - 1)
                 qb.appendWhere(",");
         }
     }
@@ -0,0 +1,199 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * In-memory cache of address book labels. Misses are collected and resolved in the background, in batches of one
+ * {@code IN (...)} query each. Whenever labels have been resolved, and when the address book changes and all known
+ * addresses have been re-resolved, listeners are told about it on the main thread, so that rows can be redrawn
+ * without hitting the database.
+ */
+public final class AddressLabelCache {
+    private final Context context;
+    private final Map<String, String> labels = new ConcurrentHashMap<String, String>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Handler backgroundHandler;
+    private final Handler callbackHandler = new Handler(Looper.getMainLooper());
+
+    // guarded by itself, addresses waiting to be resolved with the next batch
+    private final Set<String> misses = new LinkedHashSet<String>();
+
+    // ConcurrentHashMap doesn't allow null values
+    private static final String NO_LABEL = "";
+    private static final int BATCH_SIZE = 200;
+
+    private static final Logger log = LoggerFactory.getLogger(AddressLabelCache.class);
+
+    public interface Listener {
+        /** will be called back on UI thread, with the addresses whose labels have changed */
+        void onLabelsChanged(Set<String> addresses);
+    }
+
+    public AddressLabelCache(final Context context) {
+        this.context = context.getApplicationContext();
+
+        final HandlerThread backgroundThread = new HandlerThread("addressLabelCache",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        this.backgroundHandler = new Handler(backgroundThread.getLooper());
+
+        this.context.getContentResolver().registerContentObserver(
+                AddressBookProvider.contentUri(this.context.getPackageName()), true,
+                new ContentObserver(backgroundHandler) {
+                    @Override
+                    public void onChange(final boolean selfChange) {
+                        refresh();
+                    }
+                });
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the label of the given address, or {@code null} if it has none or isn't resolved yet. Never queries
+     * the address book on the calling thread; misses are resolved in the background and listeners are told when
+     * they are in.
+     */
+    @Nullable
+    public String get(final String address) {
+        final String label = labels.get(address);
+        if (label == null) {
+            request(Collections.singleton(address));
+            return null;
+        }
+        return label != NO_LABEL ? label : null;
+    }
+
+    /**
+     * Resolves all addresses that aren't known yet, in the background.
+     */
+    public void prefetch(final Collection<String> addresses) {
+        final List<String> unknown = new ArrayList<String>();
+        for (final String address : addresses)
+            if (!labels.containsKey(address))
+                unknown.add(address);
+        if (!unknown.isEmpty())
+            request(unknown);
+    }
+
+    private void request(final Collection<String> addresses) {
+        final boolean post;
+        synchronized (misses) {
+            final boolean wasEmpty = misses.isEmpty();
+            post = misses.addAll(addresses) && wasEmpty;
+        }
+        if (post)
+            backgroundHandler.post(resolveMissesRunnable);
+    }
+
+    private final Runnable resolveMissesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Set<String> addresses = new HashSet<String>();
+            synchronized (misses) {
+                for (final String address : misses)
+                    if (!labels.containsKey(address))
+                        addresses.add(address);
+                misses.clear();
+            }
+            if (addresses.isEmpty())
+                return;
+
+            final Set<String> changed = resolve(addresses);
+            log.debug("resolved {} labels", addresses.size());
+            notifyListeners(changed);
+        }
+    };
+
+    private Set<String> resolve(final Collection<String> addresses) {
+        final Set<String> changed = new HashSet<String>();
+        final List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        for (final String address : addresses) {
+            batch.add(address);
+            if (batch.size() == BATCH_SIZE) {
+                resolveBatch(batch, changed);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            resolveBatch(batch, changed);
+        return changed;
+    }
+
+    private void resolveBatch(final List<String> batch, final Set<String> changed) {
+        final Map<String, String> resolved = AddressBookProvider.resolveLabels(context, batch);
+        for (final String address : batch) {
+            final String resolvedLabel = resolved.get(address);
+            final String label = resolvedLabel != null ? resolvedLabel : NO_LABEL;
+            final String previousLabel = labels.put(address, label);
+            // addresses that aren't resolved yet are drawn the same as those without label
+            if (!label.equals(previousLabel != null ? previousLabel : NO_LABEL))
+                changed.add(address);
+        }
+    }
+
+    private void refresh() {
+        final Set<String> addresses = new HashSet<String>(labels.keySet());
+        final Set<String> changed = resolve(addresses);
+        log.info("address book changed, re-resolved {} labels, {} changed", addresses.size(), changed.size());
+        notifyListeners(changed);
+    }
+
+    private void notifyListeners(final Set<String> changed) {
+        if (changed.isEmpty())
+            return;
+
+        final Set<String> addresses = Collections.unmodifiableSet(changed);
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (final Listener listener : listeners)
+                    listener.onLabelsChanged(addresses);
+            }
+        });
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Incrementally maintained index of the wallet's transactions by the blocks they appear in. Like
+ * {@link TransactionHistory}, wallet events only record which transactions changed and the index catches up when a
+ * snapshot is requested.
+ */
+public final class BlockTransactionIndex implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        WalletReorganizeEventListener, TransactionConfidenceEventListener {
+    private final Wallet wallet;
+    private final Set<Sha256Hash> hidden;
+
+    // written from wallet event threads without taking the monitor, to avoid lock inversion with the wallet lock
+    private final Set<Sha256Hash> changed = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+    private final AtomicBoolean invalid = new AtomicBoolean(true);
+
+    private final Map<Sha256Hash, List<Transaction>> byBlock = new HashMap<Sha256Hash, List<Transaction>>();
+    // every indexed transaction, including those not in any block yet, so that it can be checked against the wallet
+    private final Map<Sha256Hash, Set<Sha256Hash>> blocksByTransaction = new HashMap<Sha256Hash, Set<Sha256Hash>>();
+
+    @Nullable
+    private Map<Sha256Hash, List<Transaction>> snapshot;
+
+    private static final Logger log = LoggerFactory.getLogger(BlockTransactionIndex.class);
+
+    /**
+     * @param hidden
+     *            transactions to leave out for as long as they are contained, see {@link TransactionHistory}
+     */
+    public BlockTransactionIndex(final Wallet wallet, final Set<Sha256Hash> hidden) {
+        this.wallet = wallet;
+        this.hidden = hidden;
+    }
+
+    /**
+     * Returns an immutable map of block hashes to the wallet transactions appearing in them. Snapshots are shared
+     * between callers until a transaction enters or leaves a block.
+     */
+    public synchronized Map<Sha256Hash, List<Transaction>> snapshot() {
+        if (invalid.getAndSet(false)) {
+            changed.clear();
+            rebuild();
+        } else {
+            final Iterator<Sha256Hash> i = changed.iterator();
+            while (i.hasNext()) {
+                final Sha256Hash hash = i.next();
+                i.remove();
+                apply(hash);
+            }
+
+            if (!TransactionHistory.isConsistent(wallet, blocksByTransaction.size(), hidden))
+                rebuild();
+        }
+
+        if (snapshot == null) {
+            final Map<Sha256Hash, List<Transaction>> copy = new HashMap<Sha256Hash, List<Transaction>>(
+                    byBlock.size());
+            for (final Map.Entry<Sha256Hash, List<Transaction>> entry : byBlock.entrySet())
+                copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<Transaction>(entry.getValue())));
+            snapshot = Collections.unmodifiableMap(copy);
+        }
+        return snapshot;
+    }
+
+    public void invalidate() {
+        invalid.set(true);
+    }
+
+    private void rebuild() {
+        final Stopwatch watch = Stopwatch.createStarted();
+
+        byBlock.clear();
+        blocksByTransaction.clear();
+        snapshot = null;
+
+        for (final Transaction tx : wallet.getTransactions(true))
+            if (!hidden.contains(tx.getHash()))
+                add(tx);
+
+        watch.stop();
+        log.info("block transaction index rebuilt with {} blocks, took {}", byBlock.size(), watch);
+    }
+
+    private void apply(final Sha256Hash hash) {
+        final Set<Sha256Hash> oldBlocks = blocksByTransaction.remove(hash);
+        if (oldBlocks != null && !oldBlocks.isEmpty()) {
+            for (final Sha256Hash blockHash : oldBlocks) {
+                final List<Transaction> transactions = byBlock.get(blockHash);
+                for (final Iterator<Transaction> i = transactions.iterator(); i.hasNext();)
+                    if (i.next().getHash().equals(hash))
+                        i.remove();
+                if (transactions.isEmpty())
+                    byBlock.remove(blockHash);
+            }
+            snapshot = null;
+        }
+
+        final Transaction tx = wallet.getTransaction(hash);
+        if (tx != null && !hidden.contains(hash))
+            add(tx);
+    }
+
+    private void add(final Transaction tx) {
+        final Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn == null || appearsIn.isEmpty()) {
+            blocksByTransaction.put(tx.getHash(), Collections.<Sha256Hash> emptySet());
+            return;
+        }
+
+        for (final Sha256Hash blockHash : appearsIn.keySet()) {
+            List<Transaction> transactions = byBlock.get(blockHash);
+            if (transactions == null) {
+                transactions = new ArrayList<Transaction>(1);
+                byBlock.put(blockHash, transactions);
+            }
+            transactions.add(tx);
+        }
+        blocksByTransaction.put(tx.getHash(), new HashSet<Sha256Hash>(appearsIn.keySet()));
+        snapshot = null;
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        changed.add(tx.getHash());
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        changed.add(tx.getHash());
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        // deeper confirmations don't move a transaction between blocks, only its first one or leaving the chain does
+        if (tx.getConfidence().getDepthInBlocks() <= 1)
+            changed.add(tx.getHash());
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        invalidate();
+    }
+}
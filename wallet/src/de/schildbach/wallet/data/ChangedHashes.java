@@ -0,0 +1,124 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Bounded set of transaction hashes, recorded from any thread and drained by a single consumer. Both of its
+ * open-addressing tables are allocated up front and swapped on each drain, so recording a hash doesn't allocate and
+ * recording the same hash again is a no-op. Once more distinct hashes come in than fit, further ones are refused
+ * until the set is cleared, which the consumer should take as a reason to start over from scratch.
+ */
+final class ChangedHashes {
+    private final int maxSize;
+    private final int mask;
+
+    // guarded by this
+    private Sha256Hash[] recording;
+    private int size = 0;
+    private boolean overflowed = false;
+
+    // owned by the consumer
+    private Sha256Hash[] draining;
+    private int drainIndex;
+
+    public ChangedHashes(final int maxSize) {
+        checkArgument(maxSize > 0);
+        this.maxSize = maxSize;
+
+        // the smallest power of two at least twice the size, so probe sequences stay short
+        final int tableSize = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.recording = new Sha256Hash[tableSize];
+        this.draining = new Sha256Hash[tableSize];
+        this.drainIndex = tableSize;
+    }
+
+    /**
+     * Records the hash. Returns false if it didn't fit, in which case the set refuses any hash until cleared.
+     */
+    public synchronized boolean add(final Sha256Hash hash) {
+        if (overflowed)
+            return false;
+
+        int i = hash.hashCode() & mask;
+        for (Sha256Hash slot = recording[i]; slot != null; slot = recording[i]) {
+            if (slot.equals(hash))
+                return true;
+            i = (i + 1) & mask;
+        }
+
+        if (size == maxSize) {
+            overflowed = true;
+            return false;
+        }
+        recording[i] = hash;
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves the hashes recorded so far aside, to be taken by {@link #poll()}. Hashes recorded from now on go into the
+     * other table. Any hashes not polled since the last swap are dropped.
+     */
+    public void swap() {
+        final Sha256Hash[] drained = draining;
+        Arrays.fill(drained, null);
+        synchronized (this) {
+            draining = recording;
+            recording = drained;
+            size = 0;
+        }
+        drainIndex = 0;
+    }
+
+    /**
+     * Takes the next of the hashes moved aside by {@link #swap()}, or returns null if there are no more.
+     */
+    @Nullable
+    public Sha256Hash poll() {
+        while (drainIndex < draining.length) {
+            final Sha256Hash hash = draining[drainIndex];
+            if (hash != null) {
+                draining[drainIndex++] = null;
+                return hash;
+            }
+            drainIndex++;
+        }
+        return null;
+    }
+
+    /**
+     * Drops all hashes and accepts new ones again after an overflow.
+     */
+    public void clear() {
+        swap();
+        Arrays.fill(draining, null);
+        drainIndex = draining.length;
+        synchronized (this) {
+            overflowed = false;
+        }
+    }
+}
@@ -124,7 +124,7 @@ public class DynamicFeeLoader extends AsyncTaskLoader<Map<FeeCategory, Coin>> {
         }
     }
 
-    private static Map<FeeCategory, Coin> parseFees(final InputStream is) throws IOException {
+    static Map<FeeCategory, Coin> parseFees(final InputStream is) throws IOException {
         final Map<FeeCategory, Coin> dynamicFees = new HashMap<FeeCategory, Coin>();
         BufferedReader reader = null;
         String line = null;
@@ -0,0 +1,388 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.utils.MonetaryFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.moshi.JsonReader;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import de.schildbach.wallet.data.ExchangeRatesSnapshot.SourceState;
+import de.schildbach.wallet.util.HedgedFetcher;
+
+/**
+ * The network side of {@link ExchangeRatesProvider}: fetches the SXC/BTC conversion and the BTC/fiat table, each from
+ * a list of hedged sources. The services are addressed relative to base URLs, so they can be pointed at a local
+ * server.
+ */
+final class ExchangeRateSources {
+    private final OkHttpClient httpClient;
+    private final String userAgent;
+    private final HedgedFetcher fetcher;
+    private final Map<String, SourceState> sourceStates;
+    private final HttpUrl coinGeckoTickersUrl;
+    private final HttpUrl coinGeckoExchangeRatesUrl;
+    private final HttpUrl coinMarketCapUrl;
+    private final HttpUrl bitcoinAverageUrl;
+    private final long sourceMaxAgeMs;
+
+    public static final HttpUrl COINGECKO_BASE_URL = HttpUrl.parse("https://api.coingecko.com/");
+    public static final HttpUrl COINMARKETCAP_BASE_URL = HttpUrl.parse("https://api.coinmarketcap.com/");
+    public static final HttpUrl BITCOINAVERAGE_BASE_URL = HttpUrl.parse("https://apiv2.bitcoinaverage.com/");
+
+    public static final String COINGECKO_SOURCE = "CoinGecko.com";
+    private static final String COINMARKETCAP_SOURCE = "coinmarketcap.com";
+    private static final String BITCOINAVERAGE_SOURCE = "BitcoinAverage.com";
+    private static final String BITCOINAVERAGE_AUTH_HEAD = "x-ba-key";
+    private static final String BITCOINAVERAGE_KEY = "OTJlYTZhZTRhNjJhNDUxOWExNDU5YzY2NzcyMDcyMDk";
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRateSources.class);
+
+    /** BTC rates by fiat currency code, as plain decimal strings. */
+    public static final class BtcRates {
+        public final String source;
+        public final Map<String, String> rates;
+
+        private BtcRates(final String source, final Map<String, String> rates) {
+            this.source = source;
+            this.rates = rates;
+        }
+    }
+
+    /** Parses the values of interest out of a response, streaming. */
+    private interface ValuesParser {
+        Map<String, String> parse(JsonReader reader) throws IOException;
+    }
+
+    /**
+     * @param sourceStates
+     *            per-source state, keyed by URL; read for revalidation and updated after every successful fetch
+     * @param sourceMaxAgeMs
+     *            values of a source fetched more recently than this are used again without asking the source
+     */
+    public ExchangeRateSources(final OkHttpClient httpClient, final String userAgent, final HedgedFetcher fetcher,
+            final Map<String, SourceState> sourceStates, final HttpUrl coinGeckoBaseUrl,
+            final HttpUrl coinMarketCapBaseUrl, final HttpUrl bitcoinAverageBaseUrl, final long sourceMaxAgeMs) {
+        this.httpClient = httpClient;
+        this.userAgent = userAgent;
+        this.fetcher = fetcher;
+        this.sourceStates = sourceStates;
+        this.coinGeckoTickersUrl = coinGeckoBaseUrl.resolve("api/v3/coins/sexcoin/tickers");
+        this.coinGeckoExchangeRatesUrl = coinGeckoBaseUrl.resolve("api/v3/exchange_rates");
+        this.coinMarketCapUrl = coinMarketCapBaseUrl.resolve("v1/ticker/sexcoin/");
+        this.bitcoinAverageUrl = bitcoinAverageBaseUrl.resolve("indices/global/ticker/short?crypto=BTC");
+        this.sourceMaxAgeMs = sourceMaxAgeMs;
+    }
+
+    /**
+     * Blocks until a source delivered the SXC/BTC conversion, all sources failed or the deadline passed.
+     */
+    @Nullable
+    public Double fetchConversion() throws InterruptedException {
+        return fetcher.fetch(Arrays.asList(coinGeckoConversionSource, coinMarketCapConversionSource));
+    }
+
+    /**
+     * Blocks until a source delivered the BTC/fiat table, all sources failed or the deadline passed.
+     */
+    @Nullable
+    public BtcRates fetchBtcRates() throws InterruptedException {
+        return fetcher.fetch(Arrays.asList(coinGeckoBtcRatesSource, bitcoinAverageBtcRatesSource));
+    }
+
+    /**
+     * Fetches and parses the given source, revalidating the values from the last fetch by ETag and Last-Modified if
+     * there are any. Per-source state is updated on success. Values that are still fresh, e.g. because the other
+     * half of the last refresh failed, are used as they are.
+     *
+     * @return the current values, or {@code null} if the source answered with nothing usable
+     */
+    @Nullable
+    private Map<String, String> fetchValues(final HttpUrl url, @Nullable final String authHeader,
+            @Nullable final String authKey, final ValuesParser parser) throws IOException {
+        final String key = url.toString();
+        final SourceState state = sourceStates.get(key);
+
+        if (state != null && System.currentTimeMillis() - state.fetchedAt < sourceMaxAgeMs) {
+            log.info("exchange rates from {} still fresh", url);
+            return state.values;
+        }
+
+        final Request.Builder request = new Request.Builder();
+        request.url(url);
+        request.header("User-Agent", userAgent);
+        if (authHeader != null)
+            request.header(authHeader, authKey);
+        if (state != null) {
+            if (state.etag != null)
+                request.header("If-None-Match", state.etag);
+            if (state.lastModified != null)
+                request.header("If-Modified-Since", state.lastModified);
+        }
+
+        final Response response = httpClient.newCall(request.build()).execute();
+        try {
+            final long now = System.currentTimeMillis();
+
+            if (response.code() == 304 && state != null) {
+                log.info("exchange rates from {} not modified since {}", url, state.lastModified);
+                sourceStates.put(key, state.revalidated(now));
+                return state.values;
+            }
+
+            if (!response.isSuccessful()) {
+                log.warn("http status {} when fetching exchange rates from {}", response.code(), url);
+                return null;
+            }
+
+            final Map<String, String> values = parser.parse(JsonReader.of(response.body().source()));
+            if (values.isEmpty())
+                return null;
+
+            sourceStates.put(key, new SourceState(response.header("ETag"), response.header("Last-Modified"), now,
+                    values));
+            return values;
+        } finally {
+            response.body().close();
+        }
+    }
+
+    private final HedgedFetcher.Source<BtcRates> bitcoinAverageBtcRatesSource = new HedgedFetcher.Source<BtcRates>() {
+        @Override
+        public String name() {
+            return BITCOINAVERAGE_SOURCE;
+        }
+
+        @Override
+        public BtcRates fetch() throws Exception {
+            final Map<String, String> rates = fetchValues(bitcoinAverageUrl, BITCOINAVERAGE_AUTH_HEAD,
+                    BITCOINAVERAGE_KEY, new ValuesParser() {
+                        @Override
+                        public Map<String, String> parse(final JsonReader reader) throws IOException {
+                            final Map<String, String> rates = new TreeMap<String, String>();
+
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                final String currencyCode = reader.nextName();
+                                final String fiatCurrencyCode = currencyCode.startsWith("BTC")
+                                        ? currencyCode.substring(3) : null;
+                                if (fiatCurrencyCode == null || !isFiat(fiatCurrencyCode)) {
+                                    reader.skipValue();
+                                    continue;
+                                }
+
+                                reader.beginObject();
+                                while (reader.hasNext()) {
+                                    if (!reader.nextName().equals("averages")) {
+                                        reader.skipValue();
+                                        continue;
+                                    }
+
+                                    reader.beginObject();
+                                    while (reader.hasNext()) {
+                                        if (reader.nextName().equals("day"))
+                                            rates.put(fiatCurrencyCode, reader.nextString());
+                                        else
+                                            reader.skipValue();
+                                    }
+                                    reader.endObject();
+                                }
+                                reader.endObject();
+                            }
+                            reader.endObject();
+
+                            return rates;
+                        }
+                    });
+            return rates != null ? new BtcRates(BITCOINAVERAGE_SOURCE, rates) : null;
+        }
+    };
+
+    private final HedgedFetcher.Source<BtcRates> coinGeckoBtcRatesSource = new HedgedFetcher.Source<BtcRates>() {
+        @Override
+        public String name() {
+            return COINGECKO_SOURCE;
+        }
+
+        @Override
+        public BtcRates fetch() throws Exception {
+            final Map<String, String> rates = fetchValues(coinGeckoExchangeRatesUrl, null, null, new ValuesParser() {
+                @Override
+                public Map<String, String> parse(final JsonReader reader) throws IOException {
+                    final Map<String, String> rates = new TreeMap<String, String>();
+
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (!reader.nextName().equals("rates")) {
+                            reader.skipValue();
+                            continue;
+                        }
+
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            final String fiatCurrencyCode = reader.nextName().toUpperCase(Locale.US);
+                            String value = null;
+                            String type = null;
+
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                final String name = reader.nextName();
+                                if (name.equals("value"))
+                                    value = reader.nextString();
+                                else if (name.equals("type"))
+                                    type = reader.nextString();
+                                else
+                                    reader.skipValue();
+                            }
+                            reader.endObject();
+
+                            if ("fiat".equals(type) && value != null && isFiat(fiatCurrencyCode))
+                                rates.put(fiatCurrencyCode, value);
+                        }
+                        reader.endObject();
+                    }
+                    reader.endObject();
+
+                    return rates;
+                }
+            });
+            return rates != null ? new BtcRates(COINGECKO_SOURCE, rates) : null;
+        }
+    };
+
+    private final HedgedFetcher.Source<Double> coinGeckoConversionSource = new HedgedFetcher.Source<Double>() {
+        @Override
+        public String name() {
+            return COINGECKO_SOURCE;
+        }
+
+        @Override
+        public Double fetch() throws Exception {
+            final Map<String, String> values = fetchValues(coinGeckoTickersUrl, null, null, new ValuesParser() {
+                @Override
+                public Map<String, String> parse(final JsonReader reader) throws IOException {
+                    String btcprice = null;
+
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (!reader.nextName().equals("tickers")) {
+                            reader.skipValue();
+                            continue;
+                        }
+
+                        // only the first ticker is of interest, the rest is skipped without being materialized
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            if (btcprice != null) {
+                                reader.skipValue();
+                                continue;
+                            }
+
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                if (!reader.nextName().equals("converted_last")) {
+                                    reader.skipValue();
+                                    continue;
+                                }
+
+                                reader.beginObject();
+                                while (reader.hasNext()) {
+                                    if (reader.nextName().equals("btc"))
+                                        btcprice = reader.nextString();
+                                    else
+                                        reader.skipValue();
+                                }
+                                reader.endObject();
+                            }
+                            reader.endObject();
+                        }
+                        reader.endArray();
+                    }
+                    reader.endObject();
+
+                    return btcprice != null ? Collections.singletonMap(MonetaryFormat.CODE_BTC, btcprice)
+                            : Collections.<String, String> emptyMap();
+                }
+            });
+            return values != null ? validConversion(Double.valueOf(values.get(MonetaryFormat.CODE_BTC))) : null;
+        }
+    };
+
+    private final HedgedFetcher.Source<Double> coinMarketCapConversionSource = new HedgedFetcher.Source<Double>() {
+        @Override
+        public String name() {
+            return COINMARKETCAP_SOURCE;
+        }
+
+        @Override
+        public Double fetch() throws Exception {
+            final Map<String, String> values = fetchValues(coinMarketCapUrl, null, null, new ValuesParser() {
+                @Override
+                public Map<String, String> parse(final JsonReader reader) throws IOException {
+                    String btcprice = null;
+
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (btcprice != null) {
+                            reader.skipValue();
+                            continue;
+                        }
+
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("price_btc") && reader.peek() != JsonReader.Token.NULL)
+                                btcprice = reader.nextString();
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                    }
+                    reader.endArray();
+
+                    return btcprice != null ? Collections.singletonMap(MonetaryFormat.CODE_BTC, btcprice)
+                            : Collections.<String, String> emptyMap();
+                }
+            });
+            return values != null ? validConversion(Double.valueOf(values.get(MonetaryFormat.CODE_BTC))) : null;
+        }
+    };
+
+    public static boolean isFiat(final String currencyCode) {
+        return !currencyCode.equals(MonetaryFormat.CODE_BTC) && !currencyCode.equals(MonetaryFormat.CODE_MBTC)
+                && !currencyCode.equals(MonetaryFormat.CODE_UBTC);
+    }
+
+    @Nullable
+    private static Double validConversion(final double conversion) {
+        return conversion > 0 && !Double.isInfinite(conversion) ? conversion : null;
+    }
+}
@@ -17,16 +17,24 @@
 
 package de.schildbach.wallet.data;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.Currency;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
 
@@ -34,21 +42,25 @@ import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.squareup.okhttp.Call;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Handshake;
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.ExchangeRateSources.BtcRates;
+import de.schildbach.wallet.data.ExchangeRatesSnapshot.SourceState;
 import de.schildbach.wallet.util.GenericUtils;
+import de.schildbach.wallet.util.HedgedFetcher;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -75,37 +87,28 @@ public class ExchangeRatesProvider extends ContentProvider {
 
     private Configuration config;
     private String userAgent;
+    private ExecutorService executor;
+    private ExchangeRateSources sources;
 
     @Nullable
-    private Map<String, ExchangeRate> exchangeRates = null;
-    private long lastUpdated = 0;
-    private double sxcBtcConversion = -1;
-
-    // BitcoinAverage
-    private static final HttpUrl BITCOINAVERAGE_URL = HttpUrl
-            .parse("https://apiv2.bitcoinaverage.com/indices/global/ticker/short?crypto=BTC");
-    private static final String BITCOINAVERAGE_SOURCE = "BitcoinAverage.com";
-    private static final String BITCOINAVERAGE_AUTH_HEAD = "x-ba-key";
-    private static final String BITCOINAVERAGE_KEY = "OTJlYTZhZTRhNjJhNDUxOWExNDU5YzY2NzcyMDcyMDk";
+    private volatile Map<String, ExchangeRate> exchangeRates = null;
+    private volatile long lastUpdated = 0;
+    private volatile double sxcBtcConversion = -1;
+    private final Map<String, SourceState> sourceStates = new ConcurrentHashMap<String, SourceState>();
+    private File snapshotFile;
+    private Future<?> snapshotLoad;
+    @Nullable
+    private Future<?> refreshFuture = null;
 
     // CoinMarketCap
     private static final HttpUrl COINMARKETCAP_URL = HttpUrl
             .parse("https://api.coinmarketcap.com/v1/ticker/sexcoin/");
-    private static final String COINMARKETCAP_SOURCE = "coinmarketcap.com";
 
     // CoinGecko
-    private static final HttpUrl COINGECKO_URL = HttpUrl
-            .parse("https://api.coingecko.com/api/v3/coins/sexcoin/tickers");
-    private static final String COINGECKO_SOURCE = "CoinGecko.com";
-
     private static final HttpUrl COINGECKO_SXC_URL = HttpUrl
             .parse("https://api.coingecko.com/api/v3/coins/sexcoin?localization=false&tickers=false&market_data=true&community_data=false&developer_data=false&sparkline=false");
     private static final String COINGECKO_SXC_SOURCE = "CoinGecko.com";
 
-    private static final HttpUrl COINGECKO_FIAT_URL = HttpUrl
-            .parse("https://api.coingecko.com/api/v3/exchange_rates");
-    private static final String COINGECKO_FIAT_SOURCE = "CoinGecko.com";
-
     // CoinAPI
     private static final HttpUrl COINAPI_URL = HttpUrl
             .parse("https://api.coinapi.io/v1/exchangerate/BTC");
@@ -126,6 +129,9 @@ public class ExchangeRatesProvider extends ContentProvider {
 
 
     private static final long UPDATE_FREQ_MS = 10 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long SOURCE_TIMEOUT_MS = 8 * DateUtils.SECOND_IN_MILLIS;
+    private static final long HEDGE_DELAY_MS = 2 * DateUtils.SECOND_IN_MILLIS;
+    private static final long REFRESH_DEADLINE_MS = 12 * DateUtils.SECOND_IN_MILLIS;
 
     private static final Logger log = LoggerFactory.getLogger(ExchangeRatesProvider.class);
 
@@ -138,14 +144,55 @@ public class ExchangeRatesProvider extends ContentProvider {
 
         this.config = new Configuration(PreferenceManager.getDefaultSharedPreferences(context), context.getResources());
         this.userAgent = WalletApplication.httpUserAgent(WalletApplication.packageInfoFromContext(context).versionName);
+        final OkHttpClient httpClient = Constants.HTTP_CLIENT.clone();
+        httpClient.setConnectTimeout(SOURCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        httpClient.setWriteTimeout(SOURCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        httpClient.setReadTimeout(SOURCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("exchange-rates-%d").build());
+        this.sources = new ExchangeRateSources(httpClient, userAgent,
+                new HedgedFetcher(executor, HEDGE_DELAY_MS, REFRESH_DEADLINE_MS), sourceStates,
+                ExchangeRateSources.COINGECKO_BASE_URL, ExchangeRateSources.COINMARKETCAP_BASE_URL,
+                ExchangeRateSources.BITCOINAVERAGE_BASE_URL, UPDATE_FREQ_MS);
+
+        this.snapshotFile = new File(context.getCacheDir(), Constants.Files.EXCHANGE_RATES_SNAPSHOT_FILENAME);
+        // onCreate() runs on the main thread, so the snapshot is read in the background and queries wait for it
+        this.snapshotLoad = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                loadSnapshot();
+            }
+        });
+
+        return true;
+    }
+
+    private void loadSnapshot() {
+        final ExchangeRatesSnapshot snapshot = ExchangeRatesSnapshot.read(snapshotFile);
+        if (snapshot != null) {
+            this.sourceStates.putAll(snapshot.sources);
+            this.sxcBtcConversion = snapshot.sxcBtcConversion;
+            this.lastUpdated = snapshot.lastUpdated;
+            this.exchangeRates = snapshot.rates;
+            return;
+        }
 
         final ExchangeRate cachedExchangeRate = config.getCachedExchangeRate();
         if (cachedExchangeRate != null) {
-            exchangeRates = new TreeMap<String, ExchangeRate>();
+            final Map<String, ExchangeRate> exchangeRates = new TreeMap<String, ExchangeRate>();
             exchangeRates.put(cachedExchangeRate.getCurrencyCode(), cachedExchangeRate);
+            this.exchangeRates = exchangeRates;
         }
+    }
 
-        return true;
+    private void awaitSnapshot() {
+        try {
+            snapshotLoad.get();
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException x) {
+            log.warn("problem loading exchange rates snapshot", x);
+        }
     }
 
     public static Uri contentUri(final String packageName, final boolean offline) {
@@ -158,44 +205,31 @@ public class ExchangeRatesProvider extends ContentProvider {
     @Override
     public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs,
             final String sortOrder) {
+        awaitSnapshot();
         final long now = System.currentTimeMillis();
 
         final boolean offline = uri.getQueryParameter(QUERY_PARAM_OFFLINE) != null;
 
+        // stale-while-revalidate: anything we have is served right away, a stale table is refreshed in the
+        // background and callers get notified when that is done; only with nothing to serve we wait
         if (!offline && (lastUpdated == 0 || now - lastUpdated > UPDATE_FREQ_MS)) {
-            double newSxcBtcConversion = -1;
-            if ((sxcBtcConversion == -1))
-                newSxcBtcConversion = requestSxcBtcConversion();
-
-            if (newSxcBtcConversion != -1)
-                sxcBtcConversion = newSxcBtcConversion;
-
-            if (sxcBtcConversion == -1)
-                return null;
-            log.info("sxcBtcConversion = " + sxcBtcConversion);
-            Map<String, ExchangeRate> newExchangeRates = null;
-            if (newExchangeRates == null)
-                newExchangeRates = requestGekoExchangeRates(sxcBtcConversion);
+            final Future<?> refresh = maybeStartRefresh();
 
-            if (newExchangeRates != null) {
-                double mBTCRate = sxcBtcConversion *1000;
-
-                String strmBTCRate = String.format(Locale.US, "%.4f", mBTCRate).replace(',', '.');
-                if(strmBTCRate.equals("0.0000"))
-                    strmBTCRate = "0.0001";
-                newExchangeRates.put("mBTC", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("mBTC", strmBTCRate)), COINGECKO_SOURCE));
-                newExchangeRates.put("SXC", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("SXC", "1")), COINGECKO_SOURCE));
-
-                exchangeRates = newExchangeRates;
-                lastUpdated = now;
-
-                final ExchangeRate exchangeRateToCache = bestExchangeRate(config.getExchangeCurrencyCode());
-                if (exchangeRateToCache != null)
-                    config.setCachedExchangeRate(exchangeRateToCache);
+            if (exchangeRates == null) {
+                try {
+                    refresh.get(REFRESH_DEADLINE_MS, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                } catch (final ExecutionException x) {
+                    log.warn("problem refreshing exchange rates", x);
+                } catch (final TimeoutException x) {
+                    log.info("exchange rates not available after {} ms", REFRESH_DEADLINE_MS);
+                }
             }
         }
 
-        if (exchangeRates == null || sxcBtcConversion == -1)
+        final Map<String, ExchangeRate> exchangeRates = this.exchangeRates;
+        if (exchangeRates == null)
             return null;
 
         final MatrixCursor cursor = new MatrixCursor(
@@ -223,7 +257,7 @@ public class ExchangeRatesProvider extends ContentProvider {
             }
         } else if (selection.equals(KEY_CURRENCY_CODE)) {
             final String selectionArg = selectionArgs[0];
-            final ExchangeRate exchangeRate = bestExchangeRate(selectionArg);
+            final ExchangeRate exchangeRate = bestExchangeRate(exchangeRates, selectionArg);
             if (exchangeRate != null) {
                 final org.bitcoinj.utils.ExchangeRate rate = exchangeRate.rate;
                 final String currencyCode = exchangeRate.getCurrencyCode();
@@ -232,10 +266,113 @@ public class ExchangeRatesProvider extends ContentProvider {
             }
         }
 
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
         return cursor;
     }
 
-    private ExchangeRate bestExchangeRate(final String currencyCode) {
+    private synchronized Future<?> maybeStartRefresh() {
+        if (refreshFuture == null || refreshFuture.isDone())
+            refreshFuture = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+        return refreshFuture;
+    }
+
+    /**
+     * Fetches the SXC/BTC conversion and the BTC/fiat table in parallel, each from a list of hedged sources, and
+     * publishes the combined table as a new snapshot.
+     */
+    private void refresh() {
+        final Stopwatch watch = Stopwatch.createStarted();
+
+        final Future<Double> conversionFuture = executor.submit(new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+                return sources.fetchConversion();
+            }
+        });
+        final Future<BtcRates> btcRatesFuture = executor.submit(new Callable<BtcRates>() {
+            @Override
+            public BtcRates call() throws Exception {
+                return sources.fetchBtcRates();
+            }
+        });
+
+        try {
+            final Double newSxcBtcConversion = conversionFuture.get();
+            if (newSxcBtcConversion != null)
+                sxcBtcConversion = newSxcBtcConversion;
+            final BtcRates btcRates = btcRatesFuture.get();
+
+            if (sxcBtcConversion == -1 || btcRates == null) {
+                log.warn("could not refresh exchange rates, took {}", watch);
+                return;
+            }
+            log.info("sxcBtcConversion = " + sxcBtcConversion);
+
+            final Map<String, ExchangeRate> newExchangeRates = convert(btcRates, sxcBtcConversion);
+            double mBTCRate = sxcBtcConversion *1000;
+
+            String strmBTCRate = String.format(Locale.US, "%.4f", mBTCRate).replace(',', '.');
+            if(strmBTCRate.equals("0.0000"))
+                strmBTCRate = "0.0001";
+            newExchangeRates.put("mBTC", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("mBTC", strmBTCRate)), ExchangeRateSources.COINGECKO_SOURCE));
+            newExchangeRates.put("SXC", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("SXC", "1")), ExchangeRateSources.COINGECKO_SOURCE));
+
+            final long now = System.currentTimeMillis();
+            exchangeRates = newExchangeRates;
+            lastUpdated = now;
+            new ExchangeRatesSnapshot(newExchangeRates, now, sxcBtcConversion,
+                    new TreeMap<String, SourceState>(sourceStates)).write(snapshotFile);
+
+            final ExchangeRate exchangeRateToCache = bestExchangeRate(newExchangeRates, config.getExchangeCurrencyCode());
+            if (exchangeRateToCache != null)
+                config.setCachedExchangeRate(exchangeRateToCache);
+
+            watch.stop();
+            log.info("refreshed {} exchange rates, took {}", newExchangeRates.size(), watch);
+
+            getContext().getContentResolver().notifyChange(contentUri(getContext().getPackageName(), false), null);
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException x) {
+            log.warn("problem refreshing exchange rates", x);
+        }
+    }
+
+    private static Map<String, ExchangeRate> convert(final BtcRates btcRates, final double altBtcConversion) {
+        final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+
+        for (final Map.Entry<String, String> entry : btcRates.rates.entrySet()) {
+            final String fiatCurrencyCode = entry.getKey();
+            try {
+                final double btcRate = Double.parseDouble(parseFiatInexact(fiatCurrencyCode, entry.getValue()).toPlainString());
+                DecimalFormat df = new DecimalFormat("#.########");
+                df.setRoundingMode(RoundingMode.HALF_UP);
+                DecimalFormatSymbols dfs = new DecimalFormatSymbols();
+                dfs.setDecimalSeparator('.');
+                dfs.setGroupingSeparator(',');
+                df.setDecimalFormatSymbols(dfs);
+                final Fiat altRate = parseFiatInexact(fiatCurrencyCode, df.format(btcRate*altBtcConversion));
+
+                if (altRate.signum() > 0)
+                    rates.put(fiatCurrencyCode, new ExchangeRate(
+                            new org.bitcoinj.utils.ExchangeRate(altRate), btcRates.source));
+            } catch (final IllegalArgumentException x) {
+                log.warn("problem converting {} exchange rate from {}: {}", fiatCurrencyCode, btcRates.source,
+                        x.getMessage());
+            }
+        }
+
+        return rates;
+    }
+
+    private static ExchangeRate bestExchangeRate(final Map<String, ExchangeRate> exchangeRates,
+            final String currencyCode) {
         ExchangeRate rate = currencyCode != null ? exchangeRates.get(currencyCode) : null;
         if (rate != null)
             return rate;
@@ -249,7 +386,7 @@ public class ExchangeRatesProvider extends ContentProvider {
         return exchangeRates.get(Constants.DEFAULT_EXCHANGE_CURRENCY);
     }
 
-    private String defaultCurrencyCode() {
+    private static String defaultCurrencyCode() {
         try {
             return Currency.getInstance(Locale.getDefault()).getCurrencyCode();
         } catch (final IllegalArgumentException x) {
@@ -289,204 +426,12 @@ public class ExchangeRatesProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
-    private Map<String, ExchangeRate> requestExchangeRates(double altBtcConversion) {
-        final Stopwatch watch = Stopwatch.createStarted();
-
-        final Request.Builder request = new Request.Builder();
-        request.url(BITCOINAVERAGE_URL);
-        request.header("User-Agent", userAgent);
-        request.header(BITCOINAVERAGE_AUTH_HEAD, BITCOINAVERAGE_KEY);
-
-        final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-                //log.error("BTCAVG response: " + content);
-                final JSONObject head = new JSONObject(content);
-                final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
-
-                for (final Iterator<String> i = head.keys(); i.hasNext();) {
-                    final String currencyCode = i.next();
-                    if (currencyCode.startsWith("BTC")) {
-                        final String fiatCurrencyCode = currencyCode.substring(3);
-                        if (!fiatCurrencyCode.equals(MonetaryFormat.CODE_BTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_MBTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_UBTC)) {
-                            final JSONObject exchangeRate = head.getJSONObject(currencyCode);
-                            final JSONObject averages = exchangeRate.getJSONObject("averages");
-                            try {
-                                final String rate = averages.getString("day");
-                                final double btcRate = Double.parseDouble(parseFiatInexact(fiatCurrencyCode, rate).toPlainString());
-                                DecimalFormat df = new DecimalFormat("#.########");
-                                df.setRoundingMode(RoundingMode.HALF_UP);
-                                DecimalFormatSymbols dfs = new DecimalFormatSymbols();
-                                dfs.setDecimalSeparator('.');
-                                dfs.setGroupingSeparator(',');
-                                df.setDecimalFormatSymbols(dfs);
-                                final Fiat altRate = parseFiatInexact(fiatCurrencyCode, df.format(btcRate*altBtcConversion));
-
-                                if (altRate.signum() > 0)
-                                    rates.put(fiatCurrencyCode, new ExchangeRate(
-                                            new org.bitcoinj.utils.ExchangeRate(altRate), BITCOINAVERAGE_SOURCE));
-                            } catch (final IllegalArgumentException x) {
-                                log.warn("problem fetching {} exchange rate from {}: {}", currencyCode,
-                                        BITCOINAVERAGE_URL, x.getMessage());
-                            }
-                        }
-                    }
-                }
-
-                watch.stop();
-                log.info("fetched exchange rates from {}, {} chars, took {}", BITCOINAVERAGE_URL, content.length(),
-                        watch);
-                response.body().close();
-                return rates;
-            } else {
-                log.warn("http status {} when fetching exchange rates from {}", response.code(), BITCOINAVERAGE_URL);
-            }
-        } catch (final Exception x) {
-            log.warn("problem fetching exchange rates from " + BITCOINAVERAGE_URL, x);
-        }
-
-        return null;
-    }
-
-    private Map<String, ExchangeRate> requestGekoExchangeRates(double altBtcConversion) {
-        final Stopwatch watch = Stopwatch.createStarted();
-
-        final Request.Builder request = new Request.Builder();
-        request.url(COINGECKO_FIAT_URL);
-        request.header("User-Agent", userAgent);
-
-        final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-                final JSONObject head = new JSONObject(content);
-                final JSONObject ratedata = head.getJSONObject("rates");
-                final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
-
-                for (final Iterator<String> i = ratedata.keys(); i.hasNext();) {
-                    final String currencyCode = i.next();
-                    if (ratedata.getJSONObject(currencyCode).getString("type").equals("fiat") ) {
-                        final String fiatCurrencyCode = currencyCode.toUpperCase();
-                        if (!fiatCurrencyCode.equals(MonetaryFormat.CODE_BTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_MBTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_UBTC)) {
-                            final JSONObject exchangeRate = ratedata.getJSONObject(currencyCode);
-
-                            try {
-                                final String rate = exchangeRate.getString("value");
-                                final double btcRate = Double.parseDouble(parseFiatInexact(fiatCurrencyCode, rate).toPlainString());
-
-                                DecimalFormat df = new DecimalFormat("#.########");
-                                df.setRoundingMode(RoundingMode.HALF_UP);
-                                DecimalFormatSymbols dfs = new DecimalFormatSymbols();
-                                dfs.setDecimalSeparator('.');
-                                dfs.setGroupingSeparator(',');
-                                df.setDecimalFormatSymbols(dfs);
-                                final Fiat altRate = parseFiatInexact(fiatCurrencyCode, df.format(btcRate*altBtcConversion));
-
-                                if (altRate.signum() > 0)
-                                    rates.put(fiatCurrencyCode, new ExchangeRate(
-                                            new org.bitcoinj.utils.ExchangeRate(altRate), COINGECKO_SOURCE));
-                            } catch (final IllegalArgumentException x) {
-                                log.warn("problem fetching {} exchange rate from {}: {}", currencyCode,
-                                        COINGECKO_FIAT_URL, x.getMessage());
-                            }
-                        }
-                    }
-                }
-
-                watch.stop();
-                log.info("fetched exchange rates from {}, {} chars, took {}", COINGECKO_FIAT_URL, content.length(),
-                        watch);
-                response.body().close();
-                return rates;
-            } else {
-                log.warn("http status {} when fetching exchange rates from {}", response.code(), COINGECKO_FIAT_URL);
-            }
-        } catch (final Exception x) {
-            log.warn("problem fetching exchange rates from " + COINGECKO_FIAT_URL, x);
-        }
-
-        return null;
-    }
     // backport from bitcoinj 0.15
     private static Fiat parseFiatInexact(final String currencyCode, final String str) {
         final long val = new BigDecimal(str).movePointRight(Fiat.SMALLEST_UNIT_EXPONENT).longValue();
         return Fiat.valueOf(currencyCode, val);
     }
 
-    private double requestSxcBtcConversion() {
-        final Request.Builder request = new Request.Builder();
-        request.url(COINGECKO_URL);
-        request.header("User-Agent", userAgent);
-
-        final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-
-                try {
-                     final JSONObject json = new JSONObject(content);
-                    final String btcprice = json.getJSONArray("tickers")
-                            .getJSONObject(0)
-                            .getJSONObject("converted_last")
-                            .getString("btc");
-                    return Double.valueOf(btcprice);
-                    //return Double.valueOf(json.getJSONObject(29).getJSONObject("current_price").getString("btc"));
-
-                } catch (NumberFormatException e) {
-                    log.error("Couldn't get the current exchange rate from coingeko.");
-                    return -1;
-                }
-
-            } else {
-                log.error("http status {} when fetching exchange rates from {}", response.code(), COINGECKO_URL);
-            }
-        } catch (final Exception x) {
-            log.error("problem reading exchange rates", x);
-        }
-
-        return -1;
-    }
-
-    private double requestBTCtoFiatRates() {
-        final Request.Builder request = new Request.Builder();
-
-        request.url(COINMARKETCAP_URL);
-        request.header("User-Agent", userAgent);
-
-        final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-                try {
-                    final JSONArray json = new JSONArray(content);
-                    return Double.valueOf(json.getJSONObject(0).getString("price_btc"));
-                } catch (NumberFormatException e) {
-                    log.debug("Couldn't get the current exchange rate from cmc.");
-                    return -1;
-                }
-
-            } else {
-                log.warn("http status {} when fetching exchange rates from {}", response.code(), COINMARKETCAP_URL);
-            }
-        } catch (final Exception x) {
-            log.debug("problem reading exchange rates", x);
-        }
-
-        return -1;
-    }
-
     /**
      * This will hopefully make it easier for any alt coin dev to implement conversions.
      * Not implemented completely
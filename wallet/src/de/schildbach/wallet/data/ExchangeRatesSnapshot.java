@@ -0,0 +1,214 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Immutable copy of the exchange rate table together with what is needed to revalidate it: the SXC/BTC conversion
+ * and, per source, the HTTP validators, the time of the last fetch and the values it delivered. Persisted in a
+ * compact binary format so that a cold start can serve the full table without touching the network.
+ */
+final class ExchangeRatesSnapshot {
+    public final Map<String, ExchangeRate> rates;
+    public final long lastUpdated;
+    public final double sxcBtcConversion;
+    public final Map<String, SourceState> sources;
+
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRatesSnapshot.class);
+
+    public static final class SourceState {
+        @Nullable
+        public final String etag;
+        @Nullable
+        public final String lastModified;
+        public final long fetchedAt;
+        public final Map<String, String> values;
+
+        public SourceState(@Nullable final String etag, @Nullable final String lastModified, final long fetchedAt,
+                final Map<String, String> values) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+            this.values = values;
+        }
+
+        public SourceState revalidated(final long fetchedAt) {
+            return new SourceState(etag, lastModified, fetchedAt, values);
+        }
+    }
+
+    public ExchangeRatesSnapshot(final Map<String, ExchangeRate> rates, final long lastUpdated,
+            final double sxcBtcConversion, final Map<String, SourceState> sources) {
+        this.rates = rates;
+        this.lastUpdated = lastUpdated;
+        this.sxcBtcConversion = sxcBtcConversion;
+        this.sources = sources;
+    }
+
+    @Nullable
+    public static ExchangeRatesSnapshot read(final File file) {
+        if (!file.exists())
+            return null;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        DataInputStream is = null;
+
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (is.readInt() != FILE_FORMAT_VERSION) {
+                log.info("discarding exchange rates snapshot of unknown format: '{}'", file);
+                file.delete();
+                return null;
+            }
+
+            final long lastUpdated = is.readLong();
+            final double sxcBtcConversion = is.readDouble();
+
+            final int numRates = is.readInt();
+            final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+            for (int i = 0; i < numRates; i++) {
+                final String currencyCode = is.readUTF();
+                final Coin coin = Coin.valueOf(is.readLong());
+                final Fiat fiat = Fiat.valueOf(currencyCode, is.readLong());
+                final String source = readNullableUTF(is);
+                rates.put(currencyCode, new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(coin, fiat), source));
+            }
+
+            final int numSources = is.readInt();
+            final Map<String, SourceState> sources = new TreeMap<String, SourceState>();
+            for (int i = 0; i < numSources; i++) {
+                final String url = is.readUTF();
+                final String etag = readNullableUTF(is);
+                final String lastModified = readNullableUTF(is);
+                final long fetchedAt = is.readLong();
+                final int numValues = is.readInt();
+                final Map<String, String> values = new TreeMap<String, String>();
+                for (int j = 0; j < numValues; j++)
+                    values.put(is.readUTF(), is.readUTF());
+                sources.put(url, new SourceState(etag, lastModified, fetchedAt, values));
+            }
+
+            watch.stop();
+            log.info("exchange rates snapshot loaded from: '{}', {} rates, took {}", file, numRates, watch);
+
+            return new ExchangeRatesSnapshot(rates, lastUpdated, sxcBtcConversion, sources);
+        } catch (final IOException x) {
+            log.warn("problem loading exchange rates snapshot, discarding: '" + file + "'", x);
+            file.delete();
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot. The file is replaced atomically.
+     */
+    public void write(final File file) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream os = null;
+
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            os.writeInt(FILE_FORMAT_VERSION);
+            os.writeLong(lastUpdated);
+            os.writeDouble(sxcBtcConversion);
+
+            os.writeInt(rates.size());
+            for (final ExchangeRate rate : rates.values()) {
+                os.writeUTF(rate.getCurrencyCode());
+                os.writeLong(rate.rate.coin.value);
+                os.writeLong(rate.rate.fiat.value);
+                writeNullableUTF(os, rate.source);
+            }
+
+            os.writeInt(sources.size());
+            for (final Map.Entry<String, SourceState> entry : sources.entrySet()) {
+                final SourceState source = entry.getValue();
+                os.writeUTF(entry.getKey());
+                writeNullableUTF(os, source.etag);
+                writeNullableUTF(os, source.lastModified);
+                os.writeLong(source.fetchedAt);
+                os.writeInt(source.values.size());
+                for (final Map.Entry<String, String> value : source.values.entrySet()) {
+                    os.writeUTF(value.getKey());
+                    os.writeUTF(value.getValue());
+                }
+            }
+            os.close();
+            os = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("cannot rename " + tempFile + " to " + file);
+
+            watch.stop();
+            log.info("exchange rates snapshot saved to: '{}', {} rates, took {}", file, rates.size(), watch);
+        } catch (final IOException x) {
+            log.warn("problem saving exchange rates snapshot", x);
+            tempFile.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static String readNullableUTF(final DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(final DataOutputStream os, @Nullable final String str) throws IOException {
+        os.writeBoolean(str != null);
+        if (str != null)
+            os.writeUTF(str);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.KeyChainGroup;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+
+/**
+ * Splits a parsed wallet file into an essential part and the history, so that the wallet can be published before all
+ * of its transactions are materialized. The essential part holds the keys, the unspent and pending transactions,
+ * everything their outputs are spent by and the transactions funding them, which is all the balance, spending and the
+ * values of recent transactions depend on. The history is merged into the live wallet later, off the main thread.
+ */
+public final class StagedWalletLoader {
+    private final Protos.Wallet walletProto;
+    private final Protos.Wallet essentialProto;
+    private final int numHistorical;
+
+    // essential transactions spending outputs of the history, their values are only known after the merge
+    private final Set<Sha256Hash> partial = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+
+    @Nullable
+    private StagedWallet wallet;
+
+    private static final Logger log = LoggerFactory.getLogger(StagedWalletLoader.class);
+
+    public StagedWalletLoader(final Protos.Wallet walletProto) {
+        this.walletProto = walletProto;
+
+        final Map<ByteString, Protos.Transaction> transactions = new HashMap<ByteString, Protos.Transaction>();
+        final LinkedList<Protos.Transaction> queue = new LinkedList<Protos.Transaction>();
+        final Set<ByteString> essential = new HashSet<ByteString>();
+        for (final Protos.Transaction tx : walletProto.getTransactionList()) {
+            transactions.put(tx.getHash(), tx);
+            final Protos.Transaction.Pool pool = tx.getPool();
+            if (pool == Protos.Transaction.Pool.UNSPENT || pool == Protos.Transaction.Pool.PENDING) {
+                essential.add(tx.getHash());
+                queue.add(tx);
+            }
+        }
+        requireSpenders(queue, transactions, essential);
+
+        // without their funding transactions, the inputs of sends stay unconnected and only the change is counted;
+        // this is done one level deep only, as following inputs all the way would pull in the whole history
+        for (final ByteString hash : new ArrayList<ByteString>(essential)) {
+            final Protos.Transaction tx = transactions.get(hash);
+            if (tx != null)
+                for (final Protos.TransactionInput input : tx.getTransactionInputList())
+                    if (transactions.containsKey(input.getTransactionOutPointHash()))
+                        require(input.getTransactionOutPointHash(), transactions, essential, queue);
+        }
+        requireSpenders(queue, transactions, essential);
+
+        final Protos.Wallet.Builder builder = walletProto.toBuilder().clearTransaction();
+        for (final Protos.Transaction tx : walletProto.getTransactionList()) {
+            if (essential.contains(tx.getHash())) {
+                builder.addTransaction(tx);
+                for (final Protos.TransactionInput input : tx.getTransactionInputList()) {
+                    final ByteString fundingHash = input.getTransactionOutPointHash();
+                    if (transactions.containsKey(fundingHash) && !essential.contains(fundingHash)) {
+                        partial.add(Sha256Hash.wrap(tx.getHash().toByteArray()));
+                        break;
+                    }
+                }
+            }
+        }
+        this.essentialProto = builder.build();
+        this.numHistorical = walletProto.getTransactionCount() - essentialProto.getTransactionCount();
+    }
+
+    private static void requireSpenders(final LinkedList<Protos.Transaction> queue,
+            final Map<ByteString, Protos.Transaction> transactions, final Set<ByteString> essential) {
+        // the serializer connects outputs to the transactions spending them, so those must come along
+        while (!queue.isEmpty()) {
+            final Protos.Transaction tx = queue.removeFirst();
+            for (final Protos.TransactionOutput output : tx.getTransactionOutputList())
+                if (output.hasSpentByTransactionHash())
+                    require(output.getSpentByTransactionHash(), transactions, essential, queue);
+            if (tx.hasConfidence() && tx.getConfidence().hasOverridingTransaction())
+                require(tx.getConfidence().getOverridingTransaction(), transactions, essential, queue);
+        }
+    }
+
+    private static void require(final ByteString hash, final Map<ByteString, Protos.Transaction> transactions,
+            final Set<ByteString> essential, final LinkedList<Protos.Transaction> queue) {
+        if (essential.add(hash)) {
+            final Protos.Transaction tx = transactions.get(hash);
+            if (tx != null)
+                queue.add(tx);
+        }
+    }
+
+    /**
+     * Materializes the essential part. The history can only be merged into the wallet returned from here.
+     */
+    public Wallet readEssentialWallet(final NetworkParameters params) throws UnreadableWalletException {
+        final StagedWallet wallet = (StagedWallet) new WalletProtobufSerializer(
+                new WalletProtobufSerializer.WalletFactory() {
+                    @Override
+                    public Wallet create(final NetworkParameters params, final KeyChainGroup keyChainGroup) {
+                        return new StagedWallet(params, keyChainGroup);
+                    }
+                }).readWallet(params, null, essentialProto);
+        this.wallet = wallet;
+        return wallet;
+    }
+
+    public int getNumHistorical() {
+        return numHistorical;
+    }
+
+    /**
+     * Returns the hashes of the essential transactions whose value depends on the history, which shouldn't be shown
+     * before the history has been merged. The set is live and becomes empty once merging is over.
+     */
+    public Set<Sha256Hash> getPartialTransactions() {
+        return Collections.unmodifiableSet(partial);
+    }
+
+    /**
+     * Materializes the history and merges it into the wallet returned by {@link #readEssentialWallet}. Takes as long
+     * as reading the whole wallet file, so don't call on the main thread. Returns the number of transactions added.
+     */
+    public int loadHistory() throws UnreadableWalletException {
+        checkState(wallet != null, "essential wallet not read yet");
+        try {
+            final Stopwatch watch = Stopwatch.createStarted();
+            final HistoryWallet history = (HistoryWallet) new WalletProtobufSerializer(
+                    new WalletProtobufSerializer.WalletFactory() {
+                        @Override
+                        public Wallet create(final NetworkParameters params, final KeyChainGroup keyChainGroup) {
+                            return new HistoryWallet(params, keyChainGroup);
+                        }
+                    }).readWallet(wallet.getParams(), null, walletProto);
+            final int numAdded = wallet.merge(history.transactions);
+            watch.stop();
+            log.info("{} historical transactions loaded, took {}", numAdded, watch);
+            return numAdded;
+        } finally {
+            // whatever couldn't be merged won't come any more, so show the partial transactions as they are
+            partial.clear();
+        }
+    }
+
+    /**
+     * Exists only to merge under the wallet's own lock. The block chain and peers modify the same transactions
+     * concurrently, which they do while holding that lock.
+     */
+    private static final class StagedWallet extends Wallet {
+        public StagedWallet(final NetworkParameters params, final KeyChainGroup keyChainGroup) {
+            super(params, keyChainGroup);
+        }
+
+        private int merge(final List<WalletTransaction> transactions) {
+            final Stopwatch watch = Stopwatch.createStarted();
+            lock.lock();
+            try {
+                int numAdded = 0;
+                for (final WalletTransaction wtx : transactions) {
+                    final Transaction tx = wtx.getTransaction();
+                    if (getTransaction(tx.getHash()) != null)
+                        continue;
+
+                    // outputs spent by a transaction of the essential part need to point to its live instance
+                    for (final TransactionOutput output : tx.getOutputs()) {
+                        final TransactionInput spentBy = output.getSpentBy();
+                        if (spentBy == null)
+                            continue;
+                        final Transaction spendingTx = spentBy.getParentTransaction();
+                        final Transaction liveSpendingTx = getTransaction(spendingTx.getHash());
+                        if (liveSpendingTx != null) {
+                            output.markAsUnspent();
+                            liveSpendingTx.getInput(spendingTx.getInputs().indexOf(spentBy)).connect(output);
+                        }
+                    }
+
+                    addWalletTransaction(wtx);
+
+                    // the chain may have moved on while the history was loading
+                    final TransactionConfidence confidence = tx.getConfidence();
+                    if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+                        confidence.setDepthInBlocks(
+                                getLastBlockSeenHeight() - confidence.getAppearedAtChainHeight() + 1);
+
+                    numAdded++;
+                }
+                return numAdded;
+            } finally {
+                lock.unlock();
+                watch.stop();
+                log.info("history merged into wallet, held wallet lock for {}", watch);
+            }
+        }
+    }
+
+    /**
+     * Only collects the transactions read into it. Adding them to a wallet would register that wallet's confidence
+     * listener with each of them, and as confidences are shared by transaction hash, the throwaway wallet including
+     * its keys would stay reachable from the live wallet's transactions.
+     */
+    private static final class HistoryWallet extends Wallet {
+        private final List<WalletTransaction> transactions = new ArrayList<WalletTransaction>();
+
+        public HistoryWallet(final NetworkParameters params, final KeyChainGroup keyChainGroup) {
+            super(params, keyChainGroup);
+        }
+
+        @Override
+        public void addWalletTransaction(final WalletTransaction wtx) {
+            transactions.add(wtx);
+        }
+    }
+}
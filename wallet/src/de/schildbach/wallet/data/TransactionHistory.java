@@ -0,0 +1,311 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Transaction.Purpose;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Incrementally maintained, sorted index of the wallet's transaction history. Wallet events only record which
+ * transactions changed; the changes are applied lazily when a snapshot is requested, so no full re-sort happens
+ * after the initial build.
+ */
+public final class TransactionHistory implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        WalletReorganizeEventListener, TransactionConfidenceEventListener {
+    public enum Direction {
+        RECEIVED, SENT
+    }
+
+    private final Wallet wallet;
+    private final Set<Sha256Hash> hidden;
+
+    // written from wallet event threads without taking the monitor, to avoid lock inversion with the wallet lock
+    private final ChangedHashes changed = new ChangedHashes(MAX_CHANGED);
+    private final AtomicBoolean invalid = new AtomicBoolean(true);
+
+    private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    private final TreeSet<Entry> all = new TreeSet<Entry>(ENTRY_COMPARATOR);
+    private final TreeSet<Entry> received = new TreeSet<Entry>(ENTRY_COMPARATOR);
+    private final TreeSet<Entry> sent = new TreeSet<Entry>(ENTRY_COMPARATOR);
+
+    @Nullable
+    private List<Entry> snapshotAll, snapshotReceived, snapshotSent;
+
+    // more changes than this between two snapshots, and rebuilding is about as cheap as applying them
+    private static final int MAX_CHANGED = 512;
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionHistory.class);
+
+    /**
+     * @param hidden
+     *            transactions to leave out for as long as they are contained, e.g. because their value isn't known
+     *            yet
+     */
+    public TransactionHistory(final Wallet wallet, final Set<Sha256Hash> hidden) {
+        this.wallet = wallet;
+        this.hidden = hidden;
+    }
+
+    /**
+     * Returns an immutable, ordered snapshot of the history. Snapshots are shared between callers until the
+     * underlying partition changes.
+     */
+    public synchronized List<Entry> snapshot(@Nullable final Direction direction) {
+        if (invalid.getAndSet(false)) {
+            changed.clear();
+            rebuild();
+        } else {
+            changed.swap();
+            for (Sha256Hash hash = changed.poll(); hash != null; hash = changed.poll())
+                apply(hash);
+
+            if (!isConsistent())
+                rebuild();
+        }
+
+        if (direction == Direction.RECEIVED) {
+            if (snapshotReceived == null)
+                snapshotReceived = toList(received);
+            return snapshotReceived;
+        } else if (direction == Direction.SENT) {
+            if (snapshotSent == null)
+                snapshotSent = toList(sent);
+            return snapshotSent;
+        } else {
+            if (snapshotAll == null)
+                snapshotAll = toList(all);
+            return snapshotAll;
+        }
+    }
+
+    public void invalidate() {
+        invalid.set(true);
+    }
+
+    private void rebuild() {
+        final Stopwatch watch = Stopwatch.createStarted();
+
+        entries.clear();
+        all.clear();
+        received.clear();
+        sent.clear();
+        snapshotAll = snapshotReceived = snapshotSent = null;
+
+        for (final Transaction tx : wallet.getTransactions(true))
+            if (!hidden.contains(tx.getHash()))
+                add(new Entry(tx, wallet));
+
+        watch.stop();
+        log.info("transaction history rebuilt with {} transactions, took {}", entries.size(), watch);
+    }
+
+    private void apply(final Sha256Hash hash) {
+        final Entry oldEntry = entries.remove(hash);
+        if (oldEntry != null)
+            remove(oldEntry);
+
+        final Transaction tx = wallet.getTransaction(hash);
+        if (tx != null && !hidden.contains(hash))
+            add(new Entry(tx, wallet));
+    }
+
+    private void add(final Entry entry) {
+        entries.put(entry.hash, entry);
+        all.add(entry);
+        snapshotAll = null;
+        if (entry.direction == Direction.RECEIVED) {
+            received.add(entry);
+            snapshotReceived = null;
+        } else if (entry.direction == Direction.SENT) {
+            sent.add(entry);
+            snapshotSent = null;
+        }
+    }
+
+    private void remove(final Entry entry) {
+        all.remove(entry);
+        snapshotAll = null;
+        if (entry.direction == Direction.RECEIVED) {
+            received.remove(entry);
+            snapshotReceived = null;
+        } else if (entry.direction == Direction.SENT) {
+            sent.remove(entry);
+            snapshotSent = null;
+        }
+    }
+
+    private boolean isConsistent() {
+        return isConsistent(wallet, entries.size(), hidden);
+    }
+
+    /**
+     * Checks if a view holding the given number of the wallet's transactions, apart from the hidden ones, still holds
+     * all of them. This catches removals that are not announced by any event, e.g. wallet cleanup.
+     */
+    static boolean isConsistent(final Wallet wallet, final int numTransactions, final Set<Sha256Hash> hidden) {
+        final int size = wallet.getPoolSize(Pool.UNSPENT) + wallet.getPoolSize(Pool.SPENT)
+                + wallet.getPoolSize(Pool.PENDING) + wallet.getPoolSize(Pool.DEAD);
+        return size == numTransactions + hidden.size();
+    }
+
+    private void recordChanged(final Sha256Hash hash) {
+        // until the next snapshot rebuilds from scratch, e.g. while nobody has asked for one yet, there's no point
+        if (!invalid.get() && !changed.add(hash))
+            invalidate();
+    }
+
+    /**
+     * Returns the depth beyond which further confirmations of the transaction are not shown any more.
+     */
+    public static int maxConfirmationsShown(final Transaction tx) {
+        return tx.isCoinBase() ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
+                : Constants.MAX_NUM_CONFIRMATIONS;
+    }
+
+    private static List<Entry> toList(final TreeSet<Entry> set) {
+        return Collections.unmodifiableList(new ArrayList<Entry>(set));
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        recordChanged(tx.getHash());
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        recordChanged(tx.getHash());
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        // during sync, this fires for every buried transaction on every block, most of which look the same as before
+        final TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING
+                || confidence.getDepthInBlocks() <= maxConfirmationsShown(tx))
+            recordChanged(tx.getHash());
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        invalidate();
+    }
+
+    /**
+     * State of a transaction, frozen at the time it was indexed. The sort key is needed to find the entry again after
+     * the transaction's confidence has changed; the rest allows consumers to tell which rows need redrawing.
+     */
+    public static final class Entry {
+        private final Transaction tx;
+        private final Sha256Hash hash;
+        private final Coin value;
+        private final ConfidenceType confidenceType;
+        private final int depth;
+        private final int numBroadcastPeers;
+        private final boolean pending;
+        private final long time;
+        @Nullable
+        private final Direction direction;
+
+        private Entry(final Transaction tx, final Wallet wallet) {
+            this.tx = tx;
+            this.hash = tx.getHash();
+            this.value = tx.getValue(wallet);
+            final TransactionConfidence confidence = tx.getConfidence();
+            this.confidenceType = confidence.getConfidenceType();
+            this.depth = confidenceType == ConfidenceType.BUILDING
+                    ? Math.min(confidence.getDepthInBlocks(), maxConfirmationsShown(tx)) : 0;
+            this.numBroadcastPeers = confidence.numBroadcastPeers();
+            this.pending = confidenceType == ConfidenceType.PENDING;
+            final Date updateTime = tx.getUpdateTime();
+            this.time = updateTime != null ? updateTime.getTime() : 0;
+
+            if (tx.getPurpose() == Purpose.KEY_ROTATION)
+                this.direction = null;
+            else
+                this.direction = value.signum() < 0 ? Direction.SENT : Direction.RECEIVED;
+        }
+
+        public Transaction getTransaction() {
+            return tx;
+        }
+
+        public Sha256Hash getHash() {
+            return hash;
+        }
+
+        public Coin getValue() {
+            return value;
+        }
+
+        public boolean hasSameValue(final Entry other) {
+            return value.equals(other.value);
+        }
+
+        public boolean hasSameConfidenceType(final Entry other) {
+            return confidenceType == other.confidenceType;
+        }
+
+        public boolean hasSameConfidence(final Entry other) {
+            return confidenceType == other.confidenceType && depth == other.depth
+                    && numBroadcastPeers == other.numBroadcastPeers && time == other.time;
+        }
+    }
+
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry entry1, final Entry entry2) {
+            if (entry1.pending != entry2.pending)
+                return entry1.pending ? -1 : 1;
+
+            if (entry1.time != entry2.time)
+                return entry1.time > entry2.time ? -1 : 1;
+
+            return entry1.hash.compareTo(entry2.hash);
+        }
+    };
+}
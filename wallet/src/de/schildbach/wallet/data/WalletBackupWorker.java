@@ -0,0 +1,157 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Writes the automatic key backup on a background thread. Requests that pile up are coalesced into one, and nothing
+ * is written if the key material is the same as in the existing backup. Backups are written to a temp file and
+ * renamed, so a crash never leaves a truncated backup behind.
+ */
+public final class WalletBackupWorker {
+    private final File backupFile;
+    private final Handler backgroundHandler;
+
+    // only accessed from the background thread
+    @Nullable
+    private byte[] backupKeyHash = null;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletBackupWorker.class);
+
+    public WalletBackupWorker(final File backupFile) {
+        this.backupFile = backupFile;
+
+        final HandlerThread backgroundThread = new HandlerThread("walletBackup", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        this.backgroundHandler = new Handler(backgroundThread.getLooper());
+    }
+
+    public void requestBackup(final Wallet wallet) {
+        // a pending request would back up the same wallet or a stale one
+        backgroundHandler.removeCallbacksAndMessages(null);
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                backup(wallet);
+            }
+        });
+    }
+
+    private void backup(final Wallet wallet) {
+        final Stopwatch watch = Stopwatch.createStarted();
+
+        final byte[] keyHash = keyHash(wallet.serializeKeyChainGroupToProtobuf());
+        if (backupKeyHash == null)
+            backupKeyHash = readKeyHash(backupFile);
+        if (Arrays.equals(keyHash, backupKeyHash)) {
+            watch.stop();
+            log.info("wallet backup '{}' is up to date, took {}", backupFile, watch);
+            return;
+        }
+
+        final Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
+
+        // strip redundant
+        builder.clearTransaction();
+        builder.clearLastSeenBlockHash();
+        builder.setLastSeenBlockHeight(-1);
+        builder.clearLastSeenBlockTimeSecs();
+        final Protos.Wallet walletProto = builder.build();
+
+        final File tempFile = new File(backupFile.getParentFile(), backupFile.getName() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            walletProto.writeTo(os);
+            os.flush();
+            os.getFD().sync();
+            os.close();
+            os = null;
+
+            if (!tempFile.renameTo(backupFile))
+                throw new IOException("cannot rename " + tempFile + " to " + backupFile);
+            backupKeyHash = keyHash;
+
+            watch.stop();
+            log.info("wallet backed up to: '{}', took {}", backupFile, watch);
+        } catch (final IOException x) {
+            log.error("problem writing wallet backup", x);
+            tempFile.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static byte[] readKeyHash(final File backupFile) {
+        if (!backupFile.exists())
+            return null;
+
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(backupFile);
+            return keyHash(WalletProtobufSerializer.parseToProto(is).getKeyList());
+        } catch (final IOException x) {
+            log.info("cannot read wallet backup '{}', rewriting: {}", backupFile, x.getMessage());
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private static byte[] keyHash(final List<Protos.Key> keys) {
+        final MessageDigest digest = Sha256Hash.newDigest();
+        for (final Protos.Key key : keys)
+            digest.update(key.toByteArray());
+        return digest.digest();
+    }
+}
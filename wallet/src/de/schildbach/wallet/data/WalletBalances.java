@@ -0,0 +1,119 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Balance of the wallet in all its {@link BalanceType} variants, shared by everything that displays it. Wallet
+ * events only mark the balances stale, and they are computed again once by the first reader after a change. Until
+ * then, reads don't touch the wallet or any lock.
+ */
+public final class WalletBalances implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        WalletReorganizeEventListener, TransactionConfidenceEventListener {
+    private final Wallet wallet;
+
+    // bumped from wallet event threads, a snapshot is current as long as it carries the latest version
+    private final AtomicInteger version = new AtomicInteger();
+
+    @Nullable
+    private volatile Snapshot snapshot;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletBalances.class);
+
+    private static final class Snapshot {
+        private final int version;
+        private final Coin[] balances;
+
+        private Snapshot(final int version, final Coin[] balances) {
+            this.version = version;
+            this.balances = balances;
+        }
+    }
+
+    public WalletBalances(final Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    public Coin get(final BalanceType type) {
+        return snapshot().balances[type.ordinal()];
+    }
+
+    private Snapshot snapshot() {
+        final int version = this.version.get();
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot != null && snapshot.version == version)
+            return snapshot;
+
+        // concurrent readers may compute the same balances twice, which is cheaper than making everyone wait
+        final Stopwatch watch = Stopwatch.createStarted();
+        final BalanceType[] types = BalanceType.values();
+        final Coin[] balances = new Coin[types.length];
+        for (final BalanceType type : types)
+            balances[type.ordinal()] = wallet.getBalance(type);
+        final Snapshot fresh = new Snapshot(version, balances);
+        this.snapshot = fresh;
+
+        watch.stop();
+        log.debug("wallet balances computed, took {}", watch);
+        return fresh;
+    }
+
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        invalidate();
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        invalidate();
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        // beyond being included, announced or dropped, only a maturing coinbase changes a balance, which is why
+        // confirmations are counted up to where a coinbase becomes spendable
+        if (tx.getConfidence().getDepthInBlocks() <= TransactionHistory.maxConfirmationsShown(tx))
+            invalidate();
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        invalidate();
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.util.Io;
+
+/**
+ * Append-only journal of the wallet changes since the last wallet file snapshot, so that snapshots can be taken
+ * rarely while each change costs a write proportional to its size. Journaled are pending transactions, transactions
+ * received in blocks of the best chain and new best blocks, which together are replayed through the same wallet entry
+ * points the block chain uses. As only the newest best block matters for replay, best blocks are held back and written
+ * ahead of the next other entry, before the journal is rotated or closed, or once one has been held for a while.
+ * Changes that can't be replayed like that (reorgs, dead transactions, added keys) take a snapshot soon, on a
+ * background thread, as they are reported on whatever thread the wallet fires events on.
+ *
+ * <p>
+ * A snapshot first rotates the journal, then saves the wallet, then discards the rotated journal. Replay is
+ * idempotent, so entries that made it into both a snapshot and a journal are harmless.
+ */
+public final class WalletJournal implements TransactionReceivedInBlockListener, NewBestBlockListener,
+        WalletCoinsReceivedEventListener, WalletCoinsSentEventListener, WalletReorganizeEventListener,
+        KeyChainEventListener, TransactionConfidenceEventListener {
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+    private final File rotatedFile;
+
+    @Nullable
+    private DataOutputStream os = null;
+    private final CRC32 crc = new CRC32();
+    private int generation = 0;
+    private boolean snapshotsSuspended = false;
+    private boolean snapshotRequested = false;
+    private boolean closed = false;
+    @Nullable
+    private StoredBlock heldBestBlock = null;
+    private long heldBestBlockSince;
+
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "walletJournal");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean(false);
+
+    private static final int TYPE_PENDING = 1;
+    private static final int TYPE_IN_BLOCK = 2;
+    private static final int TYPE_BEST_BLOCK = 3;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+    private static final long MAX_BEST_BLOCK_HOLD_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public WalletJournal(final Wallet wallet, final File walletFile, final File journalFile, final File rotatedFile) {
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = journalFile;
+        this.rotatedFile = rotatedFile;
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING)
+            append(TYPE_PENDING, tx.bitcoinSerialize());
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING)
+            append(TYPE_PENDING, tx.bitcoinSerialize());
+    }
+
+    @Override
+    public void receiveFromBlock(final Transaction tx, final StoredBlock block, final NewBlockType blockType,
+            final int relativityOffset) throws VerificationException {
+        // side chain blocks only matter after a reorg, which takes a snapshot anyway
+        if (blockType == NewBlockType.BEST_CHAIN && wallet.getTransaction(tx.getHash()) != null)
+            append(TYPE_IN_BLOCK, inBlockPayload(tx, block, relativityOffset));
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(final Sha256Hash txHash, final StoredBlock block,
+            final NewBlockType blockType, final int relativityOffset) throws VerificationException {
+        final Transaction tx = wallet.getTransaction(txHash);
+        if (tx == null)
+            return false;
+        if (blockType == NewBlockType.BEST_CHAIN)
+            append(TYPE_IN_BLOCK, inBlockPayload(tx, block, relativityOffset));
+        return true;
+    }
+
+    @Override
+    public void notifyNewBestBlock(final StoredBlock block) throws VerificationException {
+        final boolean appended;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (heldBestBlock == null)
+                heldBestBlockSince = now;
+            heldBestBlock = block;
+            // during sync, this saves a write for almost every block
+            if (now - heldBestBlockSince < MAX_BEST_BLOCK_HOLD_MS)
+                return;
+            appended = appendHeldBestBlockLocked();
+        }
+        if (!appended)
+            snapshotLater();
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        snapshotLater();
+    }
+
+    @Override
+    public void onKeysAdded(final List<ECKey> keys) {
+        snapshotLater();
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.DEAD)
+            snapshotLater();
+    }
+
+    private static byte[] inBlockPayload(final Transaction tx, final StoredBlock block, final int relativityOffset) {
+        final byte[] txBytes = tx.bitcoinSerialize();
+        final ByteBuffer payload = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 4 + txBytes.length);
+        block.serializeCompact(payload);
+        payload.putInt(relativityOffset);
+        payload.put(txBytes);
+        return payload.array();
+    }
+
+    private void append(final int type, final byte[] payload) {
+        final boolean appended;
+        synchronized (this) {
+            appended = appendLocked(type, payload);
+        }
+        // an entry missing from the middle would break replay, so capture the state in a snapshot instead
+        if (!appended)
+            snapshotLater();
+    }
+
+    private boolean appendLocked(final int type, final byte[] payload) {
+        try {
+            if (os == null)
+                os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+            // replay applies entries in order, so the best block that came before goes first
+            if (heldBestBlock != null) {
+                writeEntryLocked(TYPE_BEST_BLOCK, bestBlockPayload(heldBestBlock));
+                heldBestBlock = null;
+            }
+            writeEntryLocked(type, payload);
+            os.flush();
+            return true;
+        } catch (final IOException x) {
+            log.warn("problem appending to wallet journal", x);
+            closeLocked();
+            return false;
+        }
+    }
+
+    private boolean appendHeldBestBlockLocked() {
+        if (heldBestBlock == null)
+            return true;
+        final StoredBlock block = heldBestBlock;
+        heldBestBlock = null;
+        return appendLocked(TYPE_BEST_BLOCK, bestBlockPayload(block));
+    }
+
+    private void writeEntryLocked(final int type, final byte[] payload) throws IOException {
+        crc.reset();
+        crc.update(type);
+        crc.update(payload);
+        os.writeByte(type);
+        os.writeInt(payload.length);
+        os.write(payload);
+        os.writeInt((int) crc.getValue());
+    }
+
+    private static byte[] bestBlockPayload(final StoredBlock block) {
+        final ByteBuffer payload = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(payload);
+        return payload.array();
+    }
+
+    /**
+     * Saves the wallet file and discards the journal it supersedes. While snapshots are suspended, the request is
+     * remembered and the changes stay in the journal.
+     */
+    public void snapshot() {
+        synchronized (this) {
+            if (snapshotsSuspended) {
+                snapshotRequested = true;
+                return;
+            }
+        }
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final int generation = rotate();
+        try {
+            wallet.saveToFile(walletFile);
+            discardRotated(generation);
+            watch.stop();
+            log.info("wallet snapshot saved to: '{}', took {}", walletFile, watch);
+        } catch (final IOException x) {
+            log.warn("problem saving wallet snapshot", x);
+        }
+    }
+
+    /**
+     * Takes a snapshot on a background thread. Requests coming in before it has started are served by the same
+     * snapshot.
+     */
+    public void snapshotLater() {
+        if (!snapshotScheduled.compareAndSet(false, true))
+            return;
+        try {
+            snapshotExecutor.execute(snapshotRunnable);
+        } catch (final RejectedExecutionException x) {
+            // closed, the wallet is saved by whoever closed the journal
+        }
+    }
+
+    private final Runnable snapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            snapshotScheduled.set(false);
+            synchronized (WalletJournal.this) {
+                if (closed)
+                    return;
+            }
+            Context.propagate(wallet.getContext());
+            snapshot();
+        }
+    };
+
+    /**
+     * Keeps the wallet file as it is, e.g. because the live wallet doesn't hold all of its transactions yet.
+     */
+    public synchronized void suspendSnapshots() {
+        snapshotsSuspended = true;
+    }
+
+    /**
+     * Allows snapshots again, and takes one if it was requested in the meantime.
+     */
+    public void resumeSnapshots() {
+        final boolean requested;
+        synchronized (this) {
+            snapshotsSuspended = false;
+            requested = snapshotRequested;
+            snapshotRequested = false;
+        }
+        if (requested)
+            snapshot();
+    }
+
+    /**
+     * Moves the current entries aside before a snapshot is taken. Returns the generation to pass to
+     * {@link #discardRotated(int)} once the snapshot is saved.
+     */
+    public synchronized int rotate() {
+        // in case the snapshot doesn't complete, the rotated entries must be complete
+        appendHeldBestBlockLocked();
+        closeLocked();
+        if (journalFile.exists()) {
+            if (!rotatedFile.exists()) {
+                if (!journalFile.renameTo(rotatedFile))
+                    log.warn("cannot rotate wallet journal '{}'", journalFile);
+            } else {
+                // an earlier snapshot didn't complete, so its rotated entries are still needed
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    in = new FileInputStream(journalFile);
+                    out = new FileOutputStream(rotatedFile, true);
+                    Io.copy(in, out);
+                    out.close();
+                    out = null;
+                    journalFile.delete();
+                } catch (final IOException x) {
+                    log.warn("cannot rotate wallet journal '" + journalFile + "'", x);
+                } finally {
+                    closeQuietly(in);
+                    closeQuietly(out);
+                }
+            }
+        }
+        return ++generation;
+    }
+
+    /**
+     * Discards the rotated entries, unless another rotation happened since the given one.
+     */
+    public synchronized void discardRotated(final int generation) {
+        if (generation == this.generation)
+            rotatedFile.delete();
+    }
+
+    /**
+     * Stops journaling, after writing a best block that was held back. Waits for a snapshot that is being taken, so
+     * that it can't overwrite whatever is saved to the wallet file next.
+     */
+    public void close() {
+        synchronized (this) {
+            if (!closed)
+                appendHeldBestBlockLocked();
+            closed = true;
+            closeLocked();
+        }
+        snapshotExecutor.shutdown();
+        try {
+            if (!snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS))
+                log.warn("wallet snapshot still running after close");
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeLocked() {
+        if (os != null) {
+            closeQuietly(os);
+            os = null;
+        }
+    }
+
+    /**
+     * Applies the entries of the given journals in order, skipping those the wallet already reflects. A torn entry at
+     * the end of a journal, as left behind by a crash, ends the replay of that journal. Returns the number of entries
+     * applied.
+     */
+    public static int replay(final Wallet wallet, final File... journalFiles) {
+        int numApplied = 0;
+        for (final File journalFile : journalFiles) {
+            if (!journalFile.exists())
+                continue;
+
+            final Stopwatch watch = Stopwatch.createStarted();
+            final CRC32 crc = new CRC32();
+            DataInputStream is = null;
+            try {
+                is = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+                while (true) {
+                    final int type = is.read();
+                    if (type == -1)
+                        break;
+                    final int length = is.readInt();
+                    if (length < 0 || length > MAX_ENTRY_SIZE)
+                        throw new IOException("bad entry length: " + length);
+                    final byte[] payload = new byte[length];
+                    is.readFully(payload);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload);
+                    if (is.readInt() != (int) crc.getValue())
+                        throw new IOException("bad entry checksum");
+
+                    try {
+                        if (apply(wallet, type, payload))
+                            numApplied++;
+                    } catch (final VerificationException x) {
+                        log.info("skipping wallet journal entry: {}", x.getMessage());
+                    }
+                }
+            } catch (final EOFException x) {
+                log.info("wallet journal '{}' ends with a torn entry", journalFile);
+            } catch (final IOException x) {
+                log.warn("problem reading wallet journal '" + journalFile + "', stopping", x);
+            } finally {
+                closeQuietly(is);
+            }
+            watch.stop();
+            log.info("wallet journal replayed from: '{}', took {}", journalFile, watch);
+        }
+        return numApplied;
+    }
+
+    private static boolean apply(final Wallet wallet, final int type, final byte[] payload)
+            throws VerificationException {
+        final NetworkParameters params = wallet.getParams();
+        if (type == TYPE_PENDING) {
+            final Transaction tx = new Transaction(params, payload);
+            if (wallet.getTransaction(tx.getHash()) != null || !wallet.isTransactionRelevant(tx))
+                return false;
+            wallet.receivePending(tx, null);
+            return true;
+        } else if (type == TYPE_IN_BLOCK) {
+            final ByteBuffer buffer = ByteBuffer.wrap(payload);
+            final StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+            final int relativityOffset = buffer.getInt();
+            if (block.getHeight() <= wallet.getLastBlockSeenHeight())
+                return false;
+            final Transaction tx = new Transaction(params, payload, buffer.position());
+            final Transaction existing = wallet.getTransaction(tx.getHash());
+            if (existing != null && existing.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
+                return false;
+            wallet.receiveFromBlock(tx, block, NewBlockType.BEST_CHAIN, relativityOffset);
+            return true;
+        } else if (type == TYPE_BEST_BLOCK) {
+            final StoredBlock block = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(payload));
+            if (block.getHeight() <= wallet.getLastBlockSeenHeight())
+                return false;
+            wallet.notifyNewBestBlock(block);
+
+            // the wallet buries its transactions one block per call, but the blocks in between weren't journaled
+            for (final Transaction tx : wallet.getTransactions(false)) {
+                final TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+                    confidence.setDepthInBlocks(block.getHeight() - confidence.getAppearedAtChainHeight() + 1);
+            }
+            return true;
+        } else {
+            throw new VerificationException("unknown entry type: " + type);
+        }
+    }
+
+    private static void closeQuietly(@Nullable final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException x) {
+                // swallow
+            }
+        }
+    }
+}
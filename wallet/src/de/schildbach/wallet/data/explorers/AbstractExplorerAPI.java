@@ -2,15 +2,25 @@ package de.schildbach.wallet.data.explorers;
 
 import com.squareup.okhttp.HttpUrl;
 
+import org.bitcoinj.core.UTXO;
+
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.util.Set;
+
 /**
- * This is NEVER USED! This has been placed in the project as a template for Explorer APIs.
- * TODO: Get this done correctly and available for java < 8
+ * A block explorer backend that can be asked for the unspent outputs of an address. Instances are stateless; the
+ * {@link ExplorerClient} keeps track of how well each of them performs.
  */
-abstract class AbstractExplorerAPI {
+public abstract class AbstractExplorerAPI {
 
-    abstract public HttpUrl makeGetAddress(String address, String method);
-    abstract public HttpUrl makeGetBlock(String hash);
-    abstract public HttpUrl makeGetBlock(int height);
-    abstract public HttpUrl makeGetTransaction(String hash);
+    abstract public String getName();
+    abstract public HttpUrl makeGetUTXOs(String address);
+    abstract public Set<UTXO> getUTXOs(BufferedSource source) throws IOException;
 
+    @Override
+    public String toString() {
+        return getName();
+    }
 }
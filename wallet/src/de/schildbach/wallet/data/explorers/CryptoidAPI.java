@@ -19,20 +19,21 @@ package de.schildbach.wallet.data.explorers;
 
 import android.util.Log;
 import com.squareup.okhttp.HttpUrl;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
 import com.squareup.okhttp.Response;
 import de.schildbach.wallet.Constants;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.script.Script;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.spongycastle.util.encoders.Hex;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import okio.BufferedSource;
+
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
@@ -78,35 +79,79 @@ public class CryptoidAPI {
         return null;
     }
 
-    public static Set<UTXO> getUTXOs(Response response) throws JSONException, IOException {
-        final Set<UTXO> utxoSet = new HashSet<>();
-
-        String content = response.body().string();
-        final JSONObject json = new JSONObject(content);
-        final JSONArray jsonOutputs = json.optJSONArray("unspent_outputs");
-
-        //log.warn("length= "+ jsonOutputs.length());
-        //log.warn("class[0]: " +  jsonOutputs.get(0).getClass());
-        //log.warn("dump: " + jsonOutputs.toString());
+    public static Set<UTXO> getUTXOs(Response response) throws IOException {
+        try {
+            return getUTXOs(response.body().source());
+        } finally {
+            response.body().close();
+        }
+    }
 
-        if (jsonOutputs == null) {
-            return (utxoSet);
+    /**
+     * Streams the unspent outputs from the response body, without holding the whole document in memory.
+     */
+    public static Set<UTXO> getUTXOs(BufferedSource source) throws IOException {
+        final Set<UTXO> utxoSet = new HashSet<>();
+        final JsonReader reader = JsonReader.of(source);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("unspent_outputs") || reader.peek() != JsonReader.Token.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Sha256Hash utxoHash = null;
+                int utxoIndex = -1;
+                byte[] utxoScriptBytes = null;
+                Coin value = null;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final String name = reader.nextName();
+                    if (name.equals("tx_hash"))
+                        utxoHash = Sha256Hash.wrap(reader.nextString());
+                    else if (name.equals("tx_ouput_n"))
+                        utxoIndex = reader.nextInt();
+                    else if (name.equals("script"))
+                        utxoScriptBytes = Hex.decode(reader.nextString());
+                    else if (name.equals("value"))
+                        value = Coin.valueOf(reader.nextLong());
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+
+                if (utxoHash == null || utxoIndex < 0 || utxoScriptBytes == null || value == null)
+                    throw new JsonDataException("incomplete unspent output at " + reader.getPath());
+
+                utxoSet.add(new UTXO(utxoHash, utxoIndex, value, -1, false, new Script(utxoScriptBytes)));
+            }
+            reader.endArray();
         }
+        reader.endObject();
 
+        return utxoSet;
+    }
 
-        for (int i = 0; i < jsonOutputs.length(); i++) {
-            final JSONObject jsonOutput = jsonOutputs.getJSONObject(i);
+    public static final AbstractExplorerAPI EXPLORER = new AbstractExplorerAPI() {
+        @Override
+        public String getName() {
+            return "chainz.cryptoid.info";
+        }
 
-            final Sha256Hash utxoHash = Sha256Hash.wrap(jsonOutput.getString("tx_hash"));
-            final int utxoIndex = jsonOutput.getInt("tx_ouput_n");
-            final byte[] utxoScriptBytes = Hex.decode(jsonOutput.getString("script"));
-            final Coin uxtutx = Coin.valueOf(Long.parseLong(jsonOutput.getString("value")));
+        @Override
+        public HttpUrl makeGetUTXOs(String address) {
+            return CryptoidAPI.makeGetAddress(address, "utxo");
+        }
 
-            UTXO utxo = new UTXO(utxoHash, utxoIndex, uxtutx, -1, false, new Script(utxoScriptBytes));
-            utxoSet.add(utxo);
+        @Override
+        public Set<UTXO> getUTXOs(BufferedSource source) throws IOException {
+            return CryptoidAPI.getUTXOs(source);
         }
-        return utxoSet;
-    }
+    };
 
     public static HttpUrl getBaseUrl(){ return loc = HttpUrl.parse(Constants.CRYPTOID_API_URL); }
 }
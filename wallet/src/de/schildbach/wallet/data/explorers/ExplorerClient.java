@@ -0,0 +1,272 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data.explorers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.UTXO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.moshi.JsonDataException;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import android.text.format.DateUtils;
+
+/**
+ * Queries unspent outputs from a set of explorers. Explorers are tried in order of their health: those that failed
+ * recently are backed off, the rest are ordered by their average latency. A query either fails over from one explorer
+ * to the next, or races all of them and cross-validates the answers that arrive shortly after the first one.
+ */
+public final class ExplorerClient {
+    private final OkHttpClient httpClient;
+    private final List<AbstractExplorerAPI> explorers;
+    private final Executor executor;
+    private final Map<AbstractExplorerAPI, Health> healths = new IdentityHashMap<AbstractExplorerAPI, Health>();
+
+    private static final long CROSS_VALIDATION_WINDOW_MS = DateUtils.SECOND_IN_MILLIS;
+    private static final long FAILURE_BACKOFF_MS = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final Logger log = LoggerFactory.getLogger(ExplorerClient.class);
+
+    public ExplorerClient(final OkHttpClient httpClient, final List<AbstractExplorerAPI> explorers,
+            final Executor executor) {
+        this.httpClient = httpClient;
+        this.explorers = explorers;
+        this.executor = executor;
+        for (final AbstractExplorerAPI explorer : explorers)
+            healths.put(explorer, new Health());
+    }
+
+    /** An explorer answered with a HTTP status other than success. */
+    public static final class HttpStatusException extends IOException {
+        public final int code;
+        public final String responseMessage;
+
+        public HttpStatusException(final int code, final String responseMessage) {
+            super("http status " + code + ": " + responseMessage);
+            this.code = code;
+            this.responseMessage = responseMessage;
+        }
+    }
+
+    /** Success/failure counts and average latency of one explorer. */
+    public static final class Health {
+        private int successes = 0;
+        private int failures = 0;
+        private int consecutiveFailures = 0;
+        private long lastFailureAt = 0;
+        private long averageLatencyMs = 0;
+
+        private synchronized void success(final long latencyMs) {
+            // exponentially weighted, so that a recovering explorer is ranked up quickly
+            averageLatencyMs = successes == 0 ? latencyMs : (averageLatencyMs * 3 + latencyMs) / 4;
+            successes++;
+            consecutiveFailures = 0;
+        }
+
+        private synchronized void failure() {
+            failures++;
+            consecutiveFailures++;
+            lastFailureAt = System.currentTimeMillis();
+        }
+
+        private synchronized boolean isBackedOff(final long now) {
+            return consecutiveFailures > 0 && now - lastFailureAt < FAILURE_BACKOFF_MS * consecutiveFailures;
+        }
+
+        private synchronized long getAverageLatencyMs() {
+            return averageLatencyMs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return successes + " ok, " + failures + " failed (" + consecutiveFailures + " in a row), avg "
+                    + averageLatencyMs + " ms";
+        }
+    }
+
+    public Health getHealth(final AbstractExplorerAPI explorer) {
+        return healths.get(explorer);
+    }
+
+    /**
+     * Asks one explorer after the other, healthiest first, until one answers.
+     */
+    public Set<UTXO> getUTXOs(final String address) throws IOException {
+        Exception lastException = null;
+        for (final AbstractExplorerAPI explorer : rankedExplorers()) {
+            try {
+                return query(explorer, address);
+            } catch (final IOException x) {
+                lastException = x;
+            } catch (final JsonDataException x) {
+                lastException = x;
+            }
+        }
+        throw propagate(lastException);
+    }
+
+    /**
+     * Asks all explorers at once and returns the first answer. Answers that arrive within a short window after the
+     * first one are cross-validated; if explorers disagree, only the outputs that all of them know about are
+     * returned, as outputs that are missing on one explorer may already be spent.
+     */
+    public Set<UTXO> raceUTXOs(final String address) throws IOException {
+        final CompletionService<Set<UTXO>> completionService = new ExecutorCompletionService<Set<UTXO>>(executor);
+        final List<Future<Set<UTXO>>> futures = new ArrayList<Future<Set<UTXO>>>(explorers.size());
+        for (final AbstractExplorerAPI explorer : rankedExplorers()) {
+            futures.add(completionService.submit(new Callable<Set<UTXO>>() {
+                @Override
+                public Set<UTXO> call() throws Exception {
+                    return query(explorer, address);
+                }
+            }));
+        }
+
+        Set<UTXO> result = null;
+        Exception lastException = null;
+        long validateUntil = 0;
+
+        try {
+            for (int pending = futures.size(); pending > 0; pending--) {
+                final Future<Set<UTXO>> future;
+                if (result == null) {
+                    future = completionService.take();
+                } else {
+                    final long remaining = validateUntil - System.currentTimeMillis();
+                    future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (future == null)
+                        break;
+                }
+
+                try {
+                    final Set<UTXO> utxos = future.get();
+                    if (result == null) {
+                        result = utxos;
+                        validateUntil = System.currentTimeMillis() + CROSS_VALIDATION_WINDOW_MS;
+                    } else if (!result.equals(utxos)) {
+                        final Set<UTXO> agreed = new HashSet<UTXO>(result);
+                        agreed.retainAll(utxos);
+                        log.warn("explorers disagree on unspent outputs of {}: {} vs {}, using the {} they agree on",
+                                address, result.size(), utxos.size(), agreed.size());
+                        result = agreed;
+                    }
+                } catch (final ExecutionException x) {
+                    final Throwable cause = x.getCause();
+                    lastException = cause instanceof Exception ? (Exception) cause : x;
+                }
+            }
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while racing explorers");
+        } finally {
+            for (final Future<Set<UTXO>> future : futures)
+                future.cancel(true);
+        }
+
+        if (result != null)
+            return result;
+        throw propagate(lastException);
+    }
+
+    private Set<UTXO> query(final AbstractExplorerAPI explorer, final String address) throws IOException {
+        final Health health = healths.get(explorer);
+        final HttpUrl url = explorer.makeGetUTXOs(address);
+        final Request.Builder request = new Request.Builder();
+        request.url(url);
+
+        final long start = System.currentTimeMillis();
+        try {
+            final Response response = httpClient.newCall(request.build()).execute();
+            try {
+                if (!response.isSuccessful())
+                    throw new HttpStatusException(response.code(), response.message());
+
+                final Set<UTXO> utxos = explorer.getUTXOs(response.body().source());
+                final long latencyMs = System.currentTimeMillis() - start;
+                health.success(latencyMs);
+                log.info("{} answered with {} unspent outputs after {} ms; {}", explorer, utxos.size(), latencyMs,
+                        health);
+                return utxos;
+            } finally {
+                response.body().close();
+            }
+        } catch (final IOException x) {
+            health.failure();
+            log.info("{} failed after {} ms: {}; {}", explorer, System.currentTimeMillis() - start, x.toString(),
+                    health);
+            throw x;
+        } catch (final RuntimeException x) {
+            // malformed hashes or scripts surface as various runtime exceptions
+            health.failure();
+            log.info("{} answered garbage after {} ms: {}; {}", explorer, System.currentTimeMillis() - start,
+                    x.toString(), health);
+            throw x instanceof JsonDataException ? (JsonDataException) x : new JsonDataException(x);
+        }
+    }
+
+    private List<AbstractExplorerAPI> rankedExplorers() {
+        final long now = System.currentTimeMillis();
+        final List<AbstractExplorerAPI> ranked = new ArrayList<AbstractExplorerAPI>(explorers);
+        // stable sort, so the configured order breaks ties
+        Collections.sort(ranked, new Comparator<AbstractExplorerAPI>() {
+            @Override
+            public int compare(final AbstractExplorerAPI explorer1, final AbstractExplorerAPI explorer2) {
+                final Health health1 = healths.get(explorer1);
+                final Health health2 = healths.get(explorer2);
+                final boolean backedOff1 = health1.isBackedOff(now);
+                final boolean backedOff2 = health2.isBackedOff(now);
+                if (backedOff1 != backedOff2)
+                    return backedOff1 ? 1 : -1;
+
+                final long latency1 = health1.getAverageLatencyMs();
+                final long latency2 = health2.getAverageLatencyMs();
+                return latency1 < latency2 ? -1 : (latency1 > latency2 ? 1 : 0);
+            }
+        });
+        return ranked;
+    }
+
+    private static IOException propagate(final Exception x) {
+        if (x instanceof JsonDataException)
+            throw (JsonDataException) x;
+        if (x instanceof IOException)
+            return (IOException) x;
+        return new IOException("no explorer answered", x);
+    }
+}
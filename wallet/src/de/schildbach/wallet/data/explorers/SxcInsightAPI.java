@@ -17,6 +17,8 @@
 
 package de.schildbach.wallet.data.explorers;
 
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
@@ -25,11 +27,10 @@ import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.script.Script;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.spongycastle.util.encoders.Hex;
 
+import okio.BufferedSource;
+
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
@@ -85,32 +86,73 @@ public class SxcInsightAPI {
         return loc;
     }
 
-    public static Set<UTXO> getUTXOs(Response response) throws JSONException, IOException {
-        final Set<UTXO> utxoSet = new HashSet<>();
-
-        String content = response.body().string();
-        //final JSONObject json = new JSONObject(content);
-        final JSONArray jsonOutputs = new JSONArray(content);
+    public static Set<UTXO> getUTXOs(Response response) throws IOException {
+        try {
+            return getUTXOs(response.body().source());
+        } finally {
+            response.body().close();
+        }
+    }
 
-        if (jsonOutputs == null) {
-            return (utxoSet);
+    /**
+     * Streams the unspent outputs from the response body, without holding the whole document in memory.
+     */
+    public static Set<UTXO> getUTXOs(BufferedSource source) throws IOException {
+        final Set<UTXO> utxoSet = new HashSet<>();
+        final JsonReader reader = JsonReader.of(source);
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Sha256Hash utxoHash = null;
+            int utxoIndex = -1;
+            byte[] utxoScriptBytes = null;
+            Coin value = null;
+            int height = -1;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (name.equals("txid"))
+                    utxoHash = Sha256Hash.wrap(reader.nextString());
+                else if (name.equals("vout"))
+                    utxoIndex = reader.nextInt();
+                else if (name.equals("scriptPubKey"))
+                    utxoScriptBytes = Hex.decode(reader.nextString());
+                else if (name.equals("satoshis"))
+                    value = Coin.valueOf(reader.nextLong());
+                else if (name.equals("height") && reader.peek() != JsonReader.Token.NULL)
+                    height = reader.nextInt();
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+
+            if (utxoHash == null || utxoIndex < 0 || utxoScriptBytes == null || value == null)
+                throw new JsonDataException("incomplete unspent output at " + reader.getPath());
+
+            utxoSet.add(new UTXO(utxoHash, utxoIndex, value, height, false, new Script(utxoScriptBytes)));
         }
+        reader.endArray();
 
-        for (int i = 0; i < jsonOutputs.length(); i++) {
-            final JSONObject jsonOutput = jsonOutputs.getJSONObject(i);
+        return utxoSet;
+    }
 
+    public static final AbstractExplorerAPI EXPLORER = new AbstractExplorerAPI() {
+        @Override
+        public String getName() {
+            return "be.sexcoin.info";
+        }
 
-            final Sha256Hash utxoHash = Sha256Hash.wrap(jsonOutput.getString("txid"));
-            final int utxoIndex = jsonOutput.getInt("vout");
-            final byte[] utxoScriptBytes = Hex.decode(jsonOutput.getString("scriptPubKey"));
-            final Coin uxtutx = Coin.valueOf(Long.parseLong(jsonOutput.getString("satoshis")));
-            final int height = jsonOutput.getInt("height");
+        @Override
+        public HttpUrl makeGetUTXOs(String address) {
+            return SxcInsightAPI.makeGetAddress(address, "utxo");
+        }
 
-            UTXO utxo = new UTXO(utxoHash, utxoIndex, uxtutx, height, false, new Script(utxoScriptBytes));
-            utxoSet.add(utxo);
+        @Override
+        public Set<UTXO> getUTXOs(BufferedSource source) throws IOException {
+            return SxcInsightAPI.getUTXOs(source);
         }
-        return utxoSet;
-    }
+    };
 
     public static HttpUrl getBaseUrl(){ return loc = HttpUrl.parse(Constants.SXC_INSIGHT_API_URL); }
 
@@ -48,4 +48,6 @@ public interface BlockchainService {
     List<Peer> getConnectedPeers();
 
     List<StoredBlock> getRecentBlocks(int maxBlocks);
+
+    SyncStats getSyncStats();
 }
@@ -21,13 +21,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -43,10 +44,12 @@ import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.FilteredBlock;
 import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PrunedException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.listeners.AbstractPeerDataEventListener;
 import org.bitcoinj.core.listeners.PeerConnectedEventListener;
 import org.bitcoinj.core.listeners.PeerDataEventListener;
@@ -57,14 +60,16 @@ import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscoveryException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
-import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
@@ -74,11 +79,12 @@ import de.schildbach.wallet.data.AddressBookProvider;
 import de.schildbach.wallet.service.BlockchainState.Impediment;
 import de.schildbach.wallet.ui.WalletActivity;
 import de.schildbach.wallet.util.CrashReporter;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.util.WalletEventHub;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -93,9 +99,12 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.support.v4.app.ActivityManagerCompat;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.format.DateUtils;
@@ -110,6 +119,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     private BlockStore blockStore;
     private File blockChainFile;
     private BlockChain blockChain;
+    private RecentBlocks recentBlocks;
     @Nullable
     private PeerGroup peerGroup;
 
@@ -118,6 +128,12 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     private WakeLock wakeLock;
 
     private PeerConnectivityListener peerConnectivityListener;
+    private PeerDatabase peerDatabase;
+    private PeerScorer peerScorer;
+    private SyncMetrics syncMetrics;
+    private BloomFilterTuner bloomFilterTuner;
+    private final ExecutorService discoveryExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("peer-discovery-%d").build());
     private NotificationManager nm;
     private ConnectivityManager connectivityManager;
     private final Set<Impediment> impediments = EnumSet.noneOf(Impediment.class);
@@ -134,16 +150,18 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     private static final int MAX_HISTORY_SIZE = Math.max(IDLE_TRANSACTION_TIMEOUT_MIN, IDLE_BLOCK_TIMEOUT_MIN);
     private static final long APPWIDGET_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
     private static final long BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+    private static final int MAX_RECENT_BLOCKS = 100;
 
     private static final Logger log = LoggerFactory.getLogger(BlockchainServiceImpl.class);
 
-    private final ThrottlingWalletChangeListener walletEventListener = new ThrottlingWalletChangeListener(
-            APPWIDGET_THROTTLE_MS) {
+    private final WalletEventHub.Listener walletEventListener = new WalletEventHub.Listener() {
         @Override
-        public void onThrottledWalletChanged() {
-            WalletBalanceWidgetProvider.updateWidgets(BlockchainServiceImpl.this, application.getWallet());
+        public void onWalletEvents(final int events) {
+            WalletBalanceWidgetProvider.updateWidgets(BlockchainServiceImpl.this);
         }
+    };
 
+    private final WalletCoinsReceivedEventListener coinsReceivedListener = new WalletCoinsReceivedEventListener() {
         @Override
         public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
                 final Coin newBalance) {
@@ -168,7 +186,9 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 }
             });
         }
+    };
 
+    private final WalletCoinsSentEventListener coinsSentListener = new WalletCoinsSentEventListener() {
         @Override
         public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
                 final Coin newBalance) {
@@ -303,12 +323,20 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
     }
 
+    private final AtomicInteger blocksLeft = new AtomicInteger(-1);
+
     private final PeerDataEventListener blockchainDownloadListener = new AbstractPeerDataEventListener() {
         private final AtomicLong lastMessageTime = new AtomicLong(0);
 
+        @Override
+        public void onChainDownloadStarted(final Peer peer, final int blocksLeft) {
+            BlockchainServiceImpl.this.blocksLeft.set(blocksLeft);
+        }
+
         @Override
         public void onBlocksDownloaded(final Peer peer, final Block block, final FilteredBlock filteredBlock,
                 final int blocksLeft) {
+            BlockchainServiceImpl.this.blocksLeft.set(blocksLeft);
             delayHandler.removeCallbacksAndMessages(null);
 
             final long now = System.currentTimeMillis();
@@ -392,12 +420,45 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 }
 
                 log.info("starting peergroup");
-                peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain);
+                peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain) {
+                    @Override
+                    protected Peer selectDownloadPeer(final List<Peer> peers) {
+                        // among the peers that are up to date, prefer the one that delivered blocks fastest before
+                        final Peer selected = super.selectDownloadPeer(peers);
+                        if (selected == null)
+                            return null;
+
+                        Peer fastest = selected;
+                        double fastestScore = peerDatabase.getScore(selected.getAddress());
+                        for (final Peer peer : peers) {
+                            final double score = peerDatabase.getScore(peer.getAddress());
+                            if (score > fastestScore && peer.getBestHeight() >= selected.getBestHeight()
+                                    && peer.getPeerVersionMessage().hasBlockChain()) {
+                                fastest = peer;
+                                fastestScore = score;
+                            }
+                        }
+                        if (fastest != selected)
+                            log.info("preferring {} over {} as download peer", fastest, selected);
+                        return fastest;
+                    }
+                };
                 peerGroup.setDownloadTxDependencies(0); // recursive implementation causes StackOverflowError
                 peerGroup.addWallet(wallet);
                 peerGroup.setUserAgent(Constants.USER_AGENT, application.packageInfo().versionName);
                 peerGroup.addConnectedEventListener(peerConnectivityListener);
                 peerGroup.addDisconnectedEventListener(peerConnectivityListener);
+                peerScorer = new PeerScorer(peerDatabase);
+                peerGroup.addConnectedEventListener(Threading.SAME_THREAD, peerScorer);
+                peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, peerScorer);
+                peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, peerScorer);
+                peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, peerScorer);
+                peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, syncMetrics);
+                peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, syncMetrics);
+                peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, syncMetrics);
+                bloomFilterTuner = new BloomFilterTuner(peerGroup, wallet, Constants.BLOOM_FILTER_FALSE_POSITIVE_RATE);
+                bloomFilterTuner.start();
+                peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, bloomFilterTuner);
 
                 final int maxConnectedPeers = application.maxConnectedPeers();
 
@@ -407,11 +468,16 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 final boolean connectTrustedPeerOnly = hasTrustedPeer && config.getTrustedPeerOnly();
                 peerGroup.setMaxConnections(connectTrustedPeerOnly ? 1 : maxConnectedPeers);
                 peerGroup.setMinBroadcastConnections(connectTrustedPeerOnly ? 1 : Constants.PEER_MIN_BROADCAST_CONNECTIONS);
-                peerGroup.setConnectTimeoutMillis(Constants.PEER_TIMEOUT_MS);
+                // known peers usually answer much quicker than the worst case
+                peerGroup.setConnectTimeoutMillis(peerDatabase.getConnectTimeoutMs(
+                        peerDatabase.getBestPeers(maxConnectedPeers, System.currentTimeMillis()),
+                        Constants.PEER_TIMEOUT_MS));
                 peerGroup.setPeerDiscoveryTimeoutMillis(Constants.PEER_DISCOVERY_TIMEOUT_MS);
 
                 peerGroup.addPeerDiscovery(new PeerDiscovery() {
-                    private final PeerDiscovery normalPeerDiscovery = new DnsDiscovery(Constants.NETWORK_PARAMETERS); // SXC only has DNS at the moment
+                    // SXC only has DNS at the moment, so it serves as fallback for the peers we already know
+                    private final PeerDiscovery normalPeerDiscovery = peerDatabase.newDiscovery(
+                            new DnsDiscovery(Constants.NETWORK_PARAMETERS), maxConnectedPeers, discoveryExecutor);
 
                     @Override
                     public InetSocketAddress[] getPeers(final long services, final long timeoutValue,
@@ -464,9 +530,11 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 log.info("stopping peergroup");
                 peerGroup.removeDisconnectedEventListener(peerConnectivityListener);
                 peerGroup.removeConnectedEventListener(peerConnectivityListener);
+                removePeerGroupListeners();
                 peerGroup.removeWallet(wallet);
                 peerGroup.stopAsync();
                 peerGroup = null;
+                blocksLeft.set(-1);
 
                 log.debug("releasing wakelock");
                 wakeLock.release();
@@ -476,6 +544,21 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
     };
 
+    private void removePeerGroupListeners() {
+        peerGroup.removeBlocksDownloadedEventListener(bloomFilterTuner);
+        bloomFilterTuner = null;
+        peerGroup.removeDisconnectedEventListener(syncMetrics);
+        peerGroup.removePreMessageReceivedEventListener(syncMetrics);
+        peerGroup.removeBlocksDownloadedEventListener(syncMetrics);
+        peerGroup.removePreMessageReceivedEventListener(peerScorer);
+        peerGroup.removeBlocksDownloadedEventListener(peerScorer);
+        peerGroup.removeDisconnectedEventListener(peerScorer);
+        peerGroup.removeConnectedEventListener(peerScorer);
+        peerScorer.stop();
+        peerScorer = null;
+        peerDatabase.write(System.currentTimeMillis());
+    }
+
     private final static class ActivityHistoryEntry {
         public final int numTransactionsReceived;
         public final int numBlocksDownloaded;
@@ -544,6 +627,9 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
             }
 
             lastChainHeight = chainHeight;
+
+            // keep the peer database fresh in case the process is killed
+            peerDatabase.write(System.currentTimeMillis());
         }
     };
 
@@ -587,33 +673,71 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         final Wallet wallet = application.getWallet();
 
         peerConnectivityListener = new PeerConnectivityListener();
+        syncMetrics = new SyncMetrics(wallet);
+        peerDatabase = PeerDatabase
+                .read(new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.Files.PEER_DATABASE_FILENAME));
 
         broadcastPeerState(0);
 
         blockChainFile = new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.Files.BLOCKCHAIN_FILENAME);
-        final boolean blockChainFileExists = blockChainFile.exists();
+        boolean blockChainFileExists = blockChainFile.exists();
+
+        final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        final int memoryClass = activityManager.getMemoryClass();
+        final boolean lowRamDevice = ActivityManagerCompat.isLowRamDevice(activityManager);
+        final long usableSpace = blockChainFile.getParentFile().getUsableSpace();
+
+        if (blockChainFileExists) {
+            // detect corruptions as early as possible, without deserializing blocks
+            final String problem = RingBlockStore.verify(blockChainFile);
+            if (problem != null) {
+                log.warn("blockchain corrupt ({}), deleting", problem);
+                blockChainFile.delete();
+                blockChainFileExists = false;
+            }
+        }
 
         if (!blockChainFileExists) {
             log.info("blockchain does not exist, resetting wallet");
             wallet.reset();
+            application.getWalletBalances().invalidate();
         }
 
         try {
-            blockStore = new SPVBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile);
-            blockStore.getChainHead(); // detect corruptions as early as possible
+            final RingBlockStore ringBlockStore = new RingBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile,
+                    RingBlockStore.capacityFor(memoryClass, lowRamDevice, usableSpace));
+            blockStore = ringBlockStore;
+
+            // an existing store is opened at its current size and resized, if at all, in the background
+            final int blockStoreCapacity = RingBlockStore.capacityFor(memoryClass, lowRamDevice, usableSpace,
+                    ringBlockStore.getCapacity());
+            if (blockStoreCapacity != ringBlockStore.getCapacity())
+                resizeBlockStore(ringBlockStore, blockStoreCapacity);
 
             final long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
 
             if (!blockChainFileExists && earliestKeyCreationTime > 0) {
+                final Stopwatch watch = Stopwatch.createStarted();
                 try {
-                    final Stopwatch watch = Stopwatch.createStarted();
-                    final InputStream checkpointsInputStream = getAssets().open(Constants.Files.CHECKPOINTS_FILENAME);
-                    CheckpointManager.checkpoint(Constants.NETWORK_PARAMETERS, checkpointsInputStream, blockStore,
-                            earliestKeyCreationTime);
+                    final MappedCheckpoints checkpoints = MappedCheckpoints.open(getAssets(),
+                            Constants.Files.CHECKPOINTS_BINARY_FILENAME, Constants.NETWORK_PARAMETERS);
+                    checkpoints.checkpoint(blockStore, earliestKeyCreationTime);
                     watch.stop();
-                    log.info("checkpoints loaded from '{}', took {}", Constants.Files.CHECKPOINTS_FILENAME, watch);
+                    log.info("{} checkpoints mapped from '{}', took {}", checkpoints.size(),
+                            Constants.Files.CHECKPOINTS_BINARY_FILENAME, watch);
                 } catch (final IOException x) {
-                    log.error("problem reading checkpoints, continuing without", x);
+                    log.info("cannot map binary checkpoints, falling back to text: {}", x.getMessage());
+
+                    try {
+                        final InputStream checkpointsInputStream = getAssets()
+                                .open(Constants.Files.CHECKPOINTS_FILENAME);
+                        CheckpointManager.checkpoint(Constants.NETWORK_PARAMETERS, checkpointsInputStream, blockStore,
+                                earliestKeyCreationTime);
+                        watch.stop();
+                        log.info("checkpoints loaded from '{}', took {}", Constants.Files.CHECKPOINTS_FILENAME, watch);
+                    } catch (final IOException x2) {
+                        log.error("problem reading checkpoints, continuing without", x2);
+                    }
                 }
             }
         } catch (final BlockStoreException x) {
@@ -625,24 +749,70 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
 
         try {
-            blockChain = new BlockChain(Constants.NETWORK_PARAMETERS, wallet, blockStore);
+            blockChain = new BlockChain(Constants.NETWORK_PARAMETERS, wallet, blockStore) {
+                @Override
+                public boolean add(final Block block) throws VerificationException, PrunedException {
+                    final long start = System.nanoTime();
+                    try {
+                        return super.add(block);
+                    } finally {
+                        syncMetrics.recordAddLatency(System.nanoTime() - start);
+                    }
+                }
+
+                @Override
+                public boolean add(final FilteredBlock block) throws VerificationException, PrunedException {
+                    final long start = System.nanoTime();
+                    try {
+                        return super.add(block);
+                    } finally {
+                        syncMetrics.recordAddLatency(System.nanoTime() - start);
+                    }
+                }
+            };
         } catch (final BlockStoreException x) {
             throw new Error("blockchain cannot be created", x);
         }
 
+        recentBlocks = new RecentBlocks(blockStore, MAX_RECENT_BLOCKS);
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, recentBlocks);
+        blockChain.addReorganizeListener(Threading.SAME_THREAD, recentBlocks);
+        // registered after the wallet, so that the journal sees its outcome
+        blockChain.addTransactionReceivedListener(Threading.SAME_THREAD, application.getWalletJournal());
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, application.getWalletJournal());
+
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
         intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
         registerReceiver(connectivityReceiver, intentFilter); // implicitly start PeerGroup
 
-        application.getWallet().addCoinsReceivedEventListener(Threading.SAME_THREAD, walletEventListener);
-        application.getWallet().addCoinsSentEventListener(Threading.SAME_THREAD, walletEventListener);
-        application.getWallet().addChangeEventListener(Threading.SAME_THREAD, walletEventListener);
+        application.getWallet().addCoinsReceivedEventListener(Threading.SAME_THREAD, coinsReceivedListener);
+        application.getWallet().addCoinsSentEventListener(Threading.SAME_THREAD, coinsSentListener);
+        application.getWalletEventHub().subscribe(walletEventListener, WalletEventHub.BALANCE, APPWIDGET_THROTTLE_MS);
 
         registerReceiver(tickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
     }
 
+    private static void resizeBlockStore(final RingBlockStore blockStore, final int capacity) {
+        final HandlerThread backgroundThread = new HandlerThread("blockStoreResize",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        new Handler(backgroundThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blockStore.resize(capacity);
+                } catch (final BlockStoreException x) {
+                    log.warn("cannot resize blockchain to {} blocks, keeping current size: {}", capacity,
+                            x.getMessage());
+                } finally {
+                    backgroundThread.getLooper().quit();
+                }
+            }
+        });
+    }
+
     @Override
     public int onStartCommand(final Intent intent, final int flags, final int startId) {
         if (intent != null) {
@@ -689,15 +859,16 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
         unregisterReceiver(tickReceiver);
 
-        application.getWallet().removeChangeEventListener(walletEventListener);
-        application.getWallet().removeCoinsSentEventListener(walletEventListener);
-        application.getWallet().removeCoinsReceivedEventListener(walletEventListener);
+        application.getWalletEventHub().unsubscribe(walletEventListener);
+        application.getWallet().removeCoinsSentEventListener(coinsSentListener);
+        application.getWallet().removeCoinsReceivedEventListener(coinsReceivedListener);
 
         unregisterReceiver(connectivityReceiver);
 
         if (peerGroup != null) {
             peerGroup.removeDisconnectedEventListener(peerConnectivityListener);
             peerGroup.removeConnectedEventListener(peerConnectivityListener);
+            removePeerGroupListeners();
             peerGroup.removeWallet(application.getWallet());
             peerGroup.stop();
 
@@ -705,6 +876,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
 
         peerConnectivityListener.stop();
+        discoveryExecutor.shutdownNow();
 
         delayHandler.removeCallbacksAndMessages(null);
 
@@ -743,6 +915,11 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
     }
 
+    @Override
+    public SyncStats getSyncStats() {
+        return syncMetrics.getStats(application.getLastAutosaveMs(), application.getMaxAutosaveMs());
+    }
+
     @Override
     public BlockchainState getBlockchainState() {
         final StoredBlock chainHead = blockChain.getChainHead();
@@ -750,7 +927,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         final int bestChainHeight = chainHead.getHeight();
         final boolean replaying = chainHead.getHeight() < config.getBestChainHeightEver();
 
-        return new BlockchainState(bestChainDate, bestChainHeight, replaying, impediments);
+        return new BlockchainState(bestChainDate, bestChainHeight, replaying, blocksLeft.get(), impediments);
     }
 
     @Override
@@ -763,24 +940,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
     @Override
     public List<StoredBlock> getRecentBlocks(final int maxBlocks) {
-        final List<StoredBlock> blocks = new ArrayList<StoredBlock>(maxBlocks);
-
-        try {
-            StoredBlock block = blockChain.getChainHead();
-
-            while (block != null) {
-                blocks.add(block);
-
-                if (blocks.size() >= maxBlocks)
-                    break;
-
-                block = block.getPrev(blockStore);
-            }
-        } catch (final BlockStoreException x) {
-            // swallow
-        }
-
-        return blocks;
+        return recentBlocks.get(maxBlocks, blockChain.getChainHead());
     }
 
     private void broadcastPeerState(final int numPeers) {
@@ -30,6 +30,7 @@ public class BlockchainState {
     private static final String EXTRA_BEST_CHAIN_DATE = "best_chain_date";
     private static final String EXTRA_BEST_CHAIN_HEIGHT = "best_chain_height";
     private static final String EXTRA_REPLAYING = "replaying";
+    private static final String EXTRA_BLOCKS_LEFT = "blocks_left";
     private static final String EXTRA_IMPEDIMENTS = "impediment";
 
     public enum Impediment {
@@ -39,13 +40,16 @@ public class BlockchainState {
     public final Date bestChainDate;
     public final int bestChainHeight;
     public final boolean replaying;
+    /** Blocks left to download according to the download peer, or -1 if not downloading. */
+    public final int blocksLeft;
     public final EnumSet<Impediment> impediments;
 
     public BlockchainState(final Date bestChainDate, final int bestChainHeight, final boolean replaying,
-            final Set<Impediment> impediments) {
+            final int blocksLeft, final Set<Impediment> impediments) {
         this.bestChainDate = bestChainDate;
         this.bestChainHeight = bestChainHeight;
         this.replaying = replaying;
+        this.blocksLeft = blocksLeft;
         this.impediments = EnumSet.copyOf(impediments);
     }
 
@@ -53,16 +57,18 @@ public class BlockchainState {
         final Date bestChainDate = (Date) intent.getSerializableExtra(EXTRA_BEST_CHAIN_DATE);
         final int bestChainHeight = intent.getIntExtra(EXTRA_BEST_CHAIN_HEIGHT, -1);
         final boolean replaying = intent.getBooleanExtra(EXTRA_REPLAYING, false);
+        final int blocksLeft = intent.getIntExtra(EXTRA_BLOCKS_LEFT, -1);
         @SuppressWarnings("unchecked")
         final Set<Impediment> impediments = (Set<Impediment>) intent.getSerializableExtra(EXTRA_IMPEDIMENTS);
 
-        return new BlockchainState(bestChainDate, bestChainHeight, replaying, impediments);
+        return new BlockchainState(bestChainDate, bestChainHeight, replaying, blocksLeft, impediments);
     }
 
     public void putExtras(final Intent intent) {
         intent.putExtra(EXTRA_BEST_CHAIN_DATE, bestChainDate);
         intent.putExtra(EXTRA_BEST_CHAIN_HEIGHT, bestChainHeight);
         intent.putExtra(EXTRA_REPLAYING, replaying);
+        intent.putExtra(EXTRA_BLOCKS_LEFT, blocksLeft);
         intent.putExtra(EXTRA_IMPEDIMENTS, impediments);
     }
 }
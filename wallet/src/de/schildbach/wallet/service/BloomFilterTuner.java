@@ -0,0 +1,112 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PeerGroup.FilterRecalculateMode;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.text.format.DateUtils;
+
+/**
+ * Measures the false-positive rate of the Bloom filter from filtered blocks and pushes a freshly calculated filter to
+ * the peers once it degrades well beyond the target, e.g. because new keys were added to the wallet. This is much
+ * tighter than the safety net built into {@link PeerGroup}, which only kicks in at ten times the target.
+ */
+final class BloomFilterTuner implements BlocksDownloadedEventListener {
+    private final PeerGroup peerGroup;
+    private final Wallet wallet;
+    private final double targetRate;
+
+    private long numFalsePositives = 0;
+    private long numIrrelevantTransactions = 0;
+    private long lastRefreshAt = 0;
+
+    /** How much the observed rate may exceed the target before the filter is refreshed. */
+    static final double DEGRADATION_FACTOR = 3;
+    /** Number of false positives needed as evidence, so that noise doesn't trigger refreshes. */
+    static final int MIN_FALSE_POSITIVES = 20;
+    /** A sample is considered healthy once it's large enough to expect this many false positives at the target. */
+    static final int EXPECTED_FALSE_POSITIVES = 10;
+    /** Refreshing the filter costs a round trip to all peers, so don't do it too often. */
+    static final long MIN_REFRESH_INTERVAL_MS = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final Logger log = LoggerFactory.getLogger(BloomFilterTuner.class);
+
+    public BloomFilterTuner(final PeerGroup peerGroup, final Wallet wallet, final double targetRate) {
+        this.peerGroup = peerGroup;
+        this.wallet = wallet;
+        this.targetRate = targetRate;
+    }
+
+    /**
+     * Applies the target rate to the peer group. Call before the peer group starts.
+     */
+    public void start() {
+        peerGroup.setBloomFilterFalsePositiveRate(targetRate);
+        lastRefreshAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onBlocksDownloaded(final Peer peer, final Block block, @Nullable final FilteredBlock filteredBlock,
+            final int blocksLeft) {
+        if (filteredBlock == null)
+            return;
+
+        final FalsePositives falsePositives = FalsePositives.of(filteredBlock, wallet);
+        if (record(falsePositives.falsePositives, falsePositives.irrelevantTransactions, System.currentTimeMillis()))
+            peerGroup.recalculateFastCatchupAndFilter(FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+    }
+
+    /**
+     * Accumulates observations and returns if the filter should be refreshed now.
+     */
+    synchronized boolean record(final int falsePositives, final int irrelevantTransactions, final long now) {
+        numFalsePositives += falsePositives;
+        numIrrelevantTransactions += irrelevantTransactions;
+        if (numIrrelevantTransactions == 0)
+            return false;
+
+        final double observedRate = FalsePositives.rate(numFalsePositives, numIrrelevantTransactions);
+        if (numFalsePositives < MIN_FALSE_POSITIVES || observedRate <= targetRate * DEGRADATION_FACTOR) {
+            if (numIrrelevantTransactions * targetRate >= EXPECTED_FALSE_POSITIVES) {
+                // healthy, start a new sample so that degradation is noticed quickly
+                numFalsePositives = 0;
+                numIrrelevantTransactions = 0;
+            }
+            return false;
+        }
+        if (now - lastRefreshAt < MIN_REFRESH_INTERVAL_MS)
+            return false;
+
+        log.info("bloom filter false-positive rate {} exceeds target {}, refreshing filter",
+                String.format("%.6f", observedRate), targetRate);
+        numFalsePositives = 0;
+        numIrrelevantTransactions = 0;
+        lastRefreshAt = now;
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.List;
+
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * False positives a filtered block brought in, i.e. transactions that matched the Bloom filter but aren't relevant to
+ * the wallet. Both {@link SyncMetrics} and {@link BloomFilterTuner} count and rate them this way, so that the rate they
+ * report and act on is the same.
+ */
+final class FalsePositives {
+    public final int falsePositives;
+    public final int irrelevantTransactions;
+
+    private FalsePositives(final int falsePositives, final int irrelevantTransactions) {
+        this.falsePositives = falsePositives;
+        this.irrelevantTransactions = irrelevantTransactions;
+    }
+
+    /**
+     * Counts the false positives of a filtered block. Relevant transactions have already been received by the wallet
+     * when blocks downloaded listeners are called.
+     */
+    public static FalsePositives of(final FilteredBlock filteredBlock, final Wallet wallet) {
+        // every matched transaction, including those the peer didn't send because they're already known
+        final List<Sha256Hash> matched = filteredBlock.getTransactionHashes();
+        int numRelevant = 0;
+        for (final Sha256Hash hash : matched)
+            if (wallet.getTransaction(hash) != null)
+                numRelevant++;
+        final int numTotal = filteredBlock.getPartialMerkleTree().getTransactionCount();
+        return new FalsePositives(matched.size() - numRelevant, numTotal - numRelevant);
+    }
+
+    /**
+     * Returns the false-positive rate of the accumulated counts, or -1 if there were no irrelevant transactions yet.
+     */
+    public static double rate(final long falsePositives, final long irrelevantTransactions) {
+        return irrelevantTransactions > 0 ? (double) falsePositives / irrelevantTransactions : -1;
+    }
+}
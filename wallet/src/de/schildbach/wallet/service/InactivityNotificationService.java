@@ -19,7 +19,6 @@ package de.schildbach.wallet.service;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,7 +53,6 @@ public final class InactivityNotificationService extends IntentService {
     private NotificationManager nm;
     private WalletApplication application;
     private Configuration config;
-    private Wallet wallet;
 
     private static final String ACTION_DISMISS = InactivityNotificationService.class.getPackage().getName()
             + ".dismiss";
@@ -77,7 +75,6 @@ public final class InactivityNotificationService extends IntentService {
         nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         application = (WalletApplication) getApplication();
         config = application.getConfiguration();
-        wallet = application.getWallet();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             final NotificationCompat.Builder notification = new NotificationCompat.Builder(this,
@@ -104,12 +101,12 @@ public final class InactivityNotificationService extends IntentService {
     }
 
     private void handleMaybeShowNotification() {
-        final Coin estimatedBalance = wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE);
+        final Coin estimatedBalance = application.getWalletBalances().get(BalanceType.ESTIMATED_SPENDABLE);
 
         if (estimatedBalance.isPositive()) {
             log.info("detected balance, showing inactivity notification");
 
-            final Coin availableBalance = wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE);
+            final Coin availableBalance = application.getWalletBalances().get(BalanceType.AVAILABLE_SPENDABLE);
             final boolean canDonate = Constants.DONATION_ADDRESS != null && availableBalance.isPositive();
 
             final MonetaryFormat btcFormat = config.getFormat();
@@ -162,7 +159,7 @@ public final class InactivityNotificationService extends IntentService {
     }
 
     private void handleDonate() {
-        final Coin balance = wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE);
+        final Coin balance = application.getWalletBalances().get(BalanceType.AVAILABLE_SPENDABLE);
         SendCoinsActivity.startDonate(this, balance, FeeCategory.ECONOMIC,
                 Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         nm.cancel(Constants.NOTIFICATION_ID_INACTIVITY);
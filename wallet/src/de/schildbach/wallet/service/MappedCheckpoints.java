@@ -0,0 +1,121 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Checkpoints in the binary format produced at build time from the textual checkpoints: a header of magic, version,
+ * count and stride, followed by fixed-stride records of height, time and the compact serialization of the stored
+ * block, ordered by time. The file is memory-mapped and searched in place, so the cost of checkpointing doesn't
+ * depend on the number of checkpoints.
+ */
+final class MappedCheckpoints {
+    private static final int MAGIC = 0x434b5054; // "CKPT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 4 + 4 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    private final NetworkParameters params;
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private MappedCheckpoints(final NetworkParameters params, final ByteBuffer buffer) throws IOException {
+        this.params = params;
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("not a binary checkpoints file");
+        this.count = buffer.getInt(8);
+        if (buffer.getInt(12) != RECORD_SIZE || buffer.capacity() < HEADER_SIZE + count * RECORD_SIZE)
+            throw new IOException("truncated or incompatible binary checkpoints file");
+    }
+
+    /**
+     * Maps the given asset. It needs to be stored uncompressed in the APK.
+     */
+    public static MappedCheckpoints open(final AssetManager assets, final String filename,
+            final NetworkParameters params) throws IOException {
+        final AssetFileDescriptor fd = assets.openFd(filename);
+        final FileInputStream is = fd.createInputStream();
+        try {
+            final MappedByteBuffer buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+                    fd.getLength());
+            return new MappedCheckpoints(params, buffer);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            is.close();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the last checkpoint at or before the given time, or the genesis block if there is none. Same semantics
+     * as {@link org.bitcoinj.core.CheckpointManager#getCheckpointBefore(long)}.
+     */
+    public StoredBlock getCheckpointBefore(final long timeSecs) {
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long time = buffer.getInt(HEADER_SIZE + mid * RECORD_SIZE + 4) & 0xffffffffL;
+            if (time <= timeSecs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found == -1) {
+            final Block genesis = params.getGenesisBlock().cloneAsHeader();
+            return new StoredBlock(genesis, genesis.getWork(), 0);
+        }
+
+        final ByteBuffer record = buffer.duplicate();
+        record.position(HEADER_SIZE + found * RECORD_SIZE + 8);
+        return StoredBlock.deserializeCompact(params, record);
+    }
+
+    /**
+     * Puts the checkpoint matching the given time into the store and makes it the chain head. Same semantics as
+     * {@link org.bitcoinj.core.CheckpointManager#checkpoint}, including the safety margin of one week.
+     */
+    public void checkpoint(final BlockStore store, final long timeSecs) throws BlockStoreException {
+        final StoredBlock checkpoint = getCheckpointBefore(timeSecs - 60 * 60 * 24 * 7);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+}
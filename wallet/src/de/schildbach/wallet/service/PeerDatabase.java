@@ -0,0 +1,440 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.net.discovery.PeerDiscovery;
+import org.bitcoinj.net.discovery.PeerDiscoveryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import com.google.common.primitives.Longs;
+
+import android.text.format.DateUtils;
+
+/**
+ * Persistent record of the peers we connected to: how often the handshake succeeded or failed, the round trip time
+ * and the block download throughput. Peers announced by other peers are remembered as well. Used to start syncing on
+ * the best known peers right away, with DNS seeds as the fallback.
+ */
+final class PeerDatabase {
+    private final File file;
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    private boolean dirty = false;
+
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final int MAX_ENTRIES = 256;
+    private static final long MAX_AGE_MS = 30 * DateUtils.DAY_IN_MILLIS;
+    private static final long FAILURE_BACKOFF_MS = 10 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long UNKNOWN_LATENCY_MS = DateUtils.SECOND_IN_MILLIS;
+    private static final int MIN_CONNECT_TIMEOUT_MS = 10 * (int) DateUtils.SECOND_IN_MILLIS;
+
+    private static final Logger log = LoggerFactory.getLogger(PeerDatabase.class);
+
+    static final class Entry {
+        int successes = 0;
+        int failures = 0;
+        int consecutiveFailures = 0;
+        long lastSeenAt = 0;
+        long lastFailureAt = 0;
+        long latencyMs = -1;
+        double blocksPerSecond = 0;
+
+        boolean isBackedOff(final long now) {
+            return consecutiveFailures > 0 && now - lastFailureAt < FAILURE_BACKOFF_MS * consecutiveFailures;
+        }
+
+        /** Higher is better: expected throughput, discounted by round trip time and reliability. */
+        double score() {
+            final double reliability = (successes + 1.0) / (successes + failures + 2.0);
+            final long latency = latencyMs >= 0 ? latencyMs : UNKNOWN_LATENCY_MS;
+            return reliability * (1 + blocksPerSecond) / (1 + latency / 100.0);
+        }
+
+        @Override
+        public String toString() {
+            return successes + " ok, " + failures + " failed, " + latencyMs + " ms, "
+                    + String.format("%.1f", blocksPerSecond) + " blocks/s";
+        }
+    }
+
+    PeerDatabase(final File file) {
+        this.file = file;
+    }
+
+    public synchronized void recordSuccess(final InetSocketAddress address, final long now) {
+        final Entry entry = entry(address);
+        entry.successes++;
+        entry.consecutiveFailures = 0;
+        entry.lastSeenAt = now;
+        dirty = true;
+    }
+
+    public synchronized void recordFailure(final InetSocketAddress address, final long now) {
+        final Entry entry = entry(address);
+        entry.failures++;
+        entry.consecutiveFailures++;
+        entry.lastFailureAt = now;
+        if (entry.lastSeenAt == 0)
+            entry.lastSeenAt = now;
+        dirty = true;
+    }
+
+    /**
+     * Records a peer that was announced by another peer. Announcements never push out peers that we actually
+     * connected to.
+     */
+    public synchronized void recordLearned(final InetSocketAddress address, final long seenAt, final long now) {
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(address))
+            return;
+        final Entry entry = entry(address);
+        entry.lastSeenAt = Math.max(entry.lastSeenAt, Math.min(seenAt, now));
+        dirty = true;
+    }
+
+    public synchronized void recordLatency(final InetSocketAddress address, final long latencyMs) {
+        final Entry entry = entry(address);
+        // exponentially weighted, so that a peer that became slow is ranked down quickly
+        entry.latencyMs = entry.latencyMs < 0 ? latencyMs : (entry.latencyMs + latencyMs) / 2;
+        dirty = true;
+    }
+
+    public synchronized void recordThroughput(final InetSocketAddress address, final int numBlocks,
+            final long durationMs) {
+        if (numBlocks <= 0 || durationMs <= 0)
+            return;
+        final Entry entry = entry(address);
+        final double blocksPerSecond = numBlocks * 1000.0 / durationMs;
+        entry.blocksPerSecond = entry.blocksPerSecond == 0 ? blocksPerSecond
+                : (entry.blocksPerSecond + blocksPerSecond) / 2;
+        dirty = true;
+    }
+
+    /**
+     * Returns the score of the given peer, higher is better, or 0 if it is unknown.
+     */
+    public synchronized double getScore(final PeerAddress peerAddress) {
+        final InetAddress addr = peerAddress.getAddr();
+        final Entry entry = addr != null ? entries.get(new InetSocketAddress(addr, peerAddress.getPort())) : null;
+        return entry != null ? entry.score() : 0;
+    }
+
+    /**
+     * Returns up to {@code maxPeers} known peers, best first. Peers that failed recently or were not seen for a long
+     * time are left out.
+     */
+    public synchronized List<InetSocketAddress> getBestPeers(final int maxPeers, final long now) {
+        final List<Map.Entry<InetSocketAddress, Entry>> candidates = new ArrayList<Map.Entry<InetSocketAddress, Entry>>();
+        for (final Map.Entry<InetSocketAddress, Entry> entry : entries.entrySet())
+            if (entry.getValue().successes > 0 && !entry.getValue().isBackedOff(now)
+                    && now - entry.getValue().lastSeenAt < MAX_AGE_MS)
+                candidates.add(entry);
+        Collections.sort(candidates, BEST_FIRST);
+
+        final List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>(Math.min(maxPeers, candidates.size()));
+        for (final Map.Entry<InetSocketAddress, Entry> candidate : candidates) {
+            if (peers.size() >= maxPeers)
+                break;
+            peers.add(candidate.getKey());
+        }
+        return peers;
+    }
+
+    /**
+     * Returns up to {@code maxPeers} peers that were only learned about from other peers, most recently seen first.
+     */
+    public synchronized List<InetSocketAddress> getLearnedPeers(final int maxPeers, final long now) {
+        final List<Map.Entry<InetSocketAddress, Entry>> candidates = new ArrayList<Map.Entry<InetSocketAddress, Entry>>();
+        for (final Map.Entry<InetSocketAddress, Entry> entry : entries.entrySet())
+            if (entry.getValue().successes == 0 && !entry.getValue().isBackedOff(now)
+                    && now - entry.getValue().lastSeenAt < MAX_AGE_MS)
+                candidates.add(entry);
+        Collections.sort(candidates, MOST_RECENT_FIRST);
+
+        final List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>(Math.min(maxPeers, candidates.size()));
+        for (final Map.Entry<InetSocketAddress, Entry> candidate : candidates) {
+            if (peers.size() >= maxPeers)
+                break;
+            peers.add(candidate.getKey());
+        }
+        return peers;
+    }
+
+    /**
+     * Returns a connect timeout that leaves generous room for the slowest of the given peers, rather than the static
+     * worst case.
+     */
+    public synchronized int getConnectTimeoutMs(final List<InetSocketAddress> peers, final int maxTimeoutMs) {
+        long worstLatencyMs = 0;
+        for (final InetSocketAddress peer : peers) {
+            final Entry entry = entries.get(peer);
+            if (entry == null || entry.latencyMs < 0)
+                return maxTimeoutMs;
+            worstLatencyMs = Math.max(worstLatencyMs, entry.latencyMs);
+        }
+        if (peers.isEmpty())
+            return maxTimeoutMs;
+        return (int) Math.max(MIN_CONNECT_TIMEOUT_MS, Math.min(maxTimeoutMs, worstLatencyMs * 20));
+    }
+
+    synchronized Entry get(final InetSocketAddress address) {
+        return entries.get(address);
+    }
+
+    private Entry entry(final InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    private static final Comparator<Map.Entry<InetSocketAddress, Entry>> BEST_FIRST = new Comparator<Map.Entry<InetSocketAddress, Entry>>() {
+        @Override
+        public int compare(final Map.Entry<InetSocketAddress, Entry> entry1,
+                final Map.Entry<InetSocketAddress, Entry> entry2) {
+            return Double.compare(entry2.getValue().score(), entry1.getValue().score());
+        }
+    };
+
+    private static final Comparator<Map.Entry<InetSocketAddress, Entry>> MOST_RECENT_FIRST = new Comparator<Map.Entry<InetSocketAddress, Entry>>() {
+        @Override
+        public int compare(final Map.Entry<InetSocketAddress, Entry> entry1,
+                final Map.Entry<InetSocketAddress, Entry> entry2) {
+            return Longs.compare(entry2.getValue().lastSeenAt, entry1.getValue().lastSeenAt);
+        }
+    };
+
+    /**
+     * Returns a discovery that offers known peers right away. The fallback discovery runs in the background meanwhile,
+     * and only if there are no known peers, or on subsequent calls because connecting to them didn't work out, its
+     * result is waited for.
+     */
+    public PeerDiscovery newDiscovery(final PeerDiscovery fallback, final int minKnownPeers, final Executor executor) {
+        return new PeerDiscovery() {
+            private FutureTask<InetSocketAddress[]> fallbackTask = null;
+            private boolean offeredKnownPeers = false;
+
+            @Override
+            public InetSocketAddress[] getPeers(final long services, final long timeoutValue,
+                    final TimeUnit timeoutUnit) throws PeerDiscoveryException {
+                final long now = System.currentTimeMillis();
+                final List<InetSocketAddress> knownPeers = getBestPeers(MAX_ENTRIES, now);
+                final List<InetSocketAddress> learnedPeers = getLearnedPeers(MAX_ENTRIES, now);
+
+                if (fallbackTask == null) {
+                    fallbackTask = new FutureTask<InetSocketAddress[]>(new Callable<InetSocketAddress[]>() {
+                        @Override
+                        public InetSocketAddress[] call() throws PeerDiscoveryException {
+                            return fallback.getPeers(services, timeoutValue, timeoutUnit);
+                        }
+                    });
+                    executor.execute(fallbackTask);
+                }
+
+                if (!offeredKnownPeers && !knownPeers.isEmpty()) {
+                    offeredKnownPeers = true;
+                    final List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>(minKnownPeers);
+                    for (final InetSocketAddress peer : Iterables.concat(knownPeers, learnedPeers)) {
+                        if (peers.size() >= minKnownPeers)
+                            break;
+                        peers.add(peer);
+                    }
+                    log.info("discovered {} known peers, fallback discovery continues in background", peers.size());
+                    return peers.toArray(new InetSocketAddress[0]);
+                }
+
+                final Set<InetSocketAddress> peers = new LinkedHashSet<InetSocketAddress>(knownPeers);
+                try {
+                    peers.addAll(Arrays.asList(fallbackTask.get(timeoutValue, timeoutUnit)));
+                } catch (final InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new PeerDiscoveryException(x);
+                } catch (final ExecutionException x) {
+                    if (knownPeers.isEmpty() && learnedPeers.isEmpty())
+                        throw new PeerDiscoveryException(x.getCause());
+                    log.info("fallback discovery failed: {}", x.getCause().getMessage());
+                } catch (final TimeoutException x) {
+                    if (knownPeers.isEmpty() && learnedPeers.isEmpty())
+                        throw new PeerDiscoveryException(x);
+                    log.info("fallback discovery timed out");
+                } finally {
+                    // next round asks the fallback again
+                    fallbackTask.cancel(true);
+                    fallbackTask = null;
+                }
+                peers.addAll(learnedPeers);
+                log.info("discovered {} known peers, {} in total", knownPeers.size(), peers.size());
+                return peers.toArray(new InetSocketAddress[0]);
+            }
+
+            @Override
+            public void shutdown() {
+                if (fallbackTask != null)
+                    fallbackTask.cancel(true);
+                fallback.shutdown();
+            }
+        };
+    }
+
+    public static PeerDatabase read(final File file) {
+        final PeerDatabase database = new PeerDatabase(file);
+        if (!file.exists())
+            return database;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        DataInputStream is = null;
+
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (is.readInt() != FILE_FORMAT_VERSION) {
+                log.info("discarding peer database of unknown format: '{}'", file);
+                file.delete();
+                return database;
+            }
+
+            final int numEntries = is.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                final byte[] addr = new byte[is.readUnsignedByte()];
+                is.readFully(addr);
+                final int port = is.readUnsignedShort();
+                final Entry entry = new Entry();
+                entry.successes = is.readInt();
+                entry.failures = is.readInt();
+                entry.consecutiveFailures = is.readInt();
+                entry.lastSeenAt = is.readLong();
+                entry.lastFailureAt = is.readLong();
+                entry.latencyMs = is.readLong();
+                entry.blocksPerSecond = is.readDouble();
+                database.entries.put(new InetSocketAddress(InetAddress.getByAddress(addr), port), entry);
+            }
+
+            watch.stop();
+            log.info("peer database loaded from: '{}', {} peers, took {}", file, numEntries, watch);
+        } catch (final IOException x) {
+            log.warn("problem loading peer database, discarding: '" + file + "'", x);
+            database.entries.clear();
+            file.delete();
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+
+        return database;
+    }
+
+    /**
+     * Writes the database if it changed, dropping stale peers and keeping the best ones if there are too many. The
+     * file is replaced atomically.
+     */
+    public synchronized void write(final long now) {
+        if (!dirty)
+            return;
+
+        for (final Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+            if (now - i.next().lastSeenAt >= MAX_AGE_MS)
+                i.remove();
+        if (entries.size() > MAX_ENTRIES) {
+            final List<Map.Entry<InetSocketAddress, Entry>> sorted = new ArrayList<Map.Entry<InetSocketAddress, Entry>>(
+                    entries.entrySet());
+            Collections.sort(sorted, BEST_FIRST);
+            for (final Map.Entry<InetSocketAddress, Entry> entry : sorted.subList(MAX_ENTRIES, sorted.size()))
+                entries.remove(entry.getKey());
+        }
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream os = null;
+
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            os.writeInt(FILE_FORMAT_VERSION);
+            os.writeInt(entries.size());
+            for (final Map.Entry<InetSocketAddress, Entry> e : entries.entrySet()) {
+                final byte[] addr = e.getKey().getAddress().getAddress();
+                final Entry entry = e.getValue();
+                os.writeByte(addr.length);
+                os.write(addr);
+                os.writeShort(e.getKey().getPort());
+                os.writeInt(entry.successes);
+                os.writeInt(entry.failures);
+                os.writeInt(entry.consecutiveFailures);
+                os.writeLong(entry.lastSeenAt);
+                os.writeLong(entry.lastFailureAt);
+                os.writeLong(entry.latencyMs);
+                os.writeDouble(entry.blocksPerSecond);
+            }
+            os.close();
+            os = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("cannot rename " + tempFile + " to " + file);
+            dirty = false;
+
+            watch.stop();
+            log.info("peer database saved to: '{}', {} peers, took {}", file, entries.size(), watch);
+        } catch (final IOException x) {
+            log.warn("problem saving peer database", x);
+            tempFile.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AddressMessage;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.core.listeners.PeerConnectedEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Feeds the {@link PeerDatabase} from peer group events: a peer that dies before completing the handshake counts as
+ * failure, a connected peer is pinged once to measure its round trip time and the blocks it delivers are timed. Peers
+ * announced via address messages are remembered, too.
+ */
+final class PeerScorer implements PeerConnectedEventListener, PeerDisconnectedEventListener,
+        BlocksDownloadedEventListener, PreMessageReceivedEventListener {
+    private final PeerDatabase database;
+    private final Map<Peer, Session> sessions = new IdentityHashMap<Peer, Session>();
+
+    private static final int MIN_BLOCKS_FOR_THROUGHPUT = 10;
+
+    private static final class Session {
+        int numBlocks = 0;
+        long firstBlockAt = 0;
+        long lastBlockAt = 0;
+    }
+
+    public PeerScorer(final PeerDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    public void onPeerConnected(final Peer peer, final int peerCount) {
+        final InetSocketAddress address = addressOf(peer);
+        if (address == null)
+            return;
+
+        database.recordSuccess(address, System.currentTimeMillis());
+        synchronized (sessions) {
+            sessions.put(peer, new Session());
+        }
+
+        try {
+            Futures.addCallback(peer.ping(), new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(final Long latencyMs) {
+                    database.recordLatency(address, latencyMs);
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    // peer went away, which is recorded on disconnect
+                }
+            });
+        } catch (final ProtocolException x) {
+            // peer doesn't support ping, rank it by throughput only
+        }
+    }
+
+    @Override
+    public void onBlocksDownloaded(final Peer peer, final Block block, @Nullable final FilteredBlock filteredBlock,
+            final int blocksLeft) {
+        final long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            final Session session = sessions.get(peer);
+            if (session == null)
+                return;
+            if (session.numBlocks++ == 0)
+                session.firstBlockAt = now;
+            session.lastBlockAt = now;
+        }
+    }
+
+    @Override
+    public Message onPreMessageReceived(final Peer peer, final Message m) {
+        if (m instanceof AddressMessage) {
+            final long now = System.currentTimeMillis();
+            for (final PeerAddress peerAddress : ((AddressMessage) m).getAddresses()) {
+                final InetAddress addr = peerAddress.getAddr();
+                if (addr != null)
+                    database.recordLearned(new InetSocketAddress(addr, peerAddress.getPort()),
+                            peerAddress.getTime() * 1000, now);
+            }
+        }
+        return m;
+    }
+
+    @Override
+    public void onPeerDisconnected(final Peer peer, final int peerCount) {
+        final InetSocketAddress address = addressOf(peer);
+        if (address == null)
+            return;
+
+        final Session session;
+        synchronized (sessions) {
+            session = sessions.remove(peer);
+        }
+        if (session == null)
+            database.recordFailure(address, System.currentTimeMillis());
+        else if (session.numBlocks >= MIN_BLOCKS_FOR_THROUGHPUT)
+            database.recordThroughput(address, session.numBlocks - 1, session.lastBlockAt - session.firstBlockAt);
+    }
+
+    /**
+     * Records the throughput of peers that are still connected, as they are not going to be reported once the peer
+     * group is being stopped.
+     */
+    public void stop() {
+        synchronized (sessions) {
+            for (final Map.Entry<Peer, Session> entry : sessions.entrySet()) {
+                final InetSocketAddress address = addressOf(entry.getKey());
+                final Session session = entry.getValue();
+                if (address != null && session.numBlocks >= MIN_BLOCKS_FOR_THROUGHPUT)
+                    database.recordThroughput(address, session.numBlocks - 1,
+                            session.lastBlockAt - session.firstBlockAt);
+            }
+            sessions.clear();
+        }
+    }
+
+    @Nullable
+    private static InetSocketAddress addressOf(final Peer peer) {
+        final InetAddress addr = peer.getAddress().getAddr();
+        return addr != null ? new InetSocketAddress(addr, peer.getAddress().getPort()) : null;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+/**
+ * Ring buffer of the most recent blocks of the best chain, maintained from block chain events. Once seeded from the
+ * block store, it follows the chain without touching the store again, unless it loses track of the chain head. Readers
+ * get an immutable snapshot that is shared until the next block arrives.
+ */
+final class RecentBlocks implements NewBestBlockListener, ReorganizeListener {
+    private final BlockStore blockStore;
+    private final StoredBlock[] ring;
+    private int top = -1; // index of the newest block
+    private int size = 0;
+    private boolean seeded = false;
+    private boolean bottomReached = false; // the store holds no blocks below the oldest one
+    @Nullable
+    private List<StoredBlock> snapshot = null;
+
+    public RecentBlocks(final BlockStore blockStore, final int capacity) {
+        this.blockStore = blockStore;
+        this.ring = new StoredBlock[capacity];
+    }
+
+    /**
+     * Returns up to {@code maxBlocks} blocks, newest first. Only seeds from the block store if the buffer lost track
+     * of the chain.
+     */
+    public List<StoredBlock> get(final int maxBlocks, final StoredBlock chainHead) {
+        List<StoredBlock> blocks;
+        final boolean incomplete;
+        synchronized (this) {
+            blocks = snapshotLocked();
+            incomplete = blocks == null || (blocks.size() < Math.min(maxBlocks, ring.length) && !bottomReached);
+        }
+
+        if (incomplete) {
+            // walk the store outside of the monitor, so that block chain events are never blocked on it; if blocks
+            // are connected in the meantime, the next event catches up
+            blocks = walk(chainHead);
+            synchronized (this) {
+                seedLocked(blocks);
+            }
+        }
+
+        return blocks.size() <= maxBlocks ? blocks : blocks.subList(0, maxBlocks);
+    }
+
+    @Override
+    public synchronized void notifyNewBestBlock(final StoredBlock block) throws VerificationException {
+        if (!seeded)
+            return;
+
+        final StoredBlock topBlock = ring[top];
+        if (topBlock.getHeader().getHash().equals(block.getHeader().getHash()))
+            return; // already added by reorganize()
+        if (topBlock.getHeader().getHash().equals(block.getHeader().getPrevBlockHash()))
+            pushLocked(block);
+        else
+            catchUpLocked(block);
+    }
+
+    @Override
+    public synchronized void reorganize(final StoredBlock splitPoint, final List<StoredBlock> oldBlocks,
+            final List<StoredBlock> newBlocks) throws VerificationException {
+        if (!seeded)
+            return;
+
+        while (size > 0 && ring[top].getHeight() > splitPoint.getHeight()) {
+            ring[top] = null;
+            top = (top - 1 + ring.length) % ring.length;
+            size--;
+        }
+        if (size == 0 || !ring[top].getHeader().getHash().equals(splitPoint.getHeader().getHash())) {
+            seeded = false;
+            return;
+        }
+
+        // new blocks are ordered from the new chain head downwards
+        for (int i = newBlocks.size() - 1; i >= 0; i--)
+            pushLocked(newBlocks.get(i));
+    }
+
+    /**
+     * Fills the gap between the newest known block and the given one, which happens if the buffer was seeded while
+     * blocks were being connected.
+     */
+    private void catchUpLocked(final StoredBlock block) {
+        final List<StoredBlock> gap = new ArrayList<StoredBlock>();
+        final StoredBlock topBlock = ring[top];
+
+        try {
+            StoredBlock current = block;
+            while (current != null && current.getHeight() > topBlock.getHeight() && gap.size() < ring.length) {
+                gap.add(current);
+                current = current.getPrev(blockStore);
+            }
+
+            if (current != null && current.getHeader().getHash().equals(topBlock.getHeader().getHash())) {
+                for (int i = gap.size() - 1; i >= 0; i--)
+                    pushLocked(gap.get(i));
+                return;
+            }
+        } catch (final BlockStoreException x) {
+            // fall through
+        }
+
+        seeded = false;
+    }
+
+    private void pushLocked(final StoredBlock block) {
+        top = (top + 1) % ring.length;
+        ring[top] = block;
+        if (size < ring.length)
+            size++;
+        snapshot = null;
+    }
+
+    private void seedLocked(final List<StoredBlock> blocks) {
+        top = -1;
+        size = 0;
+        for (int i = blocks.size() - 1; i >= 0; i--)
+            pushLocked(blocks.get(i));
+        snapshot = blocks;
+        seeded = true;
+        bottomReached = blocks.size() < ring.length;
+    }
+
+    @Nullable
+    private List<StoredBlock> snapshotLocked() {
+        if (!seeded)
+            return null;
+
+        if (snapshot == null) {
+            final List<StoredBlock> blocks = new ArrayList<StoredBlock>(size);
+            for (int i = 0; i < size; i++)
+                blocks.add(ring[(top - i + ring.length) % ring.length]);
+            snapshot = Collections.unmodifiableList(blocks);
+        }
+        return snapshot;
+    }
+
+    private List<StoredBlock> walk(final StoredBlock chainHead) {
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>(ring.length);
+
+        try {
+            StoredBlock block = chainHead;
+
+            while (block != null) {
+                blocks.add(block);
+
+                if (blocks.size() >= ring.length)
+                    break;
+
+                block = block.getPrev(blockStore);
+            }
+        } catch (final BlockStoreException x) {
+            // swallow
+        }
+
+        return Collections.unmodifiableList(blocks);
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Block store keeping the most recent headers in a memory-mapped ring. The file format is the one of
+ * {@link org.bitcoinj.store.SPVBlockStore}, except that the capacity isn't fixed but implied by the file size: a
+ * prologue of magic, ring cursor and chain head hash, followed by records of block hash and compact stored block.
+ * Existing block stores are picked up as they are, and can be resized without a resync.
+ */
+final class RingBlockStore implements BlockStore {
+    private final NetworkParameters params;
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileLock fileLock;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private boolean closed = false;
+
+    private final Map<Sha256Hash, StoredBlock> cache = new LinkedHashMap<Sha256Hash, StoredBlock>(CACHE_SIZE, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private StoredBlock chainHead;
+
+    private static final byte[] MAGIC = { 'S', 'P', 'V', 'B' };
+    private static final int PROLOGUE_SIZE = 1024;
+    private static final int HASH_SIZE = 32;
+    private static final int RECORD_SIZE = HASH_SIZE + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int CURSOR_OFFSET = 4;
+    private static final int CHAIN_HEAD_OFFSET = 8;
+    private static final int CACHE_SIZE = 2048;
+
+    /** Same as {@link org.bitcoinj.store.SPVBlockStore}, enough for difficulty transitions and deep reorgs. */
+    public static final int DEFAULT_CAPACITY = 5000;
+    public static final int LARGE_CAPACITY = 10000;
+    public static final int HUGE_CAPACITY = 20000;
+
+    private static final Logger log = LoggerFactory.getLogger(RingBlockStore.class);
+
+    /**
+     * Opens the store, creating it with the given capacity if it doesn't exist yet. An existing store keeps its
+     * capacity; use {@link #resize(int)} to change it.
+     */
+    public RingBlockStore(final NetworkParameters params, final File file, final int newCapacity)
+            throws BlockStoreException {
+        this.params = params;
+        this.file = file;
+
+        final boolean exists = file.exists();
+        RandomAccessFile openedFile = null;
+        try {
+            openedFile = new RandomAccessFile(file, "rw");
+            if (!exists)
+                openedFile.setLength(fileSize(newCapacity));
+            final long length = openedFile.length();
+            if (!isValidLength(length))
+                throw new IOException("invalid size: " + length);
+
+            final FileChannel channel = openedFile.getChannel();
+            final FileLock lock = channel.tryLock();
+            if (lock == null)
+                throw new IOException("already in use");
+
+            this.randomAccessFile = openedFile;
+            this.fileLock = lock;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            this.capacity = (int) ((length - PROLOGUE_SIZE) / RECORD_SIZE);
+        } catch (final IOException x) {
+            close(openedFile);
+            throw new BlockStoreException("cannot open block store '" + file + "': " + x.getMessage(), x);
+        }
+
+        if (!exists) {
+            buffer.position(0);
+            buffer.put(MAGIC);
+            buffer.putInt(CURSOR_OFFSET, PROLOGUE_SIZE);
+            final Block genesis = params.getGenesisBlock().cloneAsHeader();
+            final StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+            put(storedGenesis);
+            setChainHead(storedGenesis);
+            log.info("created block store '{}' with capacity {}", file, capacity);
+        } else {
+            final String problem = check(buffer, capacity);
+            if (problem != null) {
+                close();
+                throw new BlockStoreException("block store '" + file + "' corrupt: " + problem);
+            }
+        }
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Picks a capacity for the device. More history makes reorgs and the recent blocks list cheaper, but costs
+     * storage and page cache, so constrained devices stay at the default.
+     */
+    public static int capacityFor(final int memoryClass, final boolean lowRamDevice, final long usableSpace) {
+        if (lowRamDevice || memoryClass < 64 || usableSpace < 64 * 1024 * 1024)
+            return DEFAULT_CAPACITY;
+        else if (memoryClass < 128 || usableSpace < 512 * 1024 * 1024)
+            return LARGE_CAPACITY;
+        else
+            return HUGE_CAPACITY;
+    }
+
+    /**
+     * Like {@link #capacityFor(int, boolean, long)}, but for a store that already has a capacity. Growing needs twice
+     * the free space that shrinking happens below, so a device hovering around a threshold doesn't resize its store
+     * on every start.
+     */
+    public static int capacityFor(final int memoryClass, final boolean lowRamDevice, final long usableSpace,
+            final int currentCapacity) {
+        final int shrunk = capacityFor(memoryClass, lowRamDevice, usableSpace);
+        if (shrunk < currentCapacity)
+            return shrunk;
+        final int grown = capacityFor(memoryClass, lowRamDevice, usableSpace / 2);
+        if (grown > currentCapacity)
+            return grown;
+        return currentCapacity;
+    }
+
+    /**
+     * Changes the capacity of this store while it is open, keeping the newest blocks like {@link #resize(File, int)}
+     * does. Everyone using the store waits for the copy, which is a few MB at most, so call this from a background
+     * thread rather than the main thread.
+     */
+    public synchronized void resize(final int newCapacity) throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("block store '" + file + "' already closed");
+        if (newCapacity == capacity)
+            return;
+
+        buffer.force();
+        if (!resize(file, newCapacity))
+            throw new BlockStoreException("cannot resize block store '" + file + "' to " + newCapacity);
+
+        // the file has been replaced, so switch over to the new one
+        RandomAccessFile openedFile = null;
+        try {
+            openedFile = new RandomAccessFile(file, "rw");
+            final FileChannel channel = openedFile.getChannel();
+            final FileLock lock = channel.tryLock();
+            if (lock == null)
+                throw new IOException("already in use");
+            final long length = openedFile.length();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+            fileLock.release();
+            randomAccessFile.close();
+            this.randomAccessFile = openedFile;
+            this.fileLock = lock;
+            this.buffer = buffer;
+            this.capacity = (int) ((length - PROLOGUE_SIZE) / RECORD_SIZE);
+        } catch (final IOException x) {
+            close(openedFile);
+            throw new BlockStoreException("cannot reopen block store '" + file + "': " + x.getMessage(), x);
+        }
+    }
+
+    @Override
+    public synchronized void put(final StoredBlock block) throws BlockStoreException {
+        int cursor = buffer.getInt(CURSOR_OFFSET);
+        if (cursor == fileSize(capacity))
+            cursor = PROLOGUE_SIZE; // wrap around
+        final Sha256Hash hash = block.getHeader().getHash();
+        buffer.position(cursor);
+        buffer.put(hash.getBytes());
+        block.serializeCompact(buffer);
+        buffer.putInt(CURSOR_OFFSET, buffer.position());
+        cache.put(hash, block);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        final StoredBlock cached = cache.get(hash);
+        if (cached != null)
+            return cached;
+
+        // scan from the newest record backwards, as recent blocks are asked for most often
+        final byte[] target = hash.getBytes();
+        final byte[] scratch = new byte[HASH_SIZE];
+        final int cursor = buffer.getInt(CURSOR_OFFSET);
+        int offset = cursor;
+        for (int i = 0; i < capacity; i++) {
+            offset -= RECORD_SIZE;
+            if (offset < PROLOGUE_SIZE)
+                offset = fileSize(capacity) - RECORD_SIZE;
+            buffer.position(offset);
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, target)) {
+                final StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+                cache.put(hash, block);
+                return block;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        if (chainHead == null) {
+            final byte[] hash = new byte[HASH_SIZE];
+            buffer.position(CHAIN_HEAD_OFFSET);
+            buffer.get(hash);
+            chainHead = get(Sha256Hash.wrap(hash));
+            if (chainHead == null)
+                throw new BlockStoreException("chain head not found in block store");
+        }
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.put(chainHead.getHeader().getHash().getBytes());
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            buffer.force();
+            fileLock.release();
+            randomAccessFile.close();
+        } catch (final IOException x) {
+            throw new BlockStoreException(x);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /**
+     * Checks the structure of the given store without deserializing any block: size, magic, ring cursor and that the
+     * chain head is the newest record, which is where it ends up after every block. Returns {@code null} if the store
+     * looks fine, or a description of the problem.
+     */
+    @Nullable
+    public static String verify(final File file) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            final long length = randomAccessFile.length();
+            if (!isValidLength(length))
+                return "invalid size: " + length;
+            final ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return check(buffer, (int) ((length - PROLOGUE_SIZE) / RECORD_SIZE));
+        } catch (final IOException x) {
+            return x.toString();
+        } finally {
+            close(randomAccessFile);
+        }
+    }
+
+    @Nullable
+    private static String check(final ByteBuffer buffer, final int capacity) {
+        final byte[] magic = new byte[MAGIC.length];
+        buffer.position(0);
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            return "bad magic";
+
+        final int cursor = buffer.getInt(CURSOR_OFFSET);
+        if (cursor <= PROLOGUE_SIZE || cursor > fileSize(capacity) || (cursor - PROLOGUE_SIZE) % RECORD_SIZE != 0)
+            return "bad cursor: " + cursor;
+
+        final byte[] chainHeadHash = new byte[HASH_SIZE];
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.get(chainHeadHash);
+        final byte[] newestHash = new byte[HASH_SIZE];
+        buffer.position(cursor - RECORD_SIZE);
+        buffer.get(newestHash);
+        if (!Arrays.equals(chainHeadHash, newestHash)) {
+            // after a reorg to a shorter chain the head can be an older record, so fall back to scanning
+            for (int offset = PROLOGUE_SIZE; offset < fileSize(capacity); offset += RECORD_SIZE) {
+                buffer.position(offset);
+                buffer.get(newestHash);
+                if (Arrays.equals(chainHeadHash, newestHash))
+                    return null;
+            }
+            return "chain head not found";
+        }
+        return null;
+    }
+
+    /**
+     * Changes the capacity of the given store, which must not be open by anyone else. The newest blocks are kept, in order, so the
+     * chain doesn't need to be downloaded again. Returns {@code false} if the store is corrupt or too small to be
+     * shrunk to the chain head.
+     */
+    public static boolean resize(final File file, final int newCapacity) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile source = null;
+        RandomAccessFile target = null;
+
+        try {
+            source = new RandomAccessFile(file, "r");
+            final long length = source.length();
+            if (!isValidLength(length) || verify(file) != null)
+                return false;
+            final int capacity = (int) ((length - PROLOGUE_SIZE) / RECORD_SIZE);
+            if (capacity == newCapacity)
+                return true;
+            final ByteBuffer in = source.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            // records are written in chain order, so the newest ones are right before the cursor
+            final int cursor = in.getInt(CURSOR_OFFSET);
+            final boolean wrapped = !isEmptyRecord(in, fileSize(capacity) - RECORD_SIZE);
+            final int numRecords = wrapped ? capacity : (cursor - PROLOGUE_SIZE) / RECORD_SIZE;
+            final int numKept = Math.min(numRecords, newCapacity);
+
+            final byte[] chainHeadHash = new byte[HASH_SIZE];
+            in.position(CHAIN_HEAD_OFFSET);
+            in.get(chainHeadHash);
+
+            target = new RandomAccessFile(tempFile, "rw");
+            target.setLength(fileSize(newCapacity));
+            final ByteBuffer out = target.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+            out.position(0);
+            out.put(MAGIC);
+            out.position(CHAIN_HEAD_OFFSET);
+            out.put(chainHeadHash);
+
+            boolean chainHeadKept = false;
+            final byte[] record = new byte[RECORD_SIZE];
+            int offset = cursor - numKept * RECORD_SIZE;
+            if (offset < PROLOGUE_SIZE)
+                offset += capacity * RECORD_SIZE;
+            out.position(PROLOGUE_SIZE);
+            for (int i = 0; i < numKept; i++) {
+                in.position(offset);
+                in.get(record);
+                out.put(record);
+                if (!chainHeadKept && Arrays.equals(chainHeadHash, Arrays.copyOf(record, HASH_SIZE)))
+                    chainHeadKept = true;
+                offset += RECORD_SIZE;
+                if (offset == fileSize(capacity))
+                    offset = PROLOGUE_SIZE;
+            }
+            out.putInt(CURSOR_OFFSET, PROLOGUE_SIZE + numKept * RECORD_SIZE);
+            if (!chainHeadKept)
+                throw new IOException("chain head wouldn't survive resize");
+            ((MappedByteBuffer) out).force();
+            close(target);
+            target = null;
+            close(source);
+            source = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("cannot rename " + tempFile + " to " + file);
+
+            watch.stop();
+            log.info("block store '{}' resized from {} to {}, kept {} blocks, took {}", file, capacity, newCapacity,
+                    numKept, watch);
+            return true;
+        } catch (final IOException x) {
+            log.warn("problem resizing block store '" + file + "'", x);
+            tempFile.delete();
+            return false;
+        } finally {
+            close(target);
+            close(source);
+        }
+    }
+
+    private static boolean isEmptyRecord(final ByteBuffer buffer, final int offset) {
+        for (int i = 0; i < HASH_SIZE; i++)
+            if (buffer.get(offset + i) != 0)
+                return false;
+        return true;
+    }
+
+    private static int fileSize(final int capacity) {
+        return PROLOGUE_SIZE + capacity * RECORD_SIZE;
+    }
+
+    private static boolean isValidLength(final long length) {
+        return length > PROLOGUE_SIZE && length <= Integer.MAX_VALUE && (length - PROLOGUE_SIZE) % RECORD_SIZE == 0;
+    }
+
+    private static void close(@Nullable final RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (final IOException x) {
+                // swallow
+            }
+        }
+    }
+}
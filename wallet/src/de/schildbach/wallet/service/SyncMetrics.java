@@ -0,0 +1,156 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.wallet.Wallet;
+
+import android.text.format.DateUtils;
+
+/**
+ * Collects sync metrics from peer group events and from the block chain. Recording is cheap, as it happens on the
+ * network thread; aggregating is done when a {@link SyncStats} snapshot is taken.
+ */
+final class SyncMetrics
+        implements BlocksDownloadedEventListener, PreMessageReceivedEventListener, PeerDisconnectedEventListener {
+    private final Wallet wallet;
+
+    private final long[] blockTimes = new long[64];
+    private int blockTimesIndex = 0;
+    private long numHeaders = 0;
+    private long numFilteredBlocks = 0;
+    private long numFullBlocks = 0;
+    private long numIrrelevantTransactions = 0;
+    private long numFalsePositives = 0;
+    private final long[] addLatencies = new long[1024];
+    private int addLatenciesCount = 0;
+    private final Map<Peer, long[]> bytesReceived = new IdentityHashMap<Peer, long[]>();
+
+    private static final long RATE_TIMEOUT_MS = 5 * DateUtils.SECOND_IN_MILLIS;
+    private static final int MESSAGE_HEADER_SIZE = 24;
+
+    public SyncMetrics(final Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    @Override
+    public void onBlocksDownloaded(final Peer peer, final Block block, @Nullable final FilteredBlock filteredBlock,
+            final int blocksLeft) {
+        final FalsePositives falsePositives = filteredBlock != null ? FalsePositives.of(filteredBlock, wallet) : null;
+
+        synchronized (this) {
+            blockTimes[blockTimesIndex++ % blockTimes.length] = System.currentTimeMillis();
+            if (filteredBlock != null) {
+                numFilteredBlocks++;
+                numIrrelevantTransactions += falsePositives.irrelevantTransactions;
+                numFalsePositives += falsePositives.falsePositives;
+            } else if (block.getTransactions() == null) {
+                numHeaders++;
+            } else {
+                numFullBlocks++;
+            }
+        }
+    }
+
+    @Override
+    public Message onPreMessageReceived(final Peer peer, final Message m) {
+        final int size;
+        try {
+            size = m.getMessageSize() + MESSAGE_HEADER_SIZE;
+        } catch (final IllegalStateException x) {
+            return m; // length unknown
+        }
+
+        synchronized (bytesReceived) {
+            long[] counter = bytesReceived.get(peer);
+            if (counter == null) {
+                counter = new long[1];
+                bytesReceived.put(peer, counter);
+            }
+            counter[0] += size;
+        }
+        return m;
+    }
+
+    @Override
+    public void onPeerDisconnected(final Peer peer, final int peerCount) {
+        synchronized (bytesReceived) {
+            bytesReceived.remove(peer);
+        }
+    }
+
+    /**
+     * Records the time it took to add a block to the chain.
+     */
+    public synchronized void recordAddLatency(final long nanos) {
+        addLatencies[addLatenciesCount++ % addLatencies.length] = nanos / 1000;
+    }
+
+    public SyncStats getStats(final long lastAutosaveMs, final long maxAutosaveMs) {
+        final double blocksPerSecond;
+        final long numHeaders, numFilteredBlocks, numFullBlocks;
+        final double falsePositiveRate;
+        final long[] latencies;
+
+        synchronized (this) {
+            final int numTimes = Math.min(blockTimesIndex, blockTimes.length);
+            final long newest = numTimes > 0 ? blockTimes[(blockTimesIndex - 1) % blockTimes.length] : 0;
+            final long oldest = numTimes > 0 ? blockTimes[(blockTimesIndex - numTimes) % blockTimes.length] : 0;
+            if (numTimes > 1 && newest > oldest && System.currentTimeMillis() - newest < RATE_TIMEOUT_MS)
+                blocksPerSecond = (numTimes - 1) * 1000.0 / (newest - oldest);
+            else
+                blocksPerSecond = 0;
+
+            numHeaders = this.numHeaders;
+            numFilteredBlocks = this.numFilteredBlocks;
+            numFullBlocks = this.numFullBlocks;
+            falsePositiveRate = FalsePositives.rate(numFalsePositives, numIrrelevantTransactions);
+            latencies = Arrays.copyOf(addLatencies, Math.min(addLatenciesCount, addLatencies.length));
+        }
+
+        final Map<String, Long> bytesReceivedPerPeer = new TreeMap<String, Long>();
+        synchronized (bytesReceived) {
+            for (final Map.Entry<Peer, long[]> entry : bytesReceived.entrySet())
+                bytesReceivedPerPeer.put(entry.getKey().getAddress().toString(), entry.getValue()[0]);
+        }
+
+        Arrays.sort(latencies);
+        return new SyncStats(blocksPerSecond, numHeaders, numFilteredBlocks, numFullBlocks, bytesReceivedPerPeer,
+                falsePositiveRate, percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                lastAutosaveMs, maxAutosaveMs);
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0)
+            return -1;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+}
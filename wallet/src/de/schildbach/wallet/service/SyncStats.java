@@ -0,0 +1,56 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.Map;
+
+/**
+ * Snapshot of the sync metrics of the blockchain service. Counters are since the service was created.
+ */
+public class SyncStats {
+    /** Recent download rate, or 0 if no block arrived for a while. */
+    public final double blocksPerSecond;
+    public final long numHeaders;
+    public final long numFilteredBlocks;
+    public final long numFullBlocks;
+    /** Bytes received from each connected peer, keyed by its address. */
+    public final Map<String, Long> bytesReceivedPerPeer;
+    /** Share of transactions not relevant to the wallet that matched the Bloom filter anyway, or -1 if unknown. */
+    public final double falsePositiveRate;
+    /** Percentiles of the time it took to add a block to the chain, in microseconds, or -1 if unknown. */
+    public final long addLatencyP50Micros, addLatencyP90Micros, addLatencyP99Micros;
+    /** Duration of the last and slowest wallet autosave, in milliseconds, or -1 if there was none yet. */
+    public final long lastAutosaveMs, maxAutosaveMs;
+
+    public SyncStats(final double blocksPerSecond, final long numHeaders, final long numFilteredBlocks,
+            final long numFullBlocks, final Map<String, Long> bytesReceivedPerPeer, final double falsePositiveRate,
+            final long addLatencyP50Micros, final long addLatencyP90Micros, final long addLatencyP99Micros,
+            final long lastAutosaveMs, final long maxAutosaveMs) {
+        this.blocksPerSecond = blocksPerSecond;
+        this.numHeaders = numHeaders;
+        this.numFilteredBlocks = numFilteredBlocks;
+        this.numFullBlocks = numFullBlocks;
+        this.bytesReceivedPerPeer = bytesReceivedPerPeer;
+        this.falsePositiveRate = falsePositiveRate;
+        this.addLatencyP50Micros = addLatencyP50Micros;
+        this.addLatencyP90Micros = addLatencyP90Micros;
+        this.addLatencyP99Micros = addLatencyP99Micros;
+        this.lastAutosaveMs = lastAutosaveMs;
+        this.maxAutosaveMs = maxAutosaveMs;
+    }
+}
@@ -20,21 +20,23 @@ package de.schildbach.wallet.ui;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
-import org.bitcoinj.core.SexcoinTransaction;
+import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.Purpose;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.wallet.Wallet;
 
 import de.schildbach.wallet.Constants;
-import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.AddressLabelCache;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -57,6 +59,7 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
 
     private final Context context;
     private final Wallet wallet;
+    private final AddressLabelCache labelCache;
     private final LayoutInflater inflater;
     @Nullable
     private final OnClickListener onClickListener;
@@ -64,7 +67,8 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
     private MonetaryFormat format;
 
     private final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
-    private Set<SexcoinTransaction> transactions;
+    @Nullable
+    private Map<Sha256Hash, List<Transaction>> transactions;
 
     private final String textCoinBase;
     private final String textInternal;
@@ -74,6 +78,7 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
         this.context = context;
         inflater = LayoutInflater.from(context);
         this.wallet = wallet;
+        this.labelCache = ((WalletApplication) context.getApplicationContext()).getAddressLabelCache();
         this.onClickListener = onClickListener;
 
         textCoinBase = context.getString(R.string.wallet_transactions_fragment_coinbase);
@@ -107,7 +112,7 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
         notifyDataSetChanged();
     }
 
-    public void replaceTransactions(final Set<SexcoinTransaction> transactions) {
+    public void replaceTransactions(final Map<Sha256Hash, List<Transaction>> transactions) {
         this.transactions = transactions;
 
         notifyDataSetChanged();
@@ -157,21 +162,20 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
         final int transactionChildCount = holder.transactionsViewGroup.getChildCount() - ROW_BASE_CHILD_COUNT;
         int iTransactionView = 0;
 
-        if (transactions != null) {
-            for (final SexcoinTransaction tx : transactions) {
-                if (tx.getAppearsInHashes().containsKey(header.getHash())) {
-                    final View view;
-                    if (iTransactionView < transactionChildCount) {
-                        view = holder.transactionsViewGroup.getChildAt(ROW_INSERT_INDEX + iTransactionView);
-                    } else {
-                        view = inflater.inflate(R.layout.block_row_transaction, null);
-                        holder.transactionsViewGroup.addView(view, ROW_INSERT_INDEX + iTransactionView);
-                    }
+        final List<Transaction> blockTransactions = transactions != null ? transactions.get(header.getHash()) : null;
+        if (blockTransactions != null) {
+            for (final Transaction tx : blockTransactions) {
+                final View view;
+                if (iTransactionView < transactionChildCount) {
+                    view = holder.transactionsViewGroup.getChildAt(ROW_INSERT_INDEX + iTransactionView);
+                } else {
+                    view = inflater.inflate(R.layout.block_row_transaction, null);
+                    holder.transactionsViewGroup.addView(view, ROW_INSERT_INDEX + iTransactionView);
+                }
 
-                    bindView(view, tx);
+                bindView(view, tx);
 
-                    iTransactionView++;
-                }
+                iTransactionView++;
             }
         }
 
@@ -189,7 +193,7 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
         }
     }
 
-    public void bindView(final View row, final SexcoinTransaction tx) {
+    public void bindView(final View row, final Transaction tx) {
         final boolean isCoinBase = tx.isCoinBase();
         final boolean isInternal = tx.getPurpose() == Purpose.KEY_ROTATION;
 
@@ -219,7 +223,7 @@ public class BlockListAdapter extends RecyclerView.Adapter<BlockListAdapter.Bloc
         else if (isInternal || self)
             label = textInternal;
         else if (address != null)
-            label = AddressBookProvider.resolveLabel(context, address.toBase58());
+            label = labelCache.get(address.toBase58());
         else
             label = "?";
         rowAddress.setText(label != null ? label : address.toBase58());
@@ -22,7 +22,6 @@ import java.util.concurrent.RejectedExecutionException;
 
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
-import org.bitcoinj.core.SexcoinTransaction;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
@@ -31,6 +30,8 @@ import org.slf4j.LoggerFactory;
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.AddressLabelCache;
+import de.schildbach.wallet.data.BlockTransactionIndex;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
 import de.schildbach.wallet_test.R;
@@ -84,6 +85,13 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
 
     private static final Logger log = LoggerFactory.getLogger(BlockListFragment.class);
 
+    private final AddressLabelCache.Listener labelsChangeListener = new AddressLabelCache.Listener() {
+        @Override
+        public void onLabelsChanged(final Set<String> addresses) {
+            adapter.notifyDataSetChanged();
+        }
+    };
+
     @Override
     public void onAttach(final Activity activity) {
         super.onAttach(activity);
@@ -133,6 +141,7 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
         super.onResume();
 
         activity.registerReceiver(tickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
+        application.getAddressLabelCache().addListener(labelsChangeListener);
         loaderManager.initLoader(ID_TRANSACTION_LOADER, null, transactionLoaderCallbacks);
 
         adapter.notifyDataSetChanged();
@@ -148,6 +157,7 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
             resumed = false;
 
             loaderManager.destroyLoader(ID_TRANSACTION_LOADER);
+            application.getAddressLabelCache().removeListener(labelsChangeListener);
             activity.unregisterReceiver(tickReceiver);
         } else {
             log.warn("onPause() called without onResume(), appending stack trace", new RuntimeException());
@@ -265,7 +275,8 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
             adapter.replace(blocks);
             viewGroup.setDisplayedChild(1);
 
-            final Loader<Set<SexcoinTransaction>> transactionLoader = loaderManager.getLoader(ID_TRANSACTION_LOADER);
+            final Loader<Map<Sha256Hash, List<Transaction>>> transactionLoader = loaderManager
+                    .getLoader(ID_TRANSACTION_LOADER);
             if (transactionLoader != null && transactionLoader.isStarted())
                 transactionLoader.forceLoad();
         }
@@ -276,48 +287,37 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
         }
     };
 
-    private static class TransactionsLoader extends AsyncTaskLoader<Set<SexcoinTransaction>> {
-        private final Wallet wallet;
+    private static class TransactionsLoader extends AsyncTaskLoader<Map<Sha256Hash, List<Transaction>>> {
+        private final BlockTransactionIndex index;
 
-        private TransactionsLoader(final Context context, final Wallet wallet) {
+        private TransactionsLoader(final Context context, final BlockTransactionIndex index) {
             super(context);
 
-            this.wallet = wallet;
+            this.index = index;
         }
 
         @Override
-        public Set<SexcoinTransaction> loadInBackground() {
+        public Map<Sha256Hash, List<Transaction>> loadInBackground() {
             org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-            final Set<Transaction> transactions = wallet.getTransactions(true);
-
-            final Set<SexcoinTransaction> filteredTransactions = new HashSet<SexcoinTransaction>(transactions.size());
-            for (final Transaction tx : transactions) {
-                final Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
-                if (appearsIn != null && !appearsIn.isEmpty()) { // TODO filter by updateTime
-                    SexcoinTransaction x = new SexcoinTransaction(tx.getParams(), tx.bitcoinSerialize());
-                    x.populateBlockAppearance(tx.getAppearsInHashes());
-                    filteredTransactions.add(x);
-                }
-            }
-
-            return filteredTransactions;
+            return index.snapshot();
         }
     }
 
-    private final LoaderCallbacks<Set<SexcoinTransaction>> transactionLoaderCallbacks = new LoaderCallbacks<Set<SexcoinTransaction>>() {
+    private final LoaderCallbacks<Map<Sha256Hash, List<Transaction>>> transactionLoaderCallbacks = new LoaderCallbacks<Map<Sha256Hash, List<Transaction>>>() {
         @Override
-        public Loader<Set<SexcoinTransaction>> onCreateLoader(final int id, final Bundle args) {
-            return new TransactionsLoader(activity, wallet);
+        public Loader<Map<Sha256Hash, List<Transaction>>> onCreateLoader(final int id, final Bundle args) {
+            return new TransactionsLoader(activity, application.getBlockTransactionIndex());
         }
 
         @Override
-        public void onLoadFinished(final Loader<Set<SexcoinTransaction>> loader, final Set<SexcoinTransaction> transactions) {
+        public void onLoadFinished(final Loader<Map<Sha256Hash, List<Transaction>>> loader,
+                final Map<Sha256Hash, List<Transaction>> transactions) {
             adapter.replaceTransactions(transactions);
         }
 
         @Override
-        public void onLoaderReset(final Loader<Set<SexcoinTransaction>> loader) {
+        public void onLoaderReset(final Loader<Map<Sha256Hash, List<Transaction>>> loader) {
             adapter.clearTransactions();
         }
     };
@@ -20,7 +20,6 @@ package de.schildbach.wallet.ui;
 import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.wallet.Wallet;
 
 import com.google.common.base.Strings;
 
@@ -70,7 +69,6 @@ public final class ExchangeRatesFragment extends Fragment implements OnSharedPre
     private AbstractBindServiceActivity activity;
     private WalletApplication application;
     private Configuration config;
-    private Wallet wallet;
     private Uri contentUri;
     private LoaderManager loaderManager;
 
@@ -93,7 +91,6 @@ public final class ExchangeRatesFragment extends Fragment implements OnSharedPre
         this.activity = (AbstractBindServiceActivity) activity;
         this.application = (WalletApplication) activity.getApplication();
         this.config = application.getConfiguration();
-        this.wallet = application.getWallet();
         this.contentUri = ExchangeRatesProvider.contentUri(activity.getPackageName(), false);
         this.loaderManager = getLoaderManager();
     }
@@ -237,7 +234,7 @@ public final class ExchangeRatesFragment extends Fragment implements OnSharedPre
     private final LoaderCallbacks<Coin> balanceLoaderCallbacks = new LoaderManager.LoaderCallbacks<Coin>() {
         @Override
         public Loader<Coin> onCreateLoader(final int id, final Bundle args) {
-            return new WalletBalanceLoader(activity, wallet);
+            return new WalletBalanceLoader(activity);
         }
 
         @Override
@@ -370,7 +367,7 @@ public final class ExchangeRatesFragment extends Fragment implements OnSharedPre
                             if (item.getItemId() == R.id.exchange_rates_context_set_as_default) {
                                 setDefaultCurrency(exchangeRate.getCurrencyCode());
                                 config.setExchangeCurrencyCode(exchangeRate.getCurrencyCode());
-                                WalletBalanceWidgetProvider.updateWidgets(activity, wallet);
+                                WalletBalanceWidgetProvider.updateWidgets(activity);
                                 return true;
                             } else {
                                 return false;
@@ -33,6 +33,7 @@ import android.view.MenuItem;
 public final class NetworkMonitorActivity extends AbstractWalletActivity {
     private PeerListFragment peerListFragment;
     private BlockListFragment blockListFragment;
+    private SyncStatsFragment syncStatsFragment;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
@@ -46,7 +47,8 @@ public final class NetworkMonitorActivity extends AbstractWalletActivity {
 
         if (pager != null) {
             final ViewPagerTabs pagerTabs = (ViewPagerTabs) findViewById(R.id.network_monitor_pager_tabs);
-            pagerTabs.addTabLabels(R.string.network_monitor_peer_list_title, R.string.network_monitor_block_list_title);
+            pagerTabs.addTabLabels(R.string.network_monitor_peer_list_title, R.string.network_monitor_block_list_title,
+                    R.string.network_monitor_sync_stats_title);
 
             final PagerAdapter pagerAdapter = new PagerAdapter(fm);
 
@@ -57,9 +59,11 @@ public final class NetworkMonitorActivity extends AbstractWalletActivity {
 
             peerListFragment = new PeerListFragment();
             blockListFragment = new BlockListFragment();
+            syncStatsFragment = new SyncStatsFragment();
         } else {
             peerListFragment = (PeerListFragment) fm.findFragmentById(R.id.peer_list_fragment);
             blockListFragment = (BlockListFragment) fm.findFragmentById(R.id.block_list_fragment);
+            syncStatsFragment = (SyncStatsFragment) fm.findFragmentById(R.id.sync_stats_fragment);
         }
     }
 
@@ -81,15 +85,17 @@ public final class NetworkMonitorActivity extends AbstractWalletActivity {
 
         @Override
         public int getCount() {
-            return 2;
+            return 3;
         }
 
         @Override
         public Fragment getItem(final int position) {
             if (position == 0)
                 return peerListFragment;
-            else
+            else if (position == 1)
                 return blockListFragment;
+            else
+                return syncStatsFragment;
         }
     }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.util.Map;
+
+import de.schildbach.wallet.service.BlockchainService;
+import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.BlockchainState;
+import de.schildbach.wallet.service.SyncStats;
+import de.schildbach.wallet_test.R;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Shows the sync metrics of the blockchain service, refreshed every second.
+ */
+public final class SyncStatsFragment extends Fragment {
+    private AbstractWalletActivity activity;
+
+    private BlockchainService service;
+
+    private TextView throughputView;
+    private TextView blocksLeftView;
+    private TextView blocksView;
+    private TextView falsePositiveRateView;
+    private TextView addLatencyView;
+    private TextView autosaveView;
+    private TextView trafficView;
+
+    private final Handler handler = new Handler();
+
+    private static final long REFRESH_MS = DateUtils.SECOND_IN_MILLIS;
+
+    @Override
+    public void onAttach(final Activity activity) {
+        super.onAttach(activity);
+
+        this.activity = (AbstractWalletActivity) activity;
+    }
+
+    @Override
+    public void onActivityCreated(final Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        activity.bindService(new Intent(activity, BlockchainServiceImpl.class), serviceConnection,
+                Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public View onCreateView(final LayoutInflater inflater, final ViewGroup container,
+            final Bundle savedInstanceState) {
+        final View view = inflater.inflate(R.layout.sync_stats_fragment, container, false);
+
+        throughputView = (TextView) view.findViewById(R.id.sync_stats_throughput);
+        blocksLeftView = (TextView) view.findViewById(R.id.sync_stats_blocks_left);
+        blocksView = (TextView) view.findViewById(R.id.sync_stats_blocks);
+        falsePositiveRateView = (TextView) view.findViewById(R.id.sync_stats_false_positive_rate);
+        addLatencyView = (TextView) view.findViewById(R.id.sync_stats_add_latency);
+        autosaveView = (TextView) view.findViewById(R.id.sync_stats_autosave);
+        trafficView = (TextView) view.findViewById(R.id.sync_stats_traffic);
+
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (service != null)
+                    updateView(service.getSyncStats(), service.getBlockchainState());
+
+                handler.postDelayed(this, REFRESH_MS);
+            }
+        });
+    }
+
+    @Override
+    public void onPause() {
+        handler.removeCallbacksAndMessages(null);
+
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroy() {
+        activity.unbindService(serviceConnection);
+
+        super.onDestroy();
+    }
+
+    private void updateView(final SyncStats stats, final BlockchainState blockchainState) {
+        throughputView.setText(getString(R.string.sync_stats_throughput, stats.blocksPerSecond));
+        if (blockchainState.blocksLeft > 0 && stats.blocksPerSecond > 0)
+            blocksLeftView.setText(getString(R.string.sync_stats_blocks_left, blockchainState.blocksLeft,
+                    DateUtils.formatElapsedTime((long) (blockchainState.blocksLeft / stats.blocksPerSecond))));
+        else if (blockchainState.blocksLeft > 0)
+            blocksLeftView.setText(getString(R.string.sync_stats_blocks_left, blockchainState.blocksLeft, "?"));
+        else
+            blocksLeftView.setText(null);
+        blocksView.setText(getString(R.string.sync_stats_blocks, stats.numHeaders, stats.numFilteredBlocks,
+                stats.numFullBlocks));
+        falsePositiveRateView.setText(stats.falsePositiveRate >= 0
+                ? getString(R.string.sync_stats_false_positive_rate, stats.falsePositiveRate * 100) : null);
+        addLatencyView.setText(stats.addLatencyP50Micros >= 0
+                ? getString(R.string.sync_stats_add_latency, stats.addLatencyP50Micros / 1000.0,
+                        stats.addLatencyP90Micros / 1000.0, stats.addLatencyP99Micros / 1000.0)
+                : null);
+        autosaveView.setText(stats.lastAutosaveMs >= 0
+                ? getString(R.string.sync_stats_autosave, stats.lastAutosaveMs, stats.maxAutosaveMs) : null);
+
+        final StringBuilder traffic = new StringBuilder();
+        for (final Map.Entry<String, Long> entry : stats.bytesReceivedPerPeer.entrySet()) {
+            if (traffic.length() > 0)
+                traffic.append('\n');
+            traffic.append(entry.getKey()).append(": ")
+                    .append(Formatter.formatShortFileSize(activity, entry.getValue()));
+        }
+        trafficView.setText(traffic);
+    }
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder binder) {
+            service = ((BlockchainServiceImpl.LocalBinder) binder).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            service = null;
+        }
+    };
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.data.AddressLabelCache;
+import de.schildbach.wallet.data.TransactionHistory;
+import de.schildbach.wallet.util.WalletUtils;
+
+import android.os.Handler;
+
+/**
+ * Per-transaction values the transaction list needs for drawing a row. Entries are precomputed off the UI thread
+ * and persisted, so that a cold start of the transaction list doesn't have to recompute them row by row.
+ * Address labels are not part of the entries; they are prefetched into the {@link AddressLabelCache} instead,
+ * because the address book can change while the list isn't watching it. An entry is only used as long as its value
+ * agrees with the one the {@link TransactionHistory} has computed, as that changes with whatever the entry depends on.
+ */
+public final class TransactionCache {
+    private final Map<Sha256Hash, Entry> entries = new ConcurrentHashMap<Sha256Hash, Entry>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    // guarded by itself, transactions that were missed while binding and are yet to be computed
+    private final Map<Sha256Hash, Transaction> requested = new LinkedHashMap<Sha256Hash, Transaction>();
+
+    private static final int FILE_FORMAT_VERSION = 2;
+    private static final int PRECOMPUTE_BATCH_SIZE = 64;
+
+    private static final int FLAG_SENT = 1 << 0;
+    private static final int FLAG_SELF = 1 << 1;
+    private static final int FLAG_SHOW_FEE = 1 << 2;
+    private static final int FLAG_ADDRESS = 1 << 3;
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionCache.class);
+
+    public static final class Entry {
+        public final Coin value;
+        public final boolean sent;
+        public final boolean self;
+        public final boolean showFee;
+        @Nullable
+        public final Address address;
+
+        private Entry(final Coin value, final boolean sent, final boolean self, final boolean showFee,
+                final @Nullable Address address) {
+            this.value = value;
+            this.sent = sent;
+            this.self = self;
+            this.showFee = showFee;
+            this.address = address;
+        }
+    }
+
+    public interface Listener {
+        /** will be called back on the background handler, with the hashes of the entries that were computed */
+        void onEntriesComputed(Set<Sha256Hash> hashes);
+    }
+
+    @Nullable
+    public Entry get(final Sha256Hash hash) {
+        return entries.get(hash);
+    }
+
+    /**
+     * Returns the entry for the given history entry. On a miss, the entry is computed on the background handler and
+     * the listener is told there once it's available; meanwhile, a provisional entry made from what the history
+     * already knows is returned.
+     */
+    public Entry getOrRequest(final TransactionHistory.Entry historyEntry, final Wallet wallet,
+            final Handler backgroundHandler, final Listener listener) {
+        final Entry entry = entries.get(historyEntry.getHash());
+        if (entry != null && entry.value.equals(historyEntry.getValue()))
+            return entry;
+
+        final boolean post;
+        synchronized (requested) {
+            post = requested.isEmpty();
+            requested.put(historyEntry.getHash(), historyEntry.getTransaction());
+        }
+        // rows bound in the same layout pass are computed in one go
+        if (post) {
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+
+                    final List<Transaction> batch;
+                    synchronized (requested) {
+                        batch = new ArrayList<Transaction>(requested.values());
+                        requested.clear();
+                    }
+                    final Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(batch.size());
+                    for (final Transaction tx : batch) {
+                        entries.put(tx.getHash(), compute(tx, wallet));
+                        hashes.add(tx.getHash());
+                    }
+                    dirty.set(true);
+                    listener.onEntriesComputed(hashes);
+                }
+            });
+        }
+
+        final Coin value = historyEntry.getValue();
+        return new Entry(value, value.signum() < 0, false, false, null);
+    }
+
+    /**
+     * Returns the entry for the given transaction, computing it on the calling thread on a miss. Only meant for lists
+     * of a few transactions that aren't part of the history.
+     */
+    public Entry getOrCompute(final Transaction tx, final Wallet wallet) {
+        Entry entry = entries.get(tx.getHash());
+        if (entry == null) {
+            entry = compute(tx, wallet);
+            entries.put(tx.getHash(), entry);
+            dirty.set(true);
+        }
+        return entry;
+    }
+
+    public void remove(final Sha256Hash hash) {
+        if (entries.remove(hash) != null)
+            dirty.set(true);
+    }
+
+    public void clear() {
+        entries.clear();
+        dirty.set(true);
+    }
+
+    /**
+     * Fills the cache for the given history entries, in order, on the background handler. Work is split into batches
+     * that are posted one after the other, so other tasks queued on the same handler aren't held up. Labels of each
+     * batch are handed to the label cache, which resolves them with one query.
+     */
+    public void precompute(final List<TransactionHistory.Entry> history, final Wallet wallet,
+            final AddressLabelCache labelCache, final Handler backgroundHandler) {
+        backgroundHandler.post(new Runnable() {
+            private int index = 0;
+            private int computed = 0;
+            private final Stopwatch watch = Stopwatch.createStarted();
+
+            @Override
+            public void run() {
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+
+                final int end = Math.min(index + PRECOMPUTE_BATCH_SIZE, history.size());
+                final List<String> addresses = new ArrayList<String>(PRECOMPUTE_BATCH_SIZE);
+                for (; index < end; index++) {
+                    final TransactionHistory.Entry historyEntry = history.get(index);
+                    final Transaction tx = historyEntry.getTransaction();
+                    Entry entry = entries.get(tx.getHash());
+                    if (entry == null || !entry.value.equals(historyEntry.getValue())) {
+                        entry = compute(tx, wallet);
+                        entries.put(tx.getHash(), entry);
+                        computed++;
+                    }
+                    if (entry.address != null)
+                        addresses.add(entry.address.toBase58());
+                }
+                labelCache.prefetch(addresses);
+
+                if (index < history.size()) {
+                    backgroundHandler.post(this);
+                } else if (computed > 0) {
+                    dirty.set(true);
+                    watch.stop();
+                    log.info("precomputed {} transaction cache entries, took {}", computed, watch);
+                }
+            }
+        });
+    }
+
+    private static Entry compute(final Transaction tx, final Wallet wallet) {
+        final Coin value = tx.getValue(wallet);
+        final boolean sent = value.signum() < 0;
+        final boolean self = WalletUtils.isEntirelySelf(tx, wallet);
+        final Coin fee = tx.getFee();
+        final boolean showFee = sent && fee != null && !fee.isZero();
+        final Address address;
+        if (sent)
+            address = WalletUtils.getToAddressOfSent(tx, wallet);
+        else
+            address = WalletUtils.getWalletAddressOfReceived(tx, wallet);
+
+        return new Entry(value, sent, self, showFee, address);
+    }
+
+    /**
+     * Loads persisted entries. The file is only accepted if it was written for the same set of wallet keys, because
+     * values and addresses depend on which outputs are considered ours, and if the wallet hasn't gone back in the
+     * chain since, as happens when it's restored or reset.
+     */
+    public void load(final File file, final Wallet wallet) {
+        if (!file.exists())
+            return;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        DataInputStream is = null;
+
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (is.readInt() != FILE_FORMAT_VERSION || is.readInt() != wallet.getKeyChainGroupSize()
+                    || !isWalletAtOrPast(wallet, is.readInt(), Sha256Hash.wrap(readBytes(is, 32)))) {
+                log.info("discarding stale transaction cache: '{}'", file);
+                file.delete();
+                return;
+            }
+
+            final int size = is.readInt();
+            final byte[] hashBytes = new byte[32];
+            final byte[] hash160 = new byte[20];
+            for (int i = 0; i < size; i++) {
+                is.readFully(hashBytes);
+                final Coin value = Coin.valueOf(is.readLong());
+                final int flags = is.readUnsignedByte();
+                final Address address;
+                if ((flags & FLAG_ADDRESS) != 0) {
+                    final int version = is.readInt();
+                    is.readFully(hash160);
+                    address = new Address(Constants.NETWORK_PARAMETERS, version, hash160.clone());
+                } else {
+                    address = null;
+                }
+                final Sha256Hash hash = Sha256Hash.wrap(hashBytes.clone());
+                if (!entries.containsKey(hash))
+                    entries.put(hash, new Entry(value, (flags & FLAG_SENT) != 0, (flags & FLAG_SELF) != 0,
+                            (flags & FLAG_SHOW_FEE) != 0, address));
+            }
+
+            watch.stop();
+            log.info("transaction cache loaded from: '{}', {} entries, took {}", file, size, watch);
+        } catch (final IOException x) {
+            log.warn("problem loading transaction cache, discarding: '" + file + "'", x);
+            file.delete();
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the cache if it changed since it was last loaded or saved. The file is replaced atomically.
+     */
+    public void saveIfDirty(final File file, final Wallet wallet) {
+        if (!dirty.getAndSet(false))
+            return;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream os = null;
+
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            os.writeInt(FILE_FORMAT_VERSION);
+            os.writeInt(wallet.getKeyChainGroupSize());
+            final Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+            os.writeInt(wallet.getLastBlockSeenHeight());
+            os.write((lastBlockSeenHash != null ? lastBlockSeenHash : Sha256Hash.ZERO_HASH).getBytes());
+
+            final Map<Sha256Hash, Entry> snapshot = new HashMap<Sha256Hash, Entry>(entries);
+            os.writeInt(snapshot.size());
+            for (final Map.Entry<Sha256Hash, Entry> mapEntry : snapshot.entrySet()) {
+                final Entry entry = mapEntry.getValue();
+                os.write(mapEntry.getKey().getBytes());
+                os.writeLong(entry.value.value);
+                os.writeByte((entry.sent ? FLAG_SENT : 0) | (entry.self ? FLAG_SELF : 0)
+                        | (entry.showFee ? FLAG_SHOW_FEE : 0) | (entry.address != null ? FLAG_ADDRESS : 0));
+                if (entry.address != null) {
+                    os.writeInt(entry.address.getVersion());
+                    os.write(entry.address.getHash160());
+                }
+            }
+            os.close();
+            os = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("cannot rename " + tempFile + " to " + file);
+
+            watch.stop();
+            log.info("transaction cache saved to: '{}', {} entries, took {}", file, snapshot.size(), watch);
+        } catch (final IOException x) {
+            log.warn("problem saving transaction cache", x);
+            tempFile.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private static boolean isWalletAtOrPast(final Wallet wallet, final int height, final Sha256Hash blockHash) {
+        final int lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        if (lastBlockSeenHeight != height)
+            return lastBlockSeenHeight > height;
+        final Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+        return blockHash.equals(lastBlockSeenHash != null ? lastBlockSeenHash : Sha256Hash.ZERO_HASH);
+    }
+
+    private static byte[] readBytes(final DataInputStream is, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        is.readFully(bytes);
+        return bytes;
+    }
+}
@@ -18,11 +18,15 @@
 package de.schildbach.wallet.ui;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -35,7 +39,9 @@ import org.bitcoinj.wallet.DefaultCoinSelector;
 import org.bitcoinj.wallet.Wallet;
 
 import de.schildbach.wallet.Constants;
-import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.AddressLabelCache;
+import de.schildbach.wallet.data.TransactionHistory;
 import de.schildbach.wallet.util.CircularProgressView;
 import de.schildbach.wallet.util.Formats;
 import de.schildbach.wallet.util.WalletUtils;
@@ -45,6 +51,9 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.os.Handler;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
 import android.text.Html;
@@ -74,6 +83,11 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     private final OnClickListener onClickListener;
 
     private final List<Transaction> transactions = new ArrayList<>();
+    private List<TransactionHistory.Entry> entries = Collections.emptyList();
+    private int generation = 0;
+    private final Handler callbackHandler = new Handler();
+    @Nullable
+    private Handler backgroundHandler = null;
     private MonetaryFormat format;
     private Warning warning = null;
 
@@ -94,36 +108,26 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     private static final int VIEW_TYPE_TRANSACTION = 0;
     private static final int VIEW_TYPE_WARNING = 1;
 
-    private Map<Sha256Hash, TransactionCacheEntry> transactionCache = new HashMap<Sha256Hash, TransactionCacheEntry>();
-
-    private static class TransactionCacheEntry {
-        private final Coin value;
-        private final boolean sent;
-        private final boolean self;
-        private final boolean showFee;
-        @Nullable
-        private final Address address;
-        @Nullable
-        private final String addressLabel;
-
-        private TransactionCacheEntry(final Coin value, final boolean sent, final boolean self, final boolean showFee,
-                final @Nullable Address address, final @Nullable String addressLabel) {
-            this.value = value;
-            this.sent = sent;
-            this.self = self;
-            this.showFee = showFee;
-            this.address = address;
-            this.addressLabel = addressLabel;
-        }
-    }
+    // rebinds a row in place, rather than cross-fading it, when only cached details like its label have come in
+    private static final Object PAYLOAD_DETAILS = new Object();
+
+    private final TransactionCache transactionCache;
+    private final AddressLabelCache labelCache;
 
     public TransactionsAdapter(final Context context, final Wallet wallet, final boolean useCards,
             final int maxConnectedPeers, final @Nullable OnClickListener onClickListener) {
+        this(context, wallet, new TransactionCache(), useCards, maxConnectedPeers, onClickListener);
+    }
+
+    public TransactionsAdapter(final Context context, final Wallet wallet, final TransactionCache transactionCache,
+            final boolean useCards, final int maxConnectedPeers, final @Nullable OnClickListener onClickListener) {
         this.context = context;
         inflater = LayoutInflater.from(context);
 
         this.useCards = useCards;
         this.wallet = wallet;
+        this.transactionCache = transactionCache;
+        this.labelCache = ((WalletApplication) context.getApplicationContext()).getAddressLabelCache();
         this.maxConnectedPeers = maxConnectedPeers;
         this.onClickListener = onClickListener;
 
@@ -158,6 +162,8 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
 
     public void clear() {
         transactions.clear();
+        entries = Collections.emptyList();
+        generation++;
 
         notifyDataSetChanged();
     }
@@ -165,6 +171,8 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public void replace(final Transaction tx) {
         transactions.clear();
         transactions.add(tx);
+        entries = Collections.emptyList();
+        generation++;
 
         notifyDataSetChanged();
     }
@@ -172,18 +180,184 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public void replace(final Collection<Transaction> transactions) {
         this.transactions.clear();
         this.transactions.addAll(transactions);
+        entries = Collections.emptyList();
+        generation++;
 
         notifyDataSetChanged();
     }
 
-    public void setSelectedItemId(final long itemId) {
-        selectedItemId = itemId;
+    /**
+     * Replaces the content with a history snapshot. The difference to the current content is calculated on the
+     * background handler, and only the rows that were inserted, moved or changed are notified. Cache entries are
+     * precomputed for the whole snapshot if there was no content before, and for the inserted and changed
+     * transactions otherwise.
+     */
+    public void replace(final List<TransactionHistory.Entry> newEntries, final Handler backgroundHandler) {
+        final List<TransactionHistory.Entry> oldEntries = this.entries;
+        final int generation = ++this.generation;
+        this.backgroundHandler = backgroundHandler;
+
+        if (oldEntries.isEmpty() || newEntries.isEmpty()) {
+            setEntries(newEntries);
+            notifyDataSetChanged();
+            if (!newEntries.isEmpty())
+                transactionCache.precompute(newEntries, wallet, labelCache, backgroundHandler);
+            return;
+        }
 
-        notifyDataSetChanged();
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Map<Sha256Hash, TransactionHistory.Entry> oldEntriesByHash = new HashMap<>(oldEntries.size());
+                for (final TransactionHistory.Entry entry : oldEntries)
+                    oldEntriesByHash.put(entry.getHash(), entry);
+
+                final Set<Sha256Hash> invalidated = new HashSet<>();
+                // unchanged transactions keep their history entry from one snapshot to the next
+                final List<TransactionHistory.Entry> updated = new ArrayList<>();
+                for (final TransactionHistory.Entry newEntry : newEntries) {
+                    final TransactionHistory.Entry oldEntry = oldEntriesByHash.get(newEntry.getHash());
+                    if (oldEntry != newEntry)
+                        updated.add(newEntry);
+                    if (oldEntry != null && oldEntry != newEntry
+                            && (!oldEntry.hasSameValue(newEntry) || !oldEntry.hasSameConfidenceType(newEntry)))
+                        invalidated.add(newEntry.getHash());
+                }
+
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                    @Override
+                    public int getOldListSize() {
+                        return oldEntries.size();
+                    }
+
+                    @Override
+                    public int getNewListSize() {
+                        return newEntries.size();
+                    }
+
+                    @Override
+                    public boolean areItemsTheSame(final int oldItemPosition, final int newItemPosition) {
+                        return oldEntries.get(oldItemPosition).getHash()
+                                .equals(newEntries.get(newItemPosition).getHash());
+                    }
+
+                    @Override
+                    public boolean areContentsTheSame(final int oldItemPosition, final int newItemPosition) {
+                        final TransactionHistory.Entry oldEntry = oldEntries.get(oldItemPosition);
+                        final TransactionHistory.Entry newEntry = newEntries.get(newItemPosition);
+                        return oldEntry == newEntry
+                                || (oldEntry.hasSameValue(newEntry) && oldEntry.hasSameConfidence(newEntry));
+                    }
+                });
+
+                callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // superseded by a later update
+                        if (generation != TransactionsAdapter.this.generation)
+                            return;
+
+                        setEntries(newEntries);
+                        for (final Sha256Hash hash : invalidated)
+                            transactionCache.remove(hash);
+                        diff.dispatchUpdatesTo(listUpdateCallback);
+                        if (!updated.isEmpty())
+                            transactionCache.precompute(updated, wallet, labelCache, backgroundHandler);
+
+                        // the backup warning reads differently for the very first transaction
+                        if (warning == Warning.BACKUP && oldEntries.size() != newEntries.size()
+                                && (oldEntries.size() == 1 || newEntries.size() == 1))
+                            notifyItemChanged(0);
+                    }
+                });
+            }
+        });
     }
 
-    public void clearCacheAndNotifyDataSetChanged() {
-        transactionCache.clear();
+    private final TransactionCache.Listener cacheEntriesComputed = new TransactionCache.Listener() {
+        @Override
+        public void onEntriesComputed(final Set<Sha256Hash> hashes) {
+            callbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final BitSet rows = new BitSet(transactions.size());
+                    for (int i = 0; i < transactions.size(); i++)
+                        if (hashes.contains(transactions.get(i).getHash()))
+                            rows.set(i);
+                    notifyRowsChanged(rows);
+                }
+            });
+        }
+    };
+
+    /**
+     * Redraws the rows of transactions from or to one of the given addresses, e.g. because their labels changed.
+     * Rows whose address isn't known yet are redrawn once it is, anyway.
+     */
+    public void notifyAddressesChanged(final Set<String> addresses) {
+        final Set<Address> changed = new HashSet<>(addresses.size());
+        for (final String address : addresses) {
+            try {
+                changed.add(Address.fromBase58(Constants.NETWORK_PARAMETERS, address));
+            } catch (final AddressFormatException x) {
+                // not an address this list can show
+            }
+        }
+
+        final BitSet rows = new BitSet(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            final TransactionCache.Entry txCache = transactionCache.get(transactions.get(i).getHash());
+            if (txCache != null && txCache.address != null && changed.contains(txCache.address))
+                rows.set(i);
+        }
+        notifyRowsChanged(rows);
+    }
+
+    private void notifyRowsChanged(final BitSet rows) {
+        final int positionOffset = warning != null ? 1 : 0;
+        int start = rows.nextSetBit(0);
+        while (start >= 0) {
+            final int end = rows.nextClearBit(start);
+            notifyItemRangeChanged(start + positionOffset, end - start, PAYLOAD_DETAILS);
+            start = rows.nextSetBit(end);
+        }
+    }
+
+    private void setEntries(final List<TransactionHistory.Entry> entries) {
+        this.entries = entries;
+        transactions.clear();
+        for (final TransactionHistory.Entry entry : entries)
+            transactions.add(entry.getTransaction());
+    }
+
+    private final ListUpdateCallback listUpdateCallback = new ListUpdateCallback() {
+        @Override
+        public void onInserted(final int position, final int count) {
+            notifyItemRangeInserted(position + positionOffset(), count);
+        }
+
+        @Override
+        public void onRemoved(final int position, final int count) {
+            notifyItemRangeRemoved(position + positionOffset(), count);
+        }
+
+        @Override
+        public void onMoved(final int fromPosition, final int toPosition) {
+            notifyItemMoved(fromPosition + positionOffset(), toPosition + positionOffset());
+        }
+
+        @Override
+        public void onChanged(final int position, final int count, final Object payload) {
+            notifyItemRangeChanged(position + positionOffset(), count, payload);
+        }
+
+        private int positionOffset() {
+            return warning != null ? 1 : 0;
+        }
+    };
+
+    public void setSelectedItemId(final long itemId) {
+        selectedItemId = itemId;
 
         notifyDataSetChanged();
     }
@@ -251,8 +425,9 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             final long itemId = getItemId(position);
             transactionHolder.itemView.setActivated(itemId == selectedItemId);
 
-            final Transaction tx = transactions.get(position - (warning != null ? 1 : 0));
-            transactionHolder.bind(tx);
+            final int index = position - (warning != null ? 1 : 0);
+            final Transaction tx = transactions.get(index);
+            transactionHolder.bind(tx, !entries.isEmpty() ? entries.get(index) : null);
 
             transactionHolder.itemView.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -346,7 +521,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             ageVerificationView = (TextView) itemView.findViewById(R.id.transaction_row_agev_text);
         }
 
-        private void bind(final Transaction tx) {
+        private void bind(final Transaction tx, @Nullable final TransactionHistory.Entry historyEntry) {
             if (itemView instanceof CardView)
                 ((CardView) itemView)
                         .setCardBackgroundColor(itemView.isActivated() ? colorBackgroundSelected : colorBackground);
@@ -360,23 +535,10 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             final String[] memo = Formats.sanitizeMemo(tx.getMemo());
             final long txVersion = tx.getVersion();
 
-            TransactionCacheEntry txCache = transactionCache.get(tx.getHash());
-            if (txCache == null) {
-                final Coin value = tx.getValue(wallet);
-                final boolean sent = value.signum() < 0;
-                final boolean self = WalletUtils.isEntirelySelf(tx, wallet);
-                final boolean showFee = sent && fee != null && !fee.isZero();
-                final Address address;
-                if (sent)
-                    address = WalletUtils.getToAddressOfSent(tx, wallet);
-                else
-                    address = WalletUtils.getWalletAddressOfReceived(tx, wallet);
-                final String addressLabel = address != null
-                        ? AddressBookProvider.resolveLabel(context, address.toBase58()) : null;
-
-                txCache = new TransactionCacheEntry(value, sent, self, showFee, address, addressLabel);
-                transactionCache.put(tx.getHash(), txCache);
-            }
+            final TransactionCache.Entry txCache = historyEntry != null && backgroundHandler != null
+                    ? transactionCache.getOrRequest(historyEntry, wallet, backgroundHandler, cacheEntriesComputed)
+                    : transactionCache.getOrCompute(tx, wallet);
+            final String addressLabel = txCache.address != null ? labelCache.get(txCache.address.toBase58()) : null;
 
             final int textColor, lessSignificantColor, valueColor;
             if (confidenceType == ConfidenceType.DEAD) {
@@ -423,8 +585,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 confidenceTextualView.setVisibility(View.GONE);
 
                 confidenceCircularView.setProgress(confidence.getDepthInBlocks());
-                confidenceCircularView.setMaxProgress(isCoinBase
-                        ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth() : Constants.MAX_NUM_CONFIRMATIONS);
+                confidenceCircularView.setMaxProgress(TransactionHistory.maxConfirmationsShown(tx));
                 confidenceCircularView.setSize(1);
                 confidenceCircularView.setMaxSize(1);
                 confidenceCircularView.setColors(valueColor, Color.TRANSPARENT);
@@ -472,10 +633,10 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 addressView.setText(textInternal);
             } else if (purpose == Purpose.RAISE_FEE) {
                 addressView.setText(null);
-            } else if (txCache.addressLabel != null) {
+            } else if (addressLabel != null) {
                 addressView.setTextColor(textColor);
                 addressView.setTypeface(Typeface.DEFAULT_BOLD);
-                addressView.setText(txCache.addressLabel);
+                addressView.setText(addressLabel);
             } else if (memo != null && memo.length >= 2) {
                 addressView.setTextColor(textColor);
                 addressView.setTypeface(Typeface.DEFAULT_BOLD);
@@ -25,7 +25,6 @@ import javax.annotation.Nullable;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.params.AbstractBitcoinNetParams;
 import org.bitcoinj.uri.BitcoinURI;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +33,7 @@ import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.Qr;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.util.WalletEventHub;
 import de.schildbach.wallet_test.R;
 
 import android.app.Activity;
@@ -58,6 +57,7 @@ import android.nfc.NfcEvent;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.CardView;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -151,15 +151,19 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
 
     public static class CurrentAddressLoader extends AsyncTaskLoader<Address> {
         private LocalBroadcastManager broadcastManager;
+        private final WalletEventHub walletEventHub;
         private final Wallet wallet;
         private Configuration config;
 
+        private static final long THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+
         private static final Logger log = LoggerFactory.getLogger(WalletBalanceLoader.class);
 
         public CurrentAddressLoader(final Context context, final Wallet wallet, final Configuration config) {
             super(context);
 
             this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
+            this.walletEventHub = ((WalletApplication) context.getApplicationContext()).getWalletEventHub();
             this.wallet = wallet;
             this.config = config;
         }
@@ -168,9 +172,8 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
         protected void onStartLoading() {
             super.onStartLoading();
 
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletChangeListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletChangeListener);
-            wallet.addChangeEventListener(Threading.SAME_THREAD, walletChangeListener);
+            walletEventHub.subscribe(walletEventListener, WalletEventHub.HISTORY | WalletEventHub.KEYS,
+                    THROTTLE_MS);
             broadcastManager.registerReceiver(walletChangeReceiver,
                     new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
             config.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
@@ -182,10 +185,7 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
         protected void onStopLoading() {
             config.unregisterOnSharedPreferenceChangeListener(preferenceChangeListener);
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(walletChangeListener);
-            wallet.removeCoinsSentEventListener(walletChangeListener);
-            wallet.removeCoinsReceivedEventListener(walletChangeListener);
-            walletChangeListener.removeCallbacks();
+            walletEventHub.unsubscribe(walletEventListener);
 
             super.onStopLoading();
         }
@@ -194,10 +194,7 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
         protected void onReset() {
             config.unregisterOnSharedPreferenceChangeListener(preferenceChangeListener);
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(walletChangeListener);
-            wallet.removeCoinsSentEventListener(walletChangeListener);
-            wallet.removeCoinsReceivedEventListener(walletChangeListener);
-            walletChangeListener.removeCallbacks();
+            walletEventHub.unsubscribe(walletEventListener);
 
             super.onReset();
         }
@@ -209,9 +206,9 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
             return wallet.currentReceiveAddress();
         }
 
-        private final ThrottlingWalletChangeListener walletChangeListener = new ThrottlingWalletChangeListener() {
+        private final WalletEventHub.Listener walletEventListener = new WalletEventHub.Listener() {
             @Override
-            public void onThrottledWalletChanged() {
+            public void onWalletEvents(final int events) {
                 safeForceLoad();
             }
         };
@@ -26,7 +26,8 @@ import org.bitcoinj.core.ECKey;
 import org.bitcoinj.wallet.Wallet;
 
 import de.schildbach.wallet.Constants;
-import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.AddressLabelCache;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -44,6 +45,7 @@ import android.widget.TextView;
 public class WalletAddressesAdapter extends BaseAdapter {
     private final Context context;
     private final Wallet wallet;
+    private final AddressLabelCache labelCache;
     private final int colorSignificant;
     private final int colorInsignificant;
     private final int colorLessSignificant;
@@ -57,6 +59,7 @@ public class WalletAddressesAdapter extends BaseAdapter {
 
         this.context = context;
         this.wallet = wallet;
+        this.labelCache = ((WalletApplication) context.getApplicationContext()).getAddressLabelCache();
         colorSignificant = res.getColor(R.color.fg_significant);
         colorInsignificant = res.getColor(R.color.fg_insignificant);
         colorLessSignificant = res.getColor(R.color.fg_less_significant);
@@ -145,7 +148,7 @@ public class WalletAddressesAdapter extends BaseAdapter {
         addressView.setTextColor(isRotateKey ? colorInsignificant : colorSignificant);
 
         final TextView labelView = (TextView) row.findViewById(R.id.address_book_row_label);
-        final String label = AddressBookProvider.resolveLabel(context, address.toBase58());
+        final String label = labelCache.get(address.toBase58());
         if (label != null) {
             labelView.setText(label);
             labelView.setTextColor(isRotateKey ? colorInsignificant : colorLessSignificant);
@@ -17,27 +17,28 @@
 
 package de.schildbach.wallet.ui;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.params.AbstractBitcoinNetParams;
 import org.bitcoinj.uri.BitcoinURI;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
-import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.data.AddressLabelCache;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Qr;
 import de.schildbach.wallet.util.Toast;
+import de.schildbach.wallet.util.WalletEventHub;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.util.WholeStringBuilder;
 import de.schildbach.wallet_test.R;
@@ -45,13 +46,10 @@ import de.schildbach.wallet_test.R;
 import android.app.Activity;
 import android.content.ClipData;
 import android.content.ClipboardManager;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -70,7 +68,7 @@ public final class WalletAddressesFragment extends FancyListFragment {
     private Configuration config;
     private Wallet wallet;
     private ClipboardManager clipboardManager;
-    private ContentResolver contentResolver;
+    private AddressLabelCache labelCache;
 
     private WalletAddressesAdapter adapter;
 
@@ -85,7 +83,7 @@ public final class WalletAddressesFragment extends FancyListFragment {
         this.config = application.getConfiguration();
         this.wallet = application.getWallet();
         this.clipboardManager = (ClipboardManager) activity.getSystemService(Context.CLIPBOARD_SERVICE);
-        this.contentResolver = activity.getContentResolver();
+        this.labelCache = application.getAddressLabelCache();
     }
 
     @Override
@@ -110,20 +108,19 @@ public final class WalletAddressesFragment extends FancyListFragment {
     public void onResume() {
         super.onResume();
 
-        contentResolver.registerContentObserver(AddressBookProvider.contentUri(activity.getPackageName()), true,
-                contentObserver);
+        labelCache.addListener(labelsChangeListener);
 
-        wallet.addKeyChainEventListener(Threading.SAME_THREAD, walletListener);
-        walletListener.onKeysAdded(null); // trigger initial load of keys
+        application.getWalletEventHub().subscribe(walletEventListener, WalletEventHub.KEYS, 0);
+        loadKeys();
 
         updateView();
     }
 
     @Override
     public void onPause() {
-        wallet.removeKeyChainEventListener(walletListener);
+        application.getWalletEventHub().unsubscribe(walletEventListener);
 
-        contentResolver.unregisterContentObserver(contentObserver);
+        labelCache.removeListener(labelsChangeListener);
 
         super.onPause();
     }
@@ -151,7 +148,7 @@ public final class WalletAddressesFragment extends FancyListFragment {
                 final ECKey key = getKey(position);
 
                 final String address = key.toAddress(Constants.NETWORK_PARAMETERS).toBase58();
-                final String label = AddressBookProvider.resolveLabel(activity, address);
+                final String label = labelCache.get(address);
                 mode.setTitle(label != null ? label
                         : WalletUtils.formatHash(address, Constants.ADDRESS_FORMAT_GROUP_SIZE, 0));
 
@@ -227,44 +224,48 @@ public final class WalletAddressesFragment extends FancyListFragment {
             ((BaseAdapter) adapter).notifyDataSetChanged();
     }
 
-    private final Handler handler = new Handler();
-
-    private final ContentObserver contentObserver = new ContentObserver(handler) {
+    private final AddressLabelCache.Listener labelsChangeListener = new AddressLabelCache.Listener() {
         @Override
-        public void onChange(final boolean selfChange) {
+        public void onLabelsChanged(final Set<String> addresses) {
             updateView();
         }
     };
 
-    private final KeyChainEventListener walletListener = new KeyChainEventListener() {
+    private final WalletEventHub.Listener walletEventListener = new WalletEventHub.Listener() {
         @Override
-        public void onKeysAdded(final List<ECKey> keysAdded) {
-            final List<ECKey> derivedKeys = wallet.getIssuedReceiveKeys();
-            final List<ECKey> randomKeys = wallet.getImportedKeys();
+        public void onWalletEvents(final int events) {
+            loadKeys();
+        }
+    };
 
-            Collections.sort(randomKeys, new Comparator<ECKey>() {
-                @Override
-                public int compare(final ECKey lhs, final ECKey rhs) {
-                    final boolean lhsRotating = wallet.isKeyRotating(lhs);
-                    final boolean rhsRotating = wallet.isKeyRotating(rhs);
+    private void loadKeys() {
+        final List<ECKey> derivedKeys = wallet.getIssuedReceiveKeys();
+        final List<ECKey> randomKeys = wallet.getImportedKeys();
 
-                    if (lhsRotating != rhsRotating)
-                        return lhsRotating ? 1 : -1;
+        Collections.sort(randomKeys, new Comparator<ECKey>() {
+            @Override
+            public int compare(final ECKey lhs, final ECKey rhs) {
+                final boolean lhsRotating = wallet.isKeyRotating(lhs);
+                final boolean rhsRotating = wallet.isKeyRotating(rhs);
 
-                    if (lhs.getCreationTimeSeconds() != rhs.getCreationTimeSeconds())
-                        return lhs.getCreationTimeSeconds() > rhs.getCreationTimeSeconds() ? 1 : -1;
+                if (lhsRotating != rhsRotating)
+                    return lhsRotating ? 1 : -1;
 
-                    return 0;
-                }
-            });
+                if (lhs.getCreationTimeSeconds() != rhs.getCreationTimeSeconds())
+                    return lhs.getCreationTimeSeconds() > rhs.getCreationTimeSeconds() ? 1 : -1;
 
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    adapter.replaceDerivedKeys(derivedKeys);
-                    adapter.replaceRandomKeys(randomKeys);
-                }
-            });
-        }
-    };
+                return 0;
+            }
+        });
+
+        final List<String> addresses = new ArrayList<String>(derivedKeys.size() + randomKeys.size());
+        for (final ECKey key : derivedKeys)
+            addresses.add(key.toAddress(Constants.NETWORK_PARAMETERS).toBase58());
+        for (final ECKey key : randomKeys)
+            addresses.add(key.toAddress(Constants.NETWORK_PARAMETERS).toBase58());
+        labelCache.prefetch(addresses);
+
+        adapter.replaceDerivedKeys(derivedKeys);
+        adapter.replaceRandomKeys(randomKeys);
+    }
 }
@@ -21,7 +21,6 @@ import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
-import org.bitcoinj.wallet.Wallet;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
@@ -61,7 +60,6 @@ public final class WalletBalanceFragment extends Fragment {
     private WalletApplication application;
     private AbstractBindServiceActivity activity;
     private Configuration config;
-    private Wallet wallet;
     private LoaderManager loaderManager;
 
     private View viewBalance;
@@ -95,7 +93,6 @@ public final class WalletBalanceFragment extends Fragment {
         this.activity = (AbstractBindServiceActivity) activity;
         this.application = (WalletApplication) activity.getApplication();
         this.config = application.getConfiguration();
-        this.wallet = application.getWallet();
         this.loaderManager = getLoaderManager();
 
         showLocalBalance = getResources().getBoolean(R.bool.show_local_balance);
@@ -300,7 +297,7 @@ public final class WalletBalanceFragment extends Fragment {
     private final LoaderCallbacks<Coin> balanceLoaderCallbacks = new LoaderManager.LoaderCallbacks<Coin>() {
         @Override
         public Loader<Coin> onCreateLoader(final int id, final Bundle args) {
-            return new WalletBalanceLoader(activity, wallet);
+            return new WalletBalanceLoader(activity);
         }
 
         @Override
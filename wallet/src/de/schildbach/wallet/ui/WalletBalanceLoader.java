@@ -20,15 +20,13 @@ package de.schildbach.wallet.ui;
 import java.util.concurrent.RejectedExecutionException;
 
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.utils.Threading;
-import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.util.WalletEventHub;
 
 import android.content.AsyncTaskLoader;
 import android.content.BroadcastReceiver;
@@ -36,30 +34,31 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.format.DateUtils;
 
 /**
  * @author Andreas Schildbach
  */
 public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     private LocalBroadcastManager broadcastManager;
-    private final Wallet wallet;
+    private final WalletApplication application;
+
+    private static final long THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
 
     private static final Logger log = LoggerFactory.getLogger(WalletBalanceLoader.class);
 
-    public WalletBalanceLoader(final Context context, final Wallet wallet) {
+    public WalletBalanceLoader(final Context context) {
         super(context);
 
         this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
-        this.wallet = wallet;
+        this.application = (WalletApplication) context.getApplicationContext();
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
 
-        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletChangeListener);
-        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletChangeListener);
-        wallet.addChangeEventListener(Threading.SAME_THREAD, walletChangeListener);
+        application.getWalletEventHub().subscribe(walletEventListener, WalletEventHub.BALANCE, THROTTLE_MS);
         broadcastManager.registerReceiver(walletChangeReceiver,
                 new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
 
@@ -69,10 +68,7 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     @Override
     protected void onStopLoading() {
         broadcastManager.unregisterReceiver(walletChangeReceiver);
-        wallet.removeChangeEventListener(walletChangeListener);
-        wallet.removeCoinsSentEventListener(walletChangeListener);
-        wallet.removeCoinsReceivedEventListener(walletChangeListener);
-        walletChangeListener.removeCallbacks();
+        application.getWalletEventHub().unsubscribe(walletEventListener);
 
         super.onStopLoading();
     }
@@ -80,10 +76,7 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     @Override
     protected void onReset() {
         broadcastManager.unregisterReceiver(walletChangeReceiver);
-        wallet.removeChangeEventListener(walletChangeListener);
-        wallet.removeCoinsSentEventListener(walletChangeListener);
-        wallet.removeCoinsReceivedEventListener(walletChangeListener);
-        walletChangeListener.removeCallbacks();
+        application.getWalletEventHub().unsubscribe(walletEventListener);
 
         super.onReset();
     }
@@ -92,12 +85,12 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     public Coin loadInBackground() {
         org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-        return wallet.getBalance(BalanceType.ESTIMATED);
+        return application.getWalletBalances().get(BalanceType.ESTIMATED);
     }
 
-    private final ThrottlingWalletChangeListener walletChangeListener = new ThrottlingWalletChangeListener() {
+    private final WalletEventHub.Listener walletEventListener = new WalletEventHub.Listener() {
         @Override
-        public void onThrottledWalletChanged() {
+        public void onWalletEvents(final int events) {
             safeForceLoad();
         }
     };
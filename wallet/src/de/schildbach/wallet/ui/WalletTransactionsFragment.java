@@ -17,11 +17,8 @@
 
 package de.schildbach.wallet.ui;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.RejectedExecutionException;
@@ -32,8 +29,6 @@ import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.Purpose;
-import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,12 +37,15 @@ import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.data.AddressLabelCache;
+import de.schildbach.wallet.data.TransactionHistory;
+import de.schildbach.wallet.data.TransactionHistory.Direction;
 import de.schildbach.wallet.ui.TransactionsAdapter.Warning;
 import de.schildbach.wallet.ui.send.RaiseFeeDialogFragment;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Qr;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.util.WalletEventHub;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -58,14 +56,12 @@ import android.app.LoaderManager.LoaderCallbacks;
 import android.app.admin.DevicePolicyManager;
 import android.content.AsyncTaskLoader;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
-import android.database.ContentObserver;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Rect;
@@ -74,6 +70,8 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.provider.Settings;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.LinearLayoutManager;
@@ -96,17 +94,12 @@ import android.widget.ViewAnimator;
 /**
  * @author Andreas Schildbach
  */
-public class WalletTransactionsFragment extends Fragment implements LoaderCallbacks<List<Transaction>>,
+public class WalletTransactionsFragment extends Fragment implements LoaderCallbacks<List<TransactionHistory.Entry>>,
         TransactionsAdapter.OnClickListener, OnSharedPreferenceChangeListener {
-    public enum Direction {
-        RECEIVED, SENT
-    }
-
     private AbstractWalletActivity activity;
     private WalletApplication application;
     private Configuration config;
     private Wallet wallet;
-    private ContentResolver resolver;
     private LoaderManager loaderManager;
     private DevicePolicyManager devicePolicyManager;
 
@@ -114,6 +107,8 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     private TextView emptyView;
     private RecyclerView recyclerView;
     private TransactionsAdapter adapter;
+    private TransactionCache transactionCache;
+    private File transactionCacheFile;
     private MenuItem filterMenuItem;
 
     @Nullable
@@ -121,6 +116,9 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
 
     private final Handler handler = new Handler();
 
+    private HandlerThread backgroundThread;
+    private Handler backgroundHandler;
+
     private static final int ID_TRANSACTION_LOADER = 0;
     private static final String ARG_DIRECTION = "direction";
 
@@ -130,10 +128,10 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
 
     private static final Logger log = LoggerFactory.getLogger(WalletTransactionsFragment.class);
 
-    private final ContentObserver addressBookObserver = new ContentObserver(handler) {
+    private final AddressLabelCache.Listener labelsChangeListener = new AddressLabelCache.Listener() {
         @Override
-        public void onChange(final boolean selfChange) {
-            adapter.clearCacheAndNotifyDataSetChanged();
+        public void onLabelsChanged(final Set<String> addresses) {
+            adapter.notifyAddressesChanged(addresses);
         }
     };
 
@@ -145,7 +143,6 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         this.application = (WalletApplication) activity.getApplication();
         this.config = application.getConfiguration();
         this.wallet = application.getWallet();
-        this.resolver = activity.getContentResolver();
         this.loaderManager = getLoaderManager();
         this.devicePolicyManager = (DevicePolicyManager) application.getSystemService(Context.DEVICE_POLICY_SERVICE);
     }
@@ -157,11 +154,32 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         setRetainInstance(true);
         setHasOptionsMenu(true);
 
-        adapter = new TransactionsAdapter(activity, wallet, true, application.maxConnectedPeers(), this);
+        transactionCache = new TransactionCache();
+        transactionCacheFile = new File(application.getCacheDir(), Constants.Files.TRANSACTION_CACHE_FILENAME);
+        adapter = new TransactionsAdapter(activity, wallet, transactionCache, true, application.maxConnectedPeers(),
+                this);
+
+        backgroundThread = new HandlerThread("backgroundThread", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                transactionCache.load(transactionCacheFile, wallet);
+            }
+        });
 
         this.direction = null;
     }
 
+    @Override
+    public void onDestroy() {
+        backgroundThread.getLooper().quit();
+
+        super.onDestroy();
+    }
+
     @Override
     public View onCreateView(final LayoutInflater inflater, final ViewGroup container,
             final Bundle savedInstanceState) {
@@ -199,8 +217,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     public void onResume() {
         super.onResume();
 
-        resolver.registerContentObserver(AddressBookProvider.contentUri(activity.getPackageName()), true,
-                addressBookObserver);
+        application.getAddressLabelCache().addListener(labelsChangeListener);
 
         config.registerOnSharedPreferenceChangeListener(this);
 
@@ -208,27 +225,18 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         args.putSerializable(ARG_DIRECTION, direction);
         loaderManager.initLoader(ID_TRANSACTION_LOADER, args, this);
 
-        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addChangeEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, transactionChangeListener);
-
         updateView();
     }
 
     @Override
     public void onPause() {
-        wallet.removeTransactionConfidenceEventListener(transactionChangeListener);
-        wallet.removeChangeEventListener(transactionChangeListener);
-        wallet.removeCoinsSentEventListener(transactionChangeListener);
-        wallet.removeCoinsReceivedEventListener(transactionChangeListener);
-        transactionChangeListener.removeCallbacks();
+        backgroundHandler.post(saveTransactionCacheRunnable);
 
         loaderManager.destroyLoader(ID_TRANSACTION_LOADER);
 
         config.unregisterOnSharedPreferenceChangeListener(this);
 
-        resolver.unregisterContentObserver(addressBookObserver);
+        application.getAddressLabelCache().removeListener(labelsChangeListener);
 
         super.onPause();
     }
@@ -299,6 +307,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
                 .findItem(R.id.wallet_transactions_context_edit_address);
         if (!txRotation && txAddress != null) {
             editAddressMenuItem.setVisible(true);
+            // the cache may not have resolved it yet, and a wrong title would be worse than one query per click
             final boolean isAdd = AddressBookProvider.resolveLabel(activity, txAddress.toBase58()) == null;
             final boolean isOwn = wallet.isPubKeyHashMine(txAddress.getHash160());
 
@@ -426,15 +435,17 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     }
 
     @Override
-    public Loader<List<Transaction>> onCreateLoader(final int id, final Bundle args) {
-        return new TransactionsLoader(activity, wallet, (Direction) args.getSerializable(ARG_DIRECTION));
+    public Loader<List<TransactionHistory.Entry>> onCreateLoader(final int id, final Bundle args) {
+        return new TransactionsLoader(activity, application, (Direction) args.getSerializable(ARG_DIRECTION));
     }
 
     @Override
-    public void onLoadFinished(final Loader<List<Transaction>> loader, final List<Transaction> transactions) {
+    public void onLoadFinished(final Loader<List<TransactionHistory.Entry>> loader,
+            final List<TransactionHistory.Entry> transactions) {
         final Direction direction = ((TransactionsLoader) loader).getDirection();
 
-        adapter.replace(transactions);
+        // also precomputes the cache entries of whatever is new to the list
+        adapter.replace(transactions, backgroundHandler);
 
         if (transactions.isEmpty()) {
             viewGroup.setDisplayedChild(1);
@@ -459,29 +470,29 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     }
 
     @Override
-    public void onLoaderReset(final Loader<List<Transaction>> loader) {
+    public void onLoaderReset(final Loader<List<TransactionHistory.Entry>> loader) {
         // don't clear the adapter, because it will confuse users
     }
 
-    private final ThrottlingWalletChangeListener transactionChangeListener = new ThrottlingWalletChangeListener(
-            THROTTLE_MS) {
+    private final Runnable saveTransactionCacheRunnable = new Runnable() {
         @Override
-        public void onThrottledWalletChanged() {
-            adapter.notifyDataSetChanged();
+        public void run() {
+            transactionCache.saveIfDirty(transactionCacheFile, wallet);
         }
     };
 
-    private static class TransactionsLoader extends AsyncTaskLoader<List<Transaction>> {
+    private static class TransactionsLoader extends AsyncTaskLoader<List<TransactionHistory.Entry>> {
         private LocalBroadcastManager broadcastManager;
-        private final Wallet wallet;
+        private final WalletApplication application;
         @Nullable
         private final Direction direction;
 
-        private TransactionsLoader(final Context context, final Wallet wallet, @Nullable final Direction direction) {
+        private TransactionsLoader(final Context context, final WalletApplication application,
+                @Nullable final Direction direction) {
             super(context);
 
             this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
-            this.wallet = wallet;
+            this.application = application;
             this.direction = direction;
         }
 
@@ -493,12 +504,10 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         protected void onStartLoading() {
             super.onStartLoading();
 
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
-            wallet.addChangeEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
+            application.getWalletEventHub().subscribe(walletEventListener,
+                    WalletEventHub.HISTORY | WalletEventHub.CONFIDENCE, THROTTLE_MS);
             broadcastManager.registerReceiver(walletChangeReceiver,
                     new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
-            transactionAddRemoveListener.onReorganize(null); // trigger at least one reload
 
             safeForceLoad();
         }
@@ -506,10 +515,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         @Override
         protected void onStopLoading() {
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsSentEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsReceivedEventListener(transactionAddRemoveListener);
-            transactionAddRemoveListener.removeCallbacks();
+            application.getWalletEventHub().unsubscribe(walletEventListener);
 
             super.onStopLoading();
         }
@@ -517,39 +523,21 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         @Override
         protected void onReset() {
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsSentEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsReceivedEventListener(transactionAddRemoveListener);
-            transactionAddRemoveListener.removeCallbacks();
+            application.getWalletEventHub().unsubscribe(walletEventListener);
 
             super.onReset();
         }
 
         @Override
-        public List<Transaction> loadInBackground() {
+        public List<TransactionHistory.Entry> loadInBackground() {
             org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-            final Set<Transaction> transactions = wallet.getTransactions(true);
-            final List<Transaction> filteredTransactions = new ArrayList<Transaction>(transactions.size());
-
-            for (final Transaction tx : transactions) {
-                final boolean sent = tx.getValue(wallet).signum() < 0;
-                final boolean isInternal = tx.getPurpose() == Purpose.KEY_ROTATION;
-
-                if ((direction == Direction.RECEIVED && !sent && !isInternal) || direction == null
-                        || (direction == Direction.SENT && sent && !isInternal))
-                    filteredTransactions.add((Transaction)tx);
-            }
-
-            Collections.sort(filteredTransactions, TRANSACTION_COMPARATOR);
-
-            return filteredTransactions;
+            return application.getTransactionHistory().snapshot(direction);
         }
 
-        private final ThrottlingWalletChangeListener transactionAddRemoveListener = new ThrottlingWalletChangeListener(
-                THROTTLE_MS, true, true, false) {
+        private final WalletEventHub.Listener walletEventListener = new WalletEventHub.Listener() {
             @Override
-            public void onThrottledWalletChanged() {
+            public void onWalletEvents(final int events) {
                 safeForceLoad();
             }
         };
@@ -568,27 +556,6 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
                 log.info("rejected execution: " + TransactionsLoader.this.toString());
             }
         }
-
-        private static final Comparator<Transaction> TRANSACTION_COMPARATOR = new Comparator<Transaction>() {
-            @Override
-            public int compare(final Transaction tx1, final Transaction tx2) {
-                final boolean pending1 = tx1.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-                final boolean pending2 = tx2.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-
-                if (pending1 != pending2)
-                    return pending1 ? -1 : 1;
-
-                final Date updateTime1 = tx1.getUpdateTime();
-                final long time1 = updateTime1 != null ? updateTime1.getTime() : 0;
-                final Date updateTime2 = tx2.getUpdateTime();
-                final long time2 = updateTime2 != null ? updateTime2.getTime() : 0;
-
-                if (time1 != time2)
-                    return time1 > time2 ? -1 : 1;
-
-                return tx1.getHash().compareTo(tx2.getHash());
-            }
-        };
     }
 
     @Override
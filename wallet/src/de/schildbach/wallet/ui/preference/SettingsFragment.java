@@ -112,7 +112,7 @@ public final class SettingsFragment extends PreferenceFragment implements OnPref
             @Override
             public void run() {
                 if (preference.equals(btcPrecisionPreference)) {
-                    WalletBalanceWidgetProvider.updateWidgets(activity, application.getWallet());
+                    WalletBalanceWidgetProvider.updateWidgets(activity);
                 } else if (preference.equals(trustedPeerPreference)) {
                     application.stopBlockchainService();
                     updateTrustedPeer();
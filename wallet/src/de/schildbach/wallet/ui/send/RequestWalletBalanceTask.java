@@ -21,10 +21,9 @@ import android.content.res.AssetManager;
 import android.os.Handler;
 import android.os.Looper;
 
-import com.squareup.okhttp.Call;
-import com.squareup.okhttp.HttpUrl;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.squareup.moshi.JsonDataException;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
@@ -32,20 +31,26 @@ import org.bitcoinj.core.Context;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.script.Script;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet_test.R;
@@ -60,6 +65,21 @@ public final class RequestWalletBalanceTask {
     private final Handler callbackHandler;
     private final ResultCallback resultCallback;
 
+    private static final ExplorerClient EXPLORER_CLIENT = new ExplorerClient(Constants.HTTP_CLIENT,
+            Arrays.asList(SxcInsightAPI.EXPLORER, CryptoidAPI.EXPLORER), Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("explorer-client-%d").build()));
+
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+
+    // shared by all batches, threads go away while no batch is running
+    private static final ThreadPoolExecutor REQUEST_EXECUTOR = new ThreadPoolExecutor(MAX_PARALLEL_REQUESTS,
+            MAX_PARALLEL_REQUESTS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sweep-request-%d").build());
+
+    static {
+        REQUEST_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private static final Logger log = LoggerFactory.getLogger(RequestWalletBalanceTask.class);
 
     public interface ResultCallback {
@@ -75,63 +95,81 @@ public final class RequestWalletBalanceTask {
     }
 
     public void requestWalletBalance(final AssetManager assets, final Address address) {
+        requestWalletBalance(assets, Collections.singletonList(address));
+    }
+
+    /**
+     * Requests the unspent outputs of all given addresses, with a bounded number of requests in flight. Outputs are
+     * merged into one set, so outputs that are reported more than once are only spent once.
+     */
+    public void requestWalletBalance(final AssetManager assets, final Collection<Address> addresses) {
         backgroundHandler.post(new Runnable() {
             @Override
             public void run() {
                 Context.propagate(Constants.CONTEXT);
 
-                // Use either cryptoid or be.sexcoin.info
-                List<String> urls = new ArrayList<String>(2);
-                urls.add(Constants.SXC_INSIGHT_API_URL);
-                urls.add(Constants.CRYPTOID_API_URL);
-                //urls.add(Constants.BLOCKCYPHER_API_URL);
-
-                Collections.shuffle(urls, new Random(System.nanoTime()));
-
-                HttpUrl req = null;// I hate this.
-
-                if(urls.get(0).equals(Constants.SXC_INSIGHT_API_URL))
-                    req = SxcInsightAPI.makeGetAddress(address.toString(), "utxo");
-                if(urls.get(0).equals(Constants.CRYPTOID_API_URL))
-                    req = CryptoidAPI.makeGetAddress(address.toString(), "utxo");
-
-                //log.info("trying to access {}", req.toString());
-
-                final Request.Builder request = new Request.Builder();
-                request.url(req);
-                //request.url(HttpUrl.parse(url.toString()).newBuilder().encodedQuery("unspentOnly=true&includeScript=true").build());
-
-                //log.info("trying to request wallet balance from {}", request.toString());
-                final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-
+                final Stopwatch watch = Stopwatch.createStarted();
                 try {
-                    final Response response = call.execute();
-                    if (response.isSuccessful()) {
-                        Set<UTXO> utxSet = new HashSet<>();
-                        if(urls.get(0).equals(Constants.SXC_INSIGHT_API_URL)){
-                            utxSet = SxcInsightAPI.getUTXOs(response);
-                        }else if(urls.get(0).equals(Constants.CRYPTOID_API_URL)){
-                            utxSet = CryptoidAPI.getUTXOs(response);
-                        }
-                        final Set<UTXO> utxoSet = utxSet;
-                        log.info("fetched unspent outputs from {}", req.toString());
-                        onResult(utxoSet);
-                    } else {
-                        final String responseMessage = response.message();
-                        log.info("got http error '{}: {}' from {}", response.code(), responseMessage, req.toString());
-                        onFail(R.string.error_http, response.code(), responseMessage);
-                    }
-                } catch (final JSONException x) {
-                    log.info("problem parsing json from " + req.toString(), x);
+                    final Set<UTXO> utxoSet = requestUTXOs(addresses);
+                    watch.stop();
+                    log.info("fetched {} unspent outputs of {} addresses, took {}", utxoSet.size(), addresses.size(),
+                            watch);
+                    onResult(utxoSet);
+                } catch (final ExplorerClient.HttpStatusException x) {
+                    log.info("got http error '{}: {}' when querying unspent outputs", x.code, x.responseMessage);
+                    onFail(R.string.error_http, x.code, x.responseMessage);
+                } catch (final JsonDataException x) {
+                    log.info("problem parsing json of unspent outputs", x);
                     onFail(R.string.error_parse, x.getMessage());
                 } catch (final IOException x) {
-                    log.info("problem querying unspent outputs from " + req.toString(), x);
+                    log.info("problem querying unspent outputs", x);
                     onFail(R.string.error_io, x.getMessage());
                 }
             }
         });
     }
 
+    private static Set<UTXO> requestUTXOs(final Collection<Address> addresses) throws IOException {
+        if (addresses.isEmpty())
+            return new HashSet<>();
+
+        // race all explorers, so that a sweep succeeds as soon as any of them answers
+        if (addresses.size() == 1)
+            return EXPLORER_CLIENT.raceUTXOs(addresses.iterator().next().toBase58());
+
+        // for many addresses racing would multiply the load, so fail over instead
+        final List<Future<Set<UTXO>>> futures = new ArrayList<>(addresses.size());
+        try {
+            for (final Address address : addresses) {
+                futures.add(REQUEST_EXECUTOR.submit(new Callable<Set<UTXO>>() {
+                    @Override
+                    public Set<UTXO> call() throws Exception {
+                        return EXPLORER_CLIENT.getUTXOs(address.toBase58());
+                    }
+                }));
+            }
+
+            final Set<UTXO> utxos = new HashSet<>();
+            for (final Future<Set<UTXO>> future : futures)
+                utxos.addAll(future.get());
+            return utxos;
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while requesting unspent outputs");
+        } catch (final ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            // after a failure, don't keep requesting on behalf of this batch
+            for (final Future<Set<UTXO>> future : futures)
+                future.cancel(true);
+        }
+    }
+
     protected void onResult(final Set<UTXO> utxos) {
         callbackHandler.post(new Runnable() {
             @Override
@@ -19,8 +19,15 @@ package de.schildbach.wallet.ui.send;
 
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -28,6 +35,7 @@ import java.util.TreeSet;
 import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.DumpedPrivateKey;
 import org.bitcoinj.core.ECKey;
@@ -52,6 +60,7 @@ import org.bitcoinj.wallet.WalletTransaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ComparisonChain;
 
 import de.schildbach.wallet.Configuration;
@@ -74,6 +83,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
@@ -117,6 +127,7 @@ public class SweepWalletFragment extends Fragment {
     @Nullable
     private Map<FeeCategory, Coin> fees = null;
     private Wallet walletToSweep = null;
+    private int numUtxosLeft = 0;
     private Transaction sentTransaction = null;
 
     private TextView messageView;
@@ -133,10 +144,15 @@ public class SweepWalletFragment extends Fragment {
 
     private MenuItem reloadAction;
     private MenuItem scanAction;
+    private MenuItem importKeysAction;
 
     private static final int ID_DYNAMIC_FEES_LOADER = 0;
 
     private static final int REQUEST_CODE_SCAN = 0;
+    private static final int REQUEST_CODE_IMPORT_KEYS = 1;
+
+    // a signed input spending to an uncompressed key takes up to 180 bytes, the rest is room for the output
+    private static final int MAX_INPUTS_PER_SWEEP = (Transaction.MAX_STANDARD_TX_SIZE - 1000) / 180;
 
     private enum State {
         DECODE_KEY, // ask for password
@@ -284,6 +300,7 @@ public class SweepWalletFragment extends Fragment {
         outState.putSerializable("state", state);
         if (walletToSweep != null)
             outState.putByteArray("wallet_to_sweep", WalletUtils.walletToByteArray(walletToSweep));
+        outState.putInt("num_utxos_left", numUtxosLeft);
         if (sentTransaction != null)
             outState.putSerializable("sent_transaction_hash", sentTransaction.getHash());
     }
@@ -292,6 +309,7 @@ public class SweepWalletFragment extends Fragment {
         state = (State) savedInstanceState.getSerializable("state");
         if (savedInstanceState.containsKey("wallet_to_sweep"))
             walletToSweep = WalletUtils.walletFromByteArray(savedInstanceState.getByteArray("wallet_to_sweep"));
+        numUtxosLeft = savedInstanceState.getInt("num_utxos_left");
         if (savedInstanceState.containsKey("sent_transaction_hash")) {
             sentTransaction = application.getWallet()
                     .getTransaction((Sha256Hash) savedInstanceState.getSerializable("sent_transaction_hash"));
@@ -329,6 +347,9 @@ public class SweepWalletFragment extends Fragment {
                     }
                 }.parse();
             }
+        } else if (requestCode == REQUEST_CODE_IMPORT_KEYS) {
+            if (resultCode == Activity.RESULT_OK)
+                readKeysFromFile(intent.getData());
         }
     }
 
@@ -338,6 +359,7 @@ public class SweepWalletFragment extends Fragment {
 
         reloadAction = menu.findItem(R.id.sweep_wallet_options_reload);
         scanAction = menu.findItem(R.id.sweep_wallet_options_scan);
+        importKeysAction = menu.findItem(R.id.sweep_wallet_options_import_keys);
 
         final PackageManager pm = activity.getPackageManager();
         scanAction.setVisible(pm.hasSystemFeature(PackageManager.FEATURE_CAMERA)
@@ -356,6 +378,10 @@ public class SweepWalletFragment extends Fragment {
         case R.id.sweep_wallet_options_scan:
             handleScan();
             return true;
+
+        case R.id.sweep_wallet_options_import_keys:
+            handleImportKeys();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -365,6 +391,13 @@ public class SweepWalletFragment extends Fragment {
         if (walletToSweep == null)
             return;
 
+        // outputs that didn't fit into the transaction just sent are swept in another one
+        if (state == State.SENT) {
+            sentTransaction.getConfidence().removeEventListener(sentTransactionConfidenceListener);
+            sentTransaction = null;
+            setState(State.CONFIRM_SWEEP);
+        }
+
         requestWalletBalance();
     }
 
@@ -372,6 +405,86 @@ public class SweepWalletFragment extends Fragment {
         startActivityForResult(new Intent(activity, ScanActivity.class), REQUEST_CODE_SCAN);
     }
 
+    private void handleImportKeys() {
+        final Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/plain");
+        startActivityForResult(intent, REQUEST_CODE_IMPORT_KEYS);
+    }
+
+    /**
+     * Reads unencrypted private keys from a text file, one per line. Lines that don't hold such a key are skipped.
+     */
+    private void readKeysFromFile(final Uri uri) {
+        final ContentResolver contentResolver = activity.getContentResolver();
+
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<ECKey> keys = new ArrayList<>();
+                int skipped = 0;
+                IOException exception = null;
+
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(
+                            new InputStreamReader(contentResolver.openInputStream(uri), Charsets.UTF_8));
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#"))
+                            continue;
+                        try {
+                            keys.add(DumpedPrivateKey.fromBase58(Constants.NETWORK_PARAMETERS, line).getKey());
+                        } catch (final AddressFormatException x) {
+                            skipped++;
+                        }
+                    }
+                } catch (final IOException x) {
+                    exception = x;
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (final IOException x) {
+                            // swallow
+                        }
+                    }
+                }
+
+                final int numSkipped = skipped;
+                final IOException readException = exception;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (readException != null) {
+                            log.info("problem reading keys from " + uri, readException);
+                            importKeysDialog(R.string.sweep_wallet_fragment_import_keys_failed,
+                                    readException.getMessage());
+                            return;
+                        }
+
+                        log.info("read {} keys from {}, skipped {} lines", keys.size(), uri, numSkipped);
+                        if (keys.isEmpty()) {
+                            importKeysDialog(R.string.sweep_wallet_fragment_import_keys_none);
+                            return;
+                        }
+                        if (numSkipped > 0)
+                            importKeysDialog(R.string.sweep_wallet_fragment_import_keys_skipped, numSkipped);
+
+                        askConfirmSweep(keys);
+                    }
+                });
+            }
+        });
+    }
+
+    private void importKeysDialog(final int messageResId, final Object... messageArgs) {
+        final DialogBuilder dialog = DialogBuilder.warn(activity, R.string.sweep_wallet_options_import_keys);
+        dialog.setMessage(getString(messageResId, messageArgs));
+        dialog.setNeutralButton(R.string.button_dismiss, null);
+        dialog.show();
+    }
+
     private final TransactionConfidence.Listener sentTransactionConfidenceListener = new TransactionConfidence.Listener() {
         @Override
         public void onConfidenceChanged(final TransactionConfidence confidence,
@@ -425,7 +538,7 @@ public class SweepWalletFragment extends Fragment {
 
         if (privateKeyToSweep instanceof DumpedPrivateKey) {
             final ECKey key = ((DumpedPrivateKey) privateKeyToSweep).getKey();
-            askConfirmSweep(key);
+            askConfirmSweep(Collections.singletonList(key));
         } else if (privateKeyToSweep instanceof BIP38PrivateKey) {
             badPasswordView.setVisibility(View.INVISIBLE);
 
@@ -443,7 +556,7 @@ public class SweepWalletFragment extends Fragment {
 
                         ProgressDialogFragment.dismissProgress(fragmentManager);
 
-                        askConfirmSweep(decryptedKey);
+                        askConfirmSweep(Collections.singletonList(decryptedKey));
                     }
 
                     @Override
@@ -462,11 +575,16 @@ public class SweepWalletFragment extends Fragment {
         }
     }
 
-    private void askConfirmSweep(final ECKey key) {
-        // create non-HD wallet
-        final KeyChainGroup group = new KeyChainGroup(Constants.NETWORK_PARAMETERS);
-        group.importKeys(key);
-        walletToSweep = new Wallet(Constants.NETWORK_PARAMETERS, group);
+    private void askConfirmSweep(final List<ECKey> keys) {
+        if (walletToSweep == null) {
+            // create non-HD wallet
+            final KeyChainGroup group = new KeyChainGroup(Constants.NETWORK_PARAMETERS);
+            group.importKeys(keys);
+            walletToSweep = new Wallet(Constants.NETWORK_PARAMETERS, group);
+        } else {
+            // further keys are added to the batch, so that all of them are swept in one transaction
+            walletToSweep.importKeys(keys);
+        }
 
         setState(State.CONFIRM_SWEEP);
 
@@ -481,6 +599,13 @@ public class SweepWalletFragment extends Fragment {
         }
     };
 
+    private static final Comparator<UTXO> UTXO_VALUE_COMPARATOR = new Comparator<UTXO>() {
+        @Override
+        public int compare(final UTXO lhs, final UTXO rhs) {
+            return rhs.getValue().compareTo(lhs.getValue());
+        }
+    };
+
     private static final Comparator<UTXO> UTXO_COMPARATOR = new Comparator<UTXO>() {
         @Override
         public int compare(final UTXO lhs, final UTXO rhs) {
@@ -499,11 +624,26 @@ public class SweepWalletFragment extends Fragment {
                 ProgressDialogFragment.dismissProgress(fragmentManager);
 
                 // Filter UTXOs we've already spent and sort the rest.
-                final Set<Transaction> walletTxns = application.getWallet().getTransactions(false);
-                final Set<UTXO> sortedUtxos = new TreeSet<>(UTXO_COMPARATOR);
+                final Set<TransactionOutPoint> spentOutpoints = new HashSet<>();
+                for (final Transaction tx : application.getWallet().getTransactions(false))
+                    for (final TransactionInput input : tx.getInputs())
+                        spentOutpoints.add(input.getOutpoint());
+                final List<UTXO> unspentUtxos = new ArrayList<>(utxos.size());
                 for (final UTXO utxo : utxos)
-                    if (!utxoSpentBy(walletTxns, utxo))
-                        sortedUtxos.add(utxo);
+                    if (!spentOutpoints.contains(
+                            new TransactionOutPoint(Constants.NETWORK_PARAMETERS, utxo.getIndex(), utxo.getHash())))
+                        unspentUtxos.add(utxo);
+
+                // A transaction has to stay within the standard size, so the biggest outputs go first and the rest
+                // is left for another sweep.
+                Collections.sort(unspentUtxos, UTXO_VALUE_COMPARATOR);
+                final int numUtxos = Math.min(unspentUtxos.size(), MAX_INPUTS_PER_SWEEP);
+                numUtxosLeft = unspentUtxos.size() - numUtxos;
+                if (numUtxosLeft > 0)
+                    log.info("sweeping {} unspent outputs, leaving {} for another transaction", numUtxos,
+                            numUtxosLeft);
+                final Set<UTXO> sortedUtxos = new TreeSet<>(UTXO_COMPARATOR);
+                sortedUtxos.addAll(unspentUtxos.subList(0, numUtxos));
 
                 // Fake transaction funding the wallet to sweep.
                 final Map<Sha256Hash, Transaction> fakeTxns = new HashMap<>();
@@ -532,17 +672,6 @@ public class SweepWalletFragment extends Fragment {
                 updateView();
             }
 
-            private boolean utxoSpentBy(final Set<Transaction> transactions, final UTXO utxo) {
-                for (final Transaction tx : transactions) {
-                    for (final TransactionInput input : tx.getInputs()) {
-                        final TransactionOutPoint outpoint = input.getOutpoint();
-                        if (outpoint.getHash().equals(utxo.getHash()) && outpoint.getIndex() == utxo.getIndex())
-                            return true;
-                    }
-                }
-                return false;
-            }
-
             @Override
             public void onFail(final int messageResId, final Object... messageArgs) {
                 ProgressDialogFragment.dismissProgress(fragmentManager);
@@ -561,9 +690,12 @@ public class SweepWalletFragment extends Fragment {
             }
         };
 
-        final Address address = walletToSweep.getImportedKeys().iterator().next()
-                .toAddress(Constants.NETWORK_PARAMETERS);
-        new RequestWalletBalanceTask(backgroundHandler, callback).requestWalletBalance(activity.getAssets(), address);
+        final List<ECKey> keys = walletToSweep.getImportedKeys();
+        final List<Address> addresses = new ArrayList<>(keys.size());
+        for (final ECKey key : keys)
+            addresses.add(key.toAddress(Constants.NETWORK_PARAMETERS));
+        new RequestWalletBalanceTask(backgroundHandler, callback).requestWalletBalance(activity.getAssets(),
+                addresses);
     }
 
     private void setState(final State state) {
@@ -582,7 +714,11 @@ public class SweepWalletFragment extends Fragment {
             balanceSpannable.applyMarkup(null, null);
             final SpannableStringBuilder balance = new SpannableStringBuilder(balanceSpannable);
             balance.insert(0, ": ");
-            balance.insert(0, getString(R.string.sweep_wallet_fragment_balance));
+            final int numKeys = walletToSweep.getImportedKeys().size();
+            if (numKeys > 1)
+                balance.insert(0, getString(R.string.sweep_wallet_fragment_balance_keys, numKeys));
+            else
+                balance.insert(0, getString(R.string.sweep_wallet_fragment_balance));
             balanceView.setText(balance);
         } else {
             balanceView.setVisibility(View.GONE);
@@ -594,7 +730,10 @@ public class SweepWalletFragment extends Fragment {
         } else if (state == State.DECODE_KEY && privateKeyToSweep != null) {
             messageView.setVisibility(View.VISIBLE);
             messageView.setText(R.string.sweep_wallet_fragment_encrypted);
-        } else if (privateKeyToSweep != null) {
+        } else if ((state == State.CONFIRM_SWEEP || state == State.SENT) && numUtxosLeft > 0) {
+            messageView.setVisibility(View.VISIBLE);
+            messageView.setText(getString(R.string.sweep_wallet_fragment_outputs_left, numUtxosLeft));
+        } else if (privateKeyToSweep != null || walletToSweep != null) {
             messageView.setVisibility(View.GONE);
         }
 
@@ -643,9 +782,12 @@ public class SweepWalletFragment extends Fragment {
 
         // enable actions
         if (reloadAction != null)
-            reloadAction.setEnabled(state == State.CONFIRM_SWEEP && walletToSweep != null);
+            reloadAction.setEnabled(walletToSweep != null
+                    && (state == State.CONFIRM_SWEEP || (state == State.SENT && numUtxosLeft > 0)));
         if (scanAction != null)
             scanAction.setEnabled(state == State.DECODE_KEY || state == State.CONFIRM_SWEEP);
+        if (importKeysAction != null)
+            importKeysAction.setEnabled(state == State.DECODE_KEY || state == State.CONFIRM_SWEEP);
     }
 
     private void handleDecrypt() {
@@ -0,0 +1,134 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches a value from a list of equivalent sources, in order of preference. The next source is started as soon as
+ * the previous one fails, or as a hedge if it hasn't answered within the hedge delay. The first valid result wins and
+ * all other requests are cancelled.
+ */
+public final class HedgedFetcher {
+    private final Executor executor;
+    private final long hedgeDelayMs;
+    private final long deadlineMs;
+
+    private static final Logger log = LoggerFactory.getLogger(HedgedFetcher.class);
+
+    public interface Source<T> {
+        String name();
+
+        /** @return the fetched value, or {@code null} if the source answered with nothing usable */
+        @Nullable
+        T fetch() throws Exception;
+    }
+
+    public HedgedFetcher(final Executor executor, final long hedgeDelayMs, final long deadlineMs) {
+        this.executor = executor;
+        this.hedgeDelayMs = hedgeDelayMs;
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Blocks until a source delivered a value, all sources failed or the deadline passed.
+     *
+     * @return the first value delivered, or {@code null} if there was none
+     */
+    @Nullable
+    public <T> T fetch(final List<? extends Source<T>> sources) throws InterruptedException {
+        if (sources.isEmpty())
+            return null;
+
+        final CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        final List<Future<T>> futures = new ArrayList<Future<T>>(sources.size());
+        final long deadline = System.currentTimeMillis() + deadlineMs;
+        int started = 0;
+        int finished = 0;
+
+        try {
+            futures.add(completionService.submit(callable(sources.get(started++))));
+
+            while (finished < sources.size()) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.info("deadline of {} ms passed, giving up", deadlineMs);
+                    return null;
+                }
+
+                final Future<T> future = completionService.poll(Math.min(hedgeDelayMs, remaining),
+                        TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    // hedge the slow source(s)
+                    if (started < sources.size())
+                        futures.add(completionService.submit(callable(sources.get(started++))));
+                    continue;
+                }
+
+                finished++;
+                try {
+                    final T value = future.get();
+                    if (value != null)
+                        return value;
+                } catch (final ExecutionException x) {
+                    // already logged
+                }
+
+                if (started < sources.size())
+                    futures.add(completionService.submit(callable(sources.get(started++))));
+            }
+
+            return null;
+        } finally {
+            for (final Future<T> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    private static <T> Callable<T> callable(final Source<T> source) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final long start = System.currentTimeMillis();
+                try {
+                    final T value = source.fetch();
+                    log.info("{} {} after {} ms", source.name(), value != null ? "answered" : "answered nothing",
+                            System.currentTimeMillis() - start);
+                    return value;
+                } catch (final Exception x) {
+                    log.info("{} failed after {} ms: {}", source.name(), System.currentTimeMillis() - start,
+                            x.toString());
+                    throw x;
+                }
+            }
+        };
+    }
+}
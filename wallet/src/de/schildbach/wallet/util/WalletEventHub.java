@@ -0,0 +1,182 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+
+import de.schildbach.wallet.data.TransactionHistory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Receives the wallet events once for the whole app, classifies them and hands them out to subscribers on the main
+ * thread. Events arriving within a frame are coalesced, and each subscriber is called at most once per its own
+ * throttle window, with only the kinds of events it subscribed to. Subscribing and unsubscribing must happen on the
+ * main thread.
+ */
+public final class WalletEventHub implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        WalletReorganizeEventListener, TransactionConfidenceEventListener, KeyChainEventListener {
+    /** A spendable or estimated balance may have changed. */
+    public static final int BALANCE = 1 << 0;
+    /** A transaction was added, removed, or entered or left the chain. */
+    public static final int HISTORY = 1 << 1;
+    /** Keys were added. */
+    public static final int KEYS = 1 << 2;
+    /** A confidence changed, including a transaction getting buried deeper, as long as that is still shown. */
+    public static final int CONFIDENCE = 1 << 3;
+
+    public interface Listener {
+        /** will be called back on UI thread, with the kinds of events that happened since the last call */
+        void onWalletEvents(int events);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // written from wallet event threads
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // only accessed from the main thread
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+    private static final long FRAME_MS = 16;
+
+    private static final class Subscription {
+        private final Listener listener;
+        private final int mask;
+        private final long throttleMs;
+        private int pending = 0;
+        private long lastDispatchTime = 0;
+
+        private Subscription(final Listener listener, final int mask, final long throttleMs) {
+            this.listener = listener;
+            this.mask = mask;
+            this.throttleMs = throttleMs;
+        }
+    }
+
+    public void subscribe(final Listener listener, final int mask, final long throttleMs) {
+        subscriptions.add(new Subscription(listener, mask, throttleMs));
+    }
+
+    public void unsubscribe(final Listener listener) {
+        for (int i = subscriptions.size() - 1; i >= 0; i--)
+            if (subscriptions.get(i).listener == listener)
+                subscriptions.remove(i);
+    }
+
+    private void post(final int events) {
+        int prev;
+        do {
+            prev = pending.get();
+        } while (!pending.compareAndSet(prev, prev | events));
+
+        // only the first event of a frame needs to schedule the collection
+        if (prev == 0)
+            handler.postDelayed(collectRunnable, FRAME_MS);
+    }
+
+    private final Runnable collectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int events = pending.getAndSet(0);
+            for (final Subscription subscription : subscriptions)
+                subscription.pending |= events & subscription.mask;
+
+            dispatch();
+        }
+    };
+
+    private final Runnable dispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private void dispatch() {
+        handler.removeCallbacks(dispatchRunnable);
+
+        final long now = SystemClock.uptimeMillis();
+        long nextDispatchTime = Long.MAX_VALUE;
+
+        // listeners may unsubscribe while being called
+        for (final Subscription subscription : new ArrayList<Subscription>(subscriptions)) {
+            if (subscription.pending == 0 || !subscriptions.contains(subscription))
+                continue;
+
+            final long dueTime = subscription.lastDispatchTime + subscription.throttleMs;
+            if (now >= dueTime) {
+                final int events = subscription.pending;
+                subscription.pending = 0;
+                subscription.lastDispatchTime = now;
+                subscription.listener.onWalletEvents(events);
+            } else {
+                nextDispatchTime = Math.min(nextDispatchTime, dueTime);
+            }
+        }
+
+        if (nextDispatchTime != Long.MAX_VALUE)
+            handler.postAtTime(dispatchRunnable, nextDispatchTime);
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        post(BALANCE | HISTORY);
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        post(BALANCE | HISTORY);
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        post(BALANCE | HISTORY | CONFIDENCE);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        // during sync, most of these are transactions getting buried deeper, which is only shown up to a limit; that
+        // limit is also where a coinbase matures and changes the available balance
+        final int depth = tx.getConfidence().getDepthInBlocks();
+        if (depth <= 1)
+            post(BALANCE | HISTORY | CONFIDENCE);
+        else if (depth <= TransactionHistory.maxConfirmationsShown(tx))
+            post(BALANCE | CONFIDENCE);
+    }
+
+    @Override
+    public void onKeysAdded(final List<ECKey> keys) {
+        post(KEYS);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+/**
+ * Records, de-duplicates and drains changed hashes within a fixed size.
+ */
+public class ChangedHashesTest {
+    @Test
+    public void deduplicates() {
+        final ChangedHashes changed = new ChangedHashes(4);
+        assertTrue(changed.add(hash(1)));
+        assertTrue(changed.add(hash(2)));
+        assertTrue(changed.add(hash(1)));
+
+        changed.swap();
+        assertEquals(set(hash(1), hash(2)), drain(changed));
+    }
+
+    @Test
+    public void recordsIntoOtherTableWhileDraining() {
+        final ChangedHashes changed = new ChangedHashes(4);
+        changed.add(hash(1));
+        changed.swap();
+        changed.add(hash(2));
+        assertEquals(set(hash(1)), drain(changed));
+
+        changed.swap();
+        assertEquals(set(hash(2)), drain(changed));
+
+        changed.swap();
+        assertNull(changed.poll());
+    }
+
+    @Test
+    public void swappingFreesTheSize() {
+        final ChangedHashes changed = new ChangedHashes(2);
+        for (int round = 0; round < 10; round++) {
+            assertTrue(changed.add(hash(round * 2)));
+            assertTrue(changed.add(hash(round * 2 + 1)));
+            changed.swap();
+            assertEquals(2, drain(changed).size());
+        }
+    }
+
+    @Test
+    public void refusesUntilClearedAfterOverflow() {
+        final ChangedHashes changed = new ChangedHashes(3);
+        assertTrue(changed.add(hash(1)));
+        assertTrue(changed.add(hash(2)));
+        assertTrue(changed.add(hash(3)));
+        assertTrue(changed.add(hash(3)));
+        assertFalse(changed.add(hash(4)));
+        assertFalse(changed.add(hash(1)));
+
+        // swapping alone doesn't lift the overflow, as hashes were lost
+        changed.swap();
+        assertFalse(changed.add(hash(5)));
+
+        changed.clear();
+        assertNull(changed.poll());
+        assertTrue(changed.add(hash(5)));
+        changed.swap();
+        assertEquals(set(hash(5)), drain(changed));
+    }
+
+    private static Sha256Hash hash(final int i) {
+        return Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+    }
+
+    private static Set<Sha256Hash> set(final Sha256Hash... hashes) {
+        final Set<Sha256Hash> set = new HashSet<Sha256Hash>();
+        for (final Sha256Hash hash : hashes)
+            set.add(hash);
+        return set;
+    }
+
+    private static Set<Sha256Hash> drain(final ChangedHashes changed) {
+        final Set<Sha256Hash> drained = new HashSet<Sha256Hash>();
+        for (Sha256Hash hash = changed.poll(); hash != null; hash = changed.poll())
+            assertTrue(drained.add(hash));
+        return drained;
+    }
+}
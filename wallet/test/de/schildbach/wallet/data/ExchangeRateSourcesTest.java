@@ -0,0 +1,300 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+
+import de.schildbach.wallet.data.ExchangeRateSources.BtcRates;
+import de.schildbach.wallet.data.ExchangeRatesSnapshot.SourceState;
+import de.schildbach.wallet.util.HedgedFetcher;
+
+/**
+ * Fetches from a local HTTP server standing in for the exchange rate services.
+ */
+public class ExchangeRateSourcesTest {
+    private static final String COINGECKO_TICKERS = "/coingecko/api/v3/coins/sexcoin/tickers";
+    private static final String COINGECKO_EXCHANGE_RATES = "/coingecko/api/v3/exchange_rates";
+    private static final String COINMARKETCAP = "/coinmarketcap/v1/ticker/sexcoin/";
+    private static final String BITCOINAVERAGE = "/bitcoinaverage/indices/global/ticker/short?crypto=BTC";
+
+    private LocalHttpServer server;
+    private ExecutorService executor;
+    private final Map<String, SourceState> sourceStates = new ConcurrentHashMap<String, SourceState>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void conversionFromPreferredSource() throws Exception {
+        server.respond(COINGECKO_TICKERS, 200, null, 0,
+                "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.00000123\",\"usd\":\"0.01\"}},"
+                        + "{\"converted_last\":{\"btc\":\"0.5\"}}]}");
+        server.respond(COINMARKETCAP, 200, null, 0, "[{\"price_btc\":\"0.5\"}]");
+
+        assertEquals(0.00000123, sources(1000).fetchConversion(), 0);
+        assertFalse(server.requestedPaths().contains(COINMARKETCAP));
+    }
+
+    @Test
+    public void conversionFailsOver() throws Exception {
+        server.respond(COINGECKO_TICKERS, 500, null, 0, "");
+        server.respond(COINMARKETCAP, 200, null, 0, "[{\"id\":\"sexcoin\",\"price_btc\":\"0.00000200\"}]");
+
+        assertEquals(0.000002, sources(1000).fetchConversion(), 0);
+    }
+
+    @Test
+    public void conversionHedgesSlowSource() throws Exception {
+        server.respond(COINGECKO_TICKERS, 200, null, 3000, "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.5\"}}]}");
+        server.respond(COINMARKETCAP, 200, null, 0, "[{\"price_btc\":\"0.00000200\"}]");
+
+        final long start = System.currentTimeMillis();
+        assertEquals(0.000002, sources(100).fetchConversion(), 0);
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void btcRatesFromPreferredSource() throws Exception {
+        server.respond(COINGECKO_EXCHANGE_RATES, 200, null, 0,
+                "{\"rates\":{\"btc\":{\"name\":\"Bitcoin\",\"value\":1,\"type\":\"crypto\"},"
+                        + "\"usd\":{\"name\":\"US Dollar\",\"value\":6500.5,\"type\":\"fiat\"},"
+                        + "\"eur\":{\"name\":\"Euro\",\"value\":\"5600.25\",\"type\":\"fiat\"}}}");
+
+        final BtcRates btcRates = sources(1000).fetchBtcRates();
+        assertEquals(ExchangeRateSources.COINGECKO_SOURCE, btcRates.source);
+        assertEquals(2, btcRates.rates.size());
+        assertEquals("6500.5", btcRates.rates.get("USD"));
+        assertEquals("5600.25", btcRates.rates.get("EUR"));
+    }
+
+    @Test
+    public void btcRatesFailOverWithAuthentication() throws Exception {
+        // the preferred source isn't served at all
+        server.respond(BITCOINAVERAGE, 200, null, 0,
+                "{\"BTCUSD\":{\"last\":6499,\"averages\":{\"day\":6500.12}},"
+                        + "\"BTCEUR\":{\"averages\":{\"day\":5600.5}},\"ETHUSD\":{\"averages\":{\"day\":200}}}");
+
+        final BtcRates btcRates = sources(1000).fetchBtcRates();
+        assertEquals(2, btcRates.rates.size());
+        assertEquals("6500.12", btcRates.rates.get("USD"));
+        assertEquals("5600.5", btcRates.rates.get("EUR"));
+        assertNotNull(server.requestHeaders(BITCOINAVERAGE).get("x-ba-key"));
+    }
+
+    @Test
+    public void nothingUsable() throws Exception {
+        server.respond(COINGECKO_TICKERS, 200, null, 0, "{\"tickers\":[]}");
+        server.respond(COINMARKETCAP, 200, null, 0, "[{\"price_btc\":null}]");
+
+        assertNull(sources(1000).fetchConversion());
+    }
+
+    @Test
+    public void revalidatesByETag() throws Exception {
+        server.respond(COINGECKO_TICKERS, 200, "\"v1\"", 0, "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.1\"}}]}");
+        final ExchangeRateSources sources = sources(1000);
+        assertEquals(0.1, sources.fetchConversion(), 0);
+        final SourceState state = sourceStates.get(server.url(COINGECKO_TICKERS).toString());
+        assertEquals("\"v1\"", state.etag);
+
+        // unchanged as far as the validator is concerned, so the values of the first fetch are served
+        server.respond(COINGECKO_TICKERS, 200, "\"v1\"", 0, "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.2\"}}]}");
+        Thread.sleep(10);
+        assertEquals(0.1, sources.fetchConversion(), 0);
+        assertEquals("\"v1\"", server.requestHeaders(COINGECKO_TICKERS).get("if-none-match"));
+        assertTrue(sourceStates.get(server.url(COINGECKO_TICKERS).toString()).fetchedAt > state.fetchedAt);
+
+        server.respond(COINGECKO_TICKERS, 200, "\"v2\"", 0, "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.2\"}}]}");
+        assertEquals(0.2, sources.fetchConversion(), 0);
+    }
+
+    @Test
+    public void freshValuesAreUsedAgain() throws Exception {
+        server.respond(COINGECKO_TICKERS, 200, null, 0, "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.1\"}}]}");
+        final ExchangeRateSources sources = sources(1000, 60000);
+        assertEquals(0.1, sources.fetchConversion(), 0);
+        assertEquals(1, server.requestedPaths().size());
+
+        server.respond(COINGECKO_TICKERS, 200, null, 0, "{\"tickers\":[{\"converted_last\":{\"btc\":\"0.2\"}}]}");
+        assertEquals(0.1, sources.fetchConversion(), 0);
+        assertEquals(1, server.requestedPaths().size());
+    }
+
+    private ExchangeRateSources sources(final long hedgeDelayMs) {
+        return sources(hedgeDelayMs, 0);
+    }
+
+    private ExchangeRateSources sources(final long hedgeDelayMs, final long sourceMaxAgeMs) {
+        final OkHttpClient httpClient = new OkHttpClient();
+        httpClient.setConnectTimeout(5, TimeUnit.SECONDS);
+        httpClient.setReadTimeout(5, TimeUnit.SECONDS);
+        return new ExchangeRateSources(httpClient, "test", new HedgedFetcher(executor, hedgeDelayMs, 5000),
+                sourceStates, server.url("/coingecko/"), server.url("/coinmarketcap/"),
+                server.url("/bitcoinaverage/"), sourceMaxAgeMs);
+    }
+
+    /**
+     * Just enough HTTP/1.1 for the fetches under test: one request per connection, canned responses by path and
+     * revalidation by ETag.
+     */
+    private static final class LocalHttpServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final Map<String, String[]> responses = new ConcurrentHashMap<String, String[]>();
+        private final List<String> requestedPaths = Collections.synchronizedList(new ArrayList<String>());
+        private final Map<String, Map<String, String>> requestHeaders = new ConcurrentHashMap<String, Map<String, String>>();
+
+        public LocalHttpServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "local-http-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public HttpUrl url(final String path) {
+            return HttpUrl.parse("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+        }
+
+        public void respond(final String path, final int code, final String etag, final long delayMs,
+                final String body) {
+            responses.put(path, new String[] { Integer.toString(code), etag, Long.toString(delayMs), body });
+        }
+
+        public List<String> requestedPaths() {
+            synchronized (requestedPaths) {
+                return new ArrayList<String>(requestedPaths);
+            }
+        }
+
+        public Map<String, String> requestHeaders(final String path) {
+            return requestHeaders.get(path);
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }).start();
+                } catch (final IOException x) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(final Socket socket) {
+            try {
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), Charsets.ISO_8859_1));
+                final String path = reader.readLine().split(" ")[1];
+                final Map<String, String> headers = new HashMap<String, String>();
+                for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+                    final int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+                requestedPaths.add(path);
+                requestHeaders.put(path, headers);
+
+                final String[] response = responses.get(path);
+                int code = response != null ? Integer.parseInt(response[0]) : 404;
+                final String etag = response != null ? response[1] : null;
+                String body = response != null ? response[3] : "";
+                if (response != null)
+                    Thread.sleep(Long.parseLong(response[2]));
+                if (etag != null && etag.equals(headers.get("if-none-match"))) {
+                    code = 304;
+                    body = "";
+                }
+
+                final byte[] bodyBytes = body.getBytes(Charsets.UTF_8);
+                final StringBuilder head = new StringBuilder();
+                head.append("HTTP/1.1 ").append(code).append(code == 304 ? " Not Modified" : " Whatever")
+                        .append("\r\n");
+                head.append("Content-Type: application/json\r\n");
+                head.append("Content-Length: ").append(bodyBytes.length).append("\r\n");
+                head.append("Connection: close\r\n");
+                if (etag != null)
+                    head.append("ETag: ").append(etag).append("\r\n");
+                head.append("\r\n");
+
+                final OutputStream os = socket.getOutputStream();
+                os.write(head.toString().getBytes(Charsets.ISO_8859_1));
+                os.write(bodyBytes);
+                os.flush();
+            } catch (final IOException x) {
+                // client went away, e.g. a hedged request got cancelled
+            } catch (final InterruptedException x) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.wallet.data.ExchangeRatesSnapshot.SourceState;
+
+/**
+ * Writes the exchange rates snapshot and reads it back.
+ */
+public class ExchangeRatesSnapshotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("exchange-rates", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+        rates.put("EUR", rate(Coin.COIN, Fiat.valueOf("EUR", 123456), "CoinGecko.com"));
+        rates.put("USD", rate(Coin.COIN, Fiat.valueOf("USD", 1), null));
+        rates.put("mBTC", rate(Coin.COIN, Fiat.valueOf("mBTC", 42), "CoinGecko.com"));
+        final Map<String, SourceState> sources = new TreeMap<String, SourceState>();
+        sources.put("https://api.coingecko.com/api/v3/exchange_rates", new SourceState("\"etag\"",
+                "Wed, 21 Oct 2015 07:28:00 GMT", 1500000000000L, Collections.singletonMap("USD", "6500.5")));
+        final Map<String, String> values = new TreeMap<String, String>();
+        values.put("BTC", "0.00000123");
+        values.put("X", "\u00e4\u20ac");
+        sources.put("https://api.coinmarketcap.com/v1/ticker/sexcoin/", new SourceState(null, null, 1500000001000L,
+                values));
+
+        new ExchangeRatesSnapshot(rates, 1500000002000L, 0.00000123, sources).write(file);
+        final ExchangeRatesSnapshot read = ExchangeRatesSnapshot.read(file);
+
+        assertEquals(1500000002000L, read.lastUpdated);
+        assertEquals(0.00000123, read.sxcBtcConversion, 0);
+
+        assertEquals(rates.keySet(), read.rates.keySet());
+        for (final Map.Entry<String, ExchangeRate> entry : rates.entrySet()) {
+            final ExchangeRate expected = entry.getValue();
+            final ExchangeRate actual = read.rates.get(entry.getKey());
+            assertEquals(expected.rate.coin, actual.rate.coin);
+            assertEquals(expected.rate.fiat, actual.rate.fiat);
+            assertEquals(expected.source, actual.source);
+        }
+
+        assertEquals(sources.keySet(), read.sources.keySet());
+        for (final Map.Entry<String, SourceState> entry : sources.entrySet()) {
+            final SourceState expected = entry.getValue();
+            final SourceState actual = read.sources.get(entry.getKey());
+            assertEquals(expected.etag, actual.etag);
+            assertEquals(expected.lastModified, actual.lastModified);
+            assertEquals(expected.fetchedAt, actual.fetchedAt);
+            assertEquals(expected.values, actual.values);
+        }
+    }
+
+    @Test
+    public void empty() throws Exception {
+        new ExchangeRatesSnapshot(new TreeMap<String, ExchangeRate>(), 0, -1, new TreeMap<String, SourceState>())
+                .write(file);
+        final ExchangeRatesSnapshot read = ExchangeRatesSnapshot.read(file);
+        assertEquals(0, read.rates.size());
+        assertEquals(0, read.sources.size());
+        assertEquals(-1, read.sxcBtcConversion, 0);
+    }
+
+    @Test
+    public void missing() throws Exception {
+        assertNull(ExchangeRatesSnapshot.read(file));
+    }
+
+    @Test
+    public void unknownVersionIsDiscarded() throws Exception {
+        final DataOutputStream os = new DataOutputStream(new FileOutputStream(file));
+        os.writeInt(Integer.MAX_VALUE);
+        os.close();
+
+        assertNull(ExchangeRatesSnapshot.read(file));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void truncatedIsDiscarded() throws Exception {
+        final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+        rates.put("EUR", rate(Coin.COIN, Fiat.valueOf("EUR", 123456), "CoinGecko.com"));
+        new ExchangeRatesSnapshot(rates, 1500000000000L, 0.1, new TreeMap<String, SourceState>()).write(file);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(ExchangeRatesSnapshot.read(file));
+        assertFalse(file.exists());
+    }
+
+    private static ExchangeRate rate(final Coin coin, final Fiat fiat, final String source) {
+        return new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(coin, fiat), source);
+    }
+}
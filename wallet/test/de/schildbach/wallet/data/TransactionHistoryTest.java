@@ -0,0 +1,220 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.wallet.data.TransactionHistory.Direction;
+import de.schildbach.wallet.data.TransactionHistory.Entry;
+
+/**
+ * Keeps the history sorted and partitioned while transactions come and go.
+ */
+public class TransactionHistoryTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private final Set<Sha256Hash> hidden = new HashSet<Sha256Hash>();
+    private TransactionHistory history;
+    private StoredBlock stored = new StoredBlock(PARAMS.getGenesisBlock(), PARAMS.getGenesisBlock().getWork(), 0);
+    private long time = 1500000000000L;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = new Wallet(PARAMS);
+        history = new TransactionHistory(wallet, Collections.unmodifiableSet(hidden));
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, history);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, history);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, history);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, history);
+    }
+
+    @Test
+    public void buildsSortedAndPartitioned() throws Exception {
+        final Transaction confirmed = receiveInBlock(Coin.COIN);
+        final Transaction older = receivePending(Coin.CENT);
+        final Transaction newer = receivePending(Coin.MILLICOIN);
+        final Transaction sent = send(confirmed, Coin.CENT);
+
+        // pending first, then newest first
+        assertEquals(hashes(sent, newer, older, confirmed), hashes(history.snapshot(null)));
+        assertEquals(hashes(newer, older, confirmed), hashes(history.snapshot(Direction.RECEIVED)));
+        assertEquals(hashes(sent), hashes(history.snapshot(Direction.SENT)));
+        assertTrue(history.snapshot(Direction.SENT).get(0).getValue().isNegative());
+    }
+
+    @Test
+    public void appliesChangesIncrementally() throws Exception {
+        final Transaction tx1 = receivePending(Coin.COIN);
+        final List<Entry> all1 = history.snapshot(null);
+        final List<Entry> sent1 = history.snapshot(Direction.SENT);
+        assertEquals(hashes(tx1), hashes(all1));
+
+        // nothing changed, so the very same snapshots are handed out
+        assertSame(all1, history.snapshot(null));
+        assertSame(sent1, history.snapshot(Direction.SENT));
+
+        final Transaction tx2 = receivePending(Coin.CENT);
+        final List<Entry> all2 = history.snapshot(null);
+        assertNotSame(all1, all2);
+        assertEquals(hashes(tx2, tx1), hashes(all2));
+
+        // a received transaction leaves the sent partition alone
+        assertSame(sent1, history.snapshot(Direction.SENT));
+
+        // earlier snapshots are immutable and unaffected
+        assertEquals(hashes(tx1), hashes(all1));
+    }
+
+    @Test
+    public void movesEntryWhenConfidenceChanges() throws Exception {
+        final Transaction tx1 = receivePending(Coin.COIN);
+        final Transaction tx2 = receivePending(Coin.CENT);
+        assertEquals(hashes(tx2, tx1), hashes(history.snapshot(null)));
+
+        // tx2 gets confirmed, so it's no longer sorted in front as pending
+        final StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx2, block, NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        assertEquals(hashes(tx1, tx2), hashes(history.snapshot(null)));
+    }
+
+    @Test
+    public void changesBeforeFirstSnapshot() throws Exception {
+        final Transaction tx1 = receivePending(Coin.COIN);
+        final Transaction tx2 = receivePending(Coin.CENT);
+        assertEquals(hashes(tx2, tx1), hashes(history.snapshot(null)));
+    }
+
+    @Test
+    public void invalidateRebuilds() throws Exception {
+        final Transaction tx1 = receivePending(Coin.COIN);
+        assertEquals(hashes(tx1), hashes(history.snapshot(null)));
+
+        // not announced by any event
+        wallet.removeCoinsReceivedEventListener(history);
+        wallet.removeCoinsSentEventListener(history);
+        wallet.removeTransactionConfidenceEventListener(history);
+        final Transaction tx2 = receivePending(Coin.CENT);
+
+        // noticed by the pool sizes not matching up anyway
+        assertEquals(hashes(tx2, tx1), hashes(history.snapshot(null)));
+
+        history.invalidate();
+        assertEquals(hashes(tx2, tx1), hashes(history.snapshot(null)));
+    }
+
+    @Test
+    public void removalWithoutEvent() throws Exception {
+        receivePending(Coin.COIN);
+        receivePending(Coin.CENT);
+        assertEquals(2, history.snapshot(null).size());
+
+        wallet.clearTransactions(0);
+        assertEquals(0, history.snapshot(null).size());
+    }
+
+    @Test
+    public void leavesOutHidden() throws Exception {
+        final Transaction tx1 = receivePending(Coin.COIN);
+        final Transaction tx2 = receivePending(Coin.CENT);
+        hidden.add(tx2.getHash());
+        history.invalidate();
+        assertEquals(hashes(tx1), hashes(history.snapshot(null)));
+
+        // a change of a hidden transaction doesn't make it show up
+        final StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx2, block, NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        assertEquals(hashes(tx1), hashes(history.snapshot(null)));
+
+        hidden.clear();
+        history.invalidate();
+        assertEquals(hashes(tx1, tx2), hashes(history.snapshot(null)));
+    }
+
+    private Transaction receivePending(final Coin value) throws Exception {
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, value, wallet.freshReceiveAddress());
+        tx.setUpdateTime(new Date(time += 1000));
+        wallet.receivePending(tx, null);
+        return tx;
+    }
+
+    private Transaction receiveInBlock(final Coin value) throws Exception {
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, value, wallet.freshReceiveAddress());
+        tx.setUpdateTime(new Date(time += 1000));
+        final StoredBlock block = nextBlock();
+        wallet.receiveFromBlock(tx, block, NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return tx;
+    }
+
+    private Transaction send(final Transaction from, final Coin value) throws Exception {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(from.getOutput(0));
+        tx.addOutput(value, new Wallet(PARAMS).freshReceiveAddress());
+        tx.setUpdateTime(new Date(time += 1000));
+        wallet.receivePending(tx, null);
+        return tx;
+    }
+
+    private StoredBlock nextBlock() throws Exception {
+        stored = stored.build(stored.getHeader().createNextBlock(new Wallet(PARAMS).freshReceiveAddress())
+                .cloneAsHeader());
+        return stored;
+    }
+
+    private static List<Sha256Hash> hashes(final Transaction... transactions) {
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (final Transaction tx : transactions)
+            hashes.add(tx.getHash());
+        return hashes;
+    }
+
+    private static List<Sha256Hash> hashes(final List<Entry> entries) {
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (final Entry entry : entries)
+            hashes.add(entry.getHash());
+        return hashes;
+    }
+}
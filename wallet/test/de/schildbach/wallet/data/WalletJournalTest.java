@@ -0,0 +1,262 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Journals changes of a wallet and replays them onto the wallet file they were journaled against.
+ */
+public class WalletJournalTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File dir;
+    private File walletFile;
+    private File journalFile;
+    private File rotatedFile;
+    private Wallet wallet;
+    private WalletJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+
+        dir = File.createTempFile("journal", null);
+        dir.delete();
+        dir.mkdir();
+        walletFile = new File(dir, "wallet");
+        journalFile = new File(dir, "journal");
+        rotatedFile = new File(dir, "journal.old");
+
+        wallet = new Wallet(PARAMS);
+        wallet.saveToFile(walletFile);
+        journal = new WalletJournal(wallet, walletFile, journalFile, rotatedFile);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+        for (final File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void replayPending() throws Exception {
+        final Transaction tx = journalPending(Coin.COIN);
+
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertNull(restored.getTransaction(tx.getHash()));
+        assertEquals(1, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertNotNull(restored.getTransaction(tx.getHash()));
+        assertEquals(Coin.COIN, restored.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void replayIsIdempotent() throws Exception {
+        journalPending(Coin.COIN);
+        journalBestBlocks(3);
+        journal.close();
+
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertEquals(2, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertEquals(3, restored.getLastBlockSeenHeight());
+
+        assertEquals(0, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertEquals(1, restored.getTransactions(true).size());
+        assertEquals(3, restored.getLastBlockSeenHeight());
+        assertEquals(Coin.COIN, restored.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void bestBlocksAreCoalesced() throws Exception {
+        final StoredBlock[] chain = chain(4);
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, wallet.freshReceiveAddress());
+        wallet.receiveFromBlock(tx, chain[0], NewBlockType.BEST_CHAIN, 0);
+        journal.receiveFromBlock(tx, chain[0], NewBlockType.BEST_CHAIN, 0);
+        final long journalLength = journalFile.length();
+        for (final StoredBlock block : chain) {
+            wallet.notifyNewBestBlock(block);
+            journal.notifyNewBestBlock(block);
+        }
+        assertEquals(journalLength, journalFile.length());
+        assertEquals(4, tx.getConfidence().getDepthInBlocks());
+        journal.close();
+
+        // confidences are shared per context, so the restored wallet needs its own
+        Context.propagate(new Context(PARAMS));
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertEquals(2, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertEquals(4, restored.getLastBlockSeenHeight());
+        final Transaction restoredTx = restored.getTransaction(tx.getHash());
+        assertEquals(ConfidenceType.BUILDING, restoredTx.getConfidence().getConfidenceType());
+        assertEquals(4, restoredTx.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void tornLastEntry() throws Exception {
+        final Transaction tx1 = journalPending(Coin.COIN);
+        final Transaction tx2 = journalPending(Coin.CENT);
+
+        // as if the process died while writing the last entry
+        truncate(journalFile, 3);
+
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertEquals(1, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertNotNull(restored.getTransaction(tx1.getHash()));
+        assertNull(restored.getTransaction(tx2.getHash()));
+    }
+
+    @Test
+    public void checksumMismatch() throws Exception {
+        final Transaction tx1 = journalPending(Coin.COIN);
+        final Transaction tx2 = journalPending(Coin.CENT);
+        final Transaction tx3 = journalPending(Coin.MILLICOIN);
+
+        // flip a payload byte of the second entry, replay must not apply it nor anything after it
+        final long secondEntryOffset = 1 + 4 + tx1.bitcoinSerialize().length + 4;
+        final RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            final long offset = secondEntryOffset + 1 + 4 + 10;
+            file.seek(offset);
+            final int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertEquals(1, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertNotNull(restored.getTransaction(tx1.getHash()));
+        assertNull(restored.getTransaction(tx2.getHash()));
+        assertNull(restored.getTransaction(tx3.getHash()));
+    }
+
+    @Test
+    public void rotateAndDiscard() throws Exception {
+        final Transaction tx1 = journalPending(Coin.COIN);
+
+        final int generation1 = journal.rotate();
+        assertFalse(journalFile.exists());
+        assertTrue(rotatedFile.exists());
+
+        // the snapshot of generation 1 didn't complete, so a second rotation must keep its entries
+        final Transaction tx2 = journalPending(Coin.CENT);
+        final int generation2 = journal.rotate();
+        assertTrue(generation2 > generation1);
+        assertFalse(journalFile.exists());
+
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertEquals(2, WalletJournal.replay(restored, rotatedFile, journalFile));
+        assertNotNull(restored.getTransaction(tx1.getHash()));
+        assertNotNull(restored.getTransaction(tx2.getHash()));
+
+        // a late snapshot of an earlier generation must not discard entries rotated after it
+        journal.discardRotated(generation1);
+        assertTrue(rotatedFile.exists());
+
+        journal.discardRotated(generation2);
+        assertFalse(rotatedFile.exists());
+    }
+
+    @Test
+    public void snapshotDiscardsJournal() throws Exception {
+        final Transaction tx = journalPending(Coin.COIN);
+
+        journal.snapshot();
+        assertFalse(journalFile.exists());
+        assertFalse(rotatedFile.exists());
+
+        final Wallet restored = Wallet.loadFromFile(walletFile);
+        assertNotNull(restored.getTransaction(tx.getHash()));
+        assertEquals(0, WalletJournal.replay(restored, rotatedFile, journalFile));
+    }
+
+    @Test
+    public void suspendedSnapshotIsDeferred() throws Exception {
+        final Transaction tx = journalPending(Coin.COIN);
+
+        journal.suspendSnapshots();
+        journal.snapshot();
+        assertTrue(journalFile.exists());
+        assertNull(Wallet.loadFromFile(walletFile).getTransaction(tx.getHash()));
+
+        journal.resumeSnapshots();
+        assertFalse(journalFile.exists());
+        assertNotNull(Wallet.loadFromFile(walletFile).getTransaction(tx.getHash()));
+    }
+
+    private Transaction journalPending(final Coin value) throws Exception {
+        final Address address = wallet.freshReceiveAddress();
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, value, address);
+        wallet.receivePending(tx, null);
+        assertEquals(ConfidenceType.PENDING, tx.getConfidence().getConfidenceType());
+        journal.onCoinsReceived(wallet, tx, Coin.ZERO, value);
+        return tx;
+    }
+
+    private void journalBestBlocks(final int count) throws Exception {
+        for (final StoredBlock block : chain(count))
+            journal.notifyNewBestBlock(block);
+    }
+
+    private static StoredBlock[] chain(final int count) throws Exception {
+        final Address address = new Wallet(PARAMS).freshReceiveAddress();
+        final StoredBlock[] chain = new StoredBlock[count];
+        StoredBlock stored = new StoredBlock(PARAMS.getGenesisBlock(), PARAMS.getGenesisBlock().getWork(), 0);
+        for (int i = 0; i < count; i++) {
+            final Block block = stored.getHeader().createNextBlock(address);
+            stored = stored.build(block.cloneAsHeader());
+            chain[i] = stored;
+        }
+        return chain;
+    }
+
+    private static void truncate(final File file, final int numBytes) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - numBytes);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data.explorers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.UTXO;
+import org.junit.Test;
+
+import com.squareup.moshi.JsonDataException;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+public class ExplorerAPITest {
+    @Test
+    public void cryptoidUTXOs() throws Exception {
+        final Set<UTXO> utxos = CryptoidAPI.getUTXOs(fixture("cryptoid-unspent.json"));
+        assertEquals(2, utxos.size());
+        for (final UTXO utxo : utxos) {
+            assertEquals(-1, utxo.getHeight());
+            if (utxo.getIndex() == 0)
+                assertEquals(Coin.valueOf(150000000), utxo.getValue());
+            else
+                assertEquals(Coin.valueOf(2500), utxo.getValue());
+            assertTrue(utxo.getScript().isSentToAddress());
+        }
+    }
+
+    @Test
+    public void cryptoidNoUTXOs() throws Exception {
+        assertTrue(CryptoidAPI.getUTXOs(new Buffer().writeUtf8("{\"unspent_outputs\":[]}")).isEmpty());
+        assertTrue(CryptoidAPI.getUTXOs(new Buffer().writeUtf8("{}")).isEmpty());
+    }
+
+    @Test
+    public void insightUTXOs() throws Exception {
+        final Set<UTXO> utxos = SxcInsightAPI.getUTXOs(fixture("insight-utxo.json"));
+        assertEquals(2, utxos.size());
+        for (final UTXO utxo : utxos) {
+            if (utxo.getIndex() == 0) {
+                assertEquals(Coin.valueOf(150000000), utxo.getValue());
+                assertEquals(2451017, utxo.getHeight());
+            } else {
+                assertEquals(Coin.valueOf(2500), utxo.getValue());
+                assertEquals(-1, utxo.getHeight());
+            }
+        }
+    }
+
+    @Test(expected = JsonDataException.class)
+    public void insightIncompleteUTXO() throws Exception {
+        SxcInsightAPI.getUTXOs(new Buffer().writeUtf8("[{\"vout\":0,\"satoshis\":1}]"));
+    }
+
+    private BufferedSource fixture(final String name) {
+        return Okio.buffer(Okio.source(getClass().getResourceAsStream(name)));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data.explorers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bitcoinj.core.UTXO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import okio.BufferedSource;
+
+/**
+ * Runs the client against local HTTP stand-ins for the explorers.
+ */
+public class ExplorerClientTest {
+    private static final String UTXO_1 = "{\"txid\":\"4a5e1e4baab89f3a32518a88c31bc87f618f76673e2cc77ab2127b7afdeda33b\","
+            + "\"vout\":0,\"scriptPubKey\":\"76a9145c9f4b1ea8d2a2cc1bd0e6ad0a0b5b1c7e8f3e0288ac\",\"satoshis\":1000}";
+    private static final String UTXO_2 = "{\"txid\":\"0e3e2357e806b6cdb1f70b54c3a3a17b6714ee1f0e68bebb44a74b1efd512098\","
+            + "\"vout\":3,\"scriptPubKey\":\"76a9145c9f4b1ea8d2a2cc1bd0e6ad0a0b5b1c7e8f3e0288ac\",\"satoshis\":2500}";
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fast", handler(0, 200, "[" + UTXO_1 + "," + UTXO_2 + "]"));
+        server.createContext("/slow", handler(3000, 200, "[" + UTXO_1 + "," + UTXO_2 + "]"));
+        server.createContext("/lagging", handler(100, 200, "[" + UTXO_1 + "]"));
+        server.createContext("/broken", handler(0, 500, "internal error"));
+        server.createContext("/garbage", handler(0, 200, "[{\"vout\":0}]"));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void failover() throws Exception {
+        final AbstractExplorerAPI broken = explorer("broken");
+        final ExplorerClient client = client(broken, explorer("garbage"), explorer("fast"));
+        assertEquals(2, client.getUTXOs("address").size());
+
+        // failed explorers are backed off and not asked first anymore
+        assertTrue(client.getHealth(broken).toString().startsWith("0 ok, 1 failed"));
+        client.getUTXOs("address");
+        assertTrue(client.getHealth(broken).toString().startsWith("0 ok, 1 failed"));
+    }
+
+    @Test
+    public void allFail() throws Exception {
+        try {
+            client(explorer("broken"), explorer("broken")).getUTXOs("address");
+            fail();
+        } catch (final ExplorerClient.HttpStatusException x) {
+            assertEquals(500, x.code);
+        }
+    }
+
+    @Test
+    public void raceIsFast() throws Exception {
+        final long start = System.currentTimeMillis();
+        final Set<UTXO> utxos = client(explorer("slow"), explorer("broken"), explorer("fast")).raceUTXOs("address");
+        assertEquals(2, utxos.size());
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void raceCrossValidates() throws Exception {
+        final Set<UTXO> utxos = client(explorer("fast"), explorer("lagging")).raceUTXOs("address");
+        assertEquals(1, utxos.size());
+        assertEquals(0, utxos.iterator().next().getIndex());
+    }
+
+    private ExplorerClient client(final AbstractExplorerAPI... explorers) {
+        return new ExplorerClient(new OkHttpClient(), Arrays.asList(explorers), executor);
+    }
+
+    private AbstractExplorerAPI explorer(final String name) {
+        final HttpUrl baseUrl = HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/" + name);
+        return new AbstractExplorerAPI() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public HttpUrl makeGetUTXOs(final String address) {
+                return baseUrl.newBuilder().addQueryParameter("address", address).build();
+            }
+
+            @Override
+            public Set<UTXO> getUTXOs(final BufferedSource source) throws IOException {
+                return SxcInsightAPI.getUTXOs(source);
+            }
+        };
+    }
+
+    private static HttpHandler handler(final long delayMs, final int status, final String body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (final InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+                final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, bytes.length);
+                final OutputStream os = exchange.getResponseBody();
+                os.write(bytes);
+                os.close();
+            }
+        };
+    }
+}
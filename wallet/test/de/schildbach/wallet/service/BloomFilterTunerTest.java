@@ -0,0 +1,57 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BloomFilterTunerTest {
+    private static final double TARGET = 0.001;
+    private static final long NOW = 1500000000000l;
+
+    private final BloomFilterTuner tuner = new BloomFilterTuner(null, null, TARGET);
+
+    @Test
+    public void healthyFilterIsKept() {
+        for (int i = 0; i < 100; i++)
+            assertFalse(tuner.record(1, 1000, NOW + i * BloomFilterTuner.MIN_REFRESH_INTERVAL_MS));
+    }
+
+    @Test
+    public void fewFalsePositivesAreNoise() {
+        assertFalse(tuner.record(BloomFilterTuner.MIN_FALSE_POSITIVES - 1, 100, NOW));
+    }
+
+    @Test
+    public void degradedFilterIsRefreshed() {
+        assertFalse(tuner.record(10, 1000, NOW));
+        assertTrue(tuner.record(10, 1000, NOW));
+
+        // sample starts over after a refresh
+        assertFalse(tuner.record(10, 1000, NOW));
+    }
+
+    @Test
+    public void refreshesAreRateLimited() {
+        assertTrue(tuner.record(50, 1000, NOW));
+        assertFalse(tuner.record(50, 1000, NOW + 1000));
+        assertTrue(tuner.record(0, 0, NOW + BloomFilterTuner.MIN_REFRESH_INTERVAL_MS));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.net.discovery.PeerDiscovery;
+import org.bitcoinj.net.discovery.PeerDiscoveryException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ranks local stand-in peers and discovers them in front of a fallback discovery.
+ */
+public class PeerDatabaseTest {
+    private final long now = System.currentTimeMillis();
+
+    private final InetSocketAddress fast = new InetSocketAddress("127.0.0.1", 9560);
+    private final InetSocketAddress slow = new InetSocketAddress("127.0.0.2", 9560);
+    private final InetSocketAddress flaky = new InetSocketAddress("127.0.0.3", 9560);
+    private final InetSocketAddress seed = new InetSocketAddress("127.0.0.4", 9560);
+
+    private File file;
+    private PeerDatabase database;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("peers", null);
+        file.delete();
+        database = new PeerDatabase(file);
+        executor = Executors.newCachedThreadPool();
+
+        database.recordSuccess(fast, now);
+        database.recordLatency(fast, 50);
+        database.recordThroughput(fast, 200, 1000);
+        database.recordSuccess(slow, now);
+        database.recordLatency(slow, 800);
+        database.recordThroughput(slow, 20, 1000);
+        database.recordSuccess(flaky, now);
+        database.recordFailure(flaky, now);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void bestFirst() {
+        assertEquals(Arrays.asList(fast, slow), database.getBestPeers(2, now));
+    }
+
+    @Test
+    public void failedPeersBackedOff() {
+        assertEquals(2, database.getBestPeers(10, now).size());
+        assertEquals(3, database.getBestPeers(10, now + TimeUnit.HOURS.toMillis(1)).size());
+    }
+
+    @Test
+    public void connectTimeoutFollowsLatency() {
+        assertEquals(16000, database.getConnectTimeoutMs(Arrays.asList(fast, slow), 60000));
+        assertEquals(60000, database.getConnectTimeoutMs(Arrays.asList(fast, flaky), 60000));
+    }
+
+    @Test
+    public void roundTrip() {
+        database.write(now);
+        final PeerDatabase read = PeerDatabase.read(file);
+        assertEquals(database.getBestPeers(10, now), read.getBestPeers(10, now));
+        assertEquals(800, read.get(slow).latencyMs);
+        file.delete();
+    }
+
+    @Test
+    public void learnedPeers() {
+        final InetSocketAddress learned = new InetSocketAddress("127.0.0.5", 9560);
+        database.recordLearned(learned, now - 1000, now);
+        assertEquals(Arrays.asList(learned), database.getLearnedPeers(10, now));
+        assertEquals(2, database.getBestPeers(10, now).size());
+    }
+
+    @Test
+    public void knownPeersDontWaitForFallback() throws Exception {
+        final CountDownLatch fallbackRelease = new CountDownLatch(1);
+        final PeerDiscovery discovery = database.newDiscovery(fallback(false, fallbackRelease), 2, executor);
+        final long start = System.currentTimeMillis();
+        assertEquals(Arrays.asList(fast, slow), Arrays.asList(discovery.getPeers(0, 5, TimeUnit.SECONDS)));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // if the known peers didn't work out, the fallback result that was discovered meanwhile is used as well
+        fallbackRelease.countDown();
+        final List<InetSocketAddress> peers = Arrays.asList(discovery.getPeers(0, 5, TimeUnit.SECONDS));
+        assertEquals(fast, peers.get(0));
+        assertTrue(peers.contains(seed));
+    }
+
+    @Test
+    public void knownPeersPaddedWithLearned() throws Exception {
+        final InetSocketAddress learned = new InetSocketAddress("127.0.0.5", 9560);
+        database.recordLearned(learned, now, now);
+        final PeerDiscovery discovery = database.newDiscovery(fallback(false, new CountDownLatch(1)), 5, executor);
+        assertEquals(Arrays.asList(fast, slow, learned), Arrays.asList(discovery.getPeers(0, 5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void fallbackFailureTolerated() throws Exception {
+        final PeerDiscovery discovery = database.newDiscovery(fallback(true, null), 5, executor);
+        discovery.getPeers(0, 5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(fast, slow), Arrays.asList(discovery.getPeers(0, 5, TimeUnit.SECONDS)));
+    }
+
+    @Test(expected = PeerDiscoveryException.class)
+    public void fallbackFailureWithoutKnownPeers() throws Exception {
+        new PeerDatabase(file).newDiscovery(fallback(true, null), 1, executor).getPeers(0, 5, TimeUnit.SECONDS);
+    }
+
+    private PeerDiscovery fallback(final boolean failing, @Nullable final CountDownLatch release) {
+        return new PeerDiscovery() {
+            @Override
+            public InetSocketAddress[] getPeers(final long services, final long timeoutValue,
+                    final TimeUnit timeoutUnit) throws PeerDiscoveryException {
+                if (failing)
+                    throw new PeerDiscoveryException("seeds unreachable");
+                try {
+                    if (release != null)
+                        release.await();
+                } catch (final InterruptedException x) {
+                    throw new PeerDiscoveryException(x);
+                }
+                return new InetSocketAddress[] { seed, fast };
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+    }
+}
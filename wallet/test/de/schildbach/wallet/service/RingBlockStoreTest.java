@@ -0,0 +1,326 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Opens, grows, shrinks and checks ring block stores, including ones written by {@link SPVBlockStore}.
+ */
+public class RingBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long MB = 1024 * 1024;
+
+    private File file;
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("blockstore", null);
+        file.delete();
+        address = new Wallet(PARAMS).freshReceiveAddress();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void opensSpvBlockStore() throws Exception {
+        final SPVBlockStore spvStore = new SPVBlockStore(PARAMS, file);
+        final List<StoredBlock> chain = extend(spvStore, 10);
+        spvStore.close();
+
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, RingBlockStore.HUGE_CAPACITY);
+        assertEquals(RingBlockStore.DEFAULT_CAPACITY, store.getCapacity());
+        assertEquals(last(chain), store.getChainHead());
+        for (final StoredBlock block : chain)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        extend(store, 1);
+        store.close();
+
+        // and the other way around
+        final SPVBlockStore reopened = new SPVBlockStore(PARAMS, file);
+        assertEquals(11, reopened.getChainHead().getHeight());
+        reopened.close();
+    }
+
+    @Test
+    public void growUnwrapped() throws Exception {
+        final List<StoredBlock> chain = create(10, 5);
+
+        assertTrue(RingBlockStore.resize(file, 20));
+
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, 10);
+        assertEquals(20, store.getCapacity());
+        assertEquals(last(chain), store.getChainHead());
+        assertKept(store, chain, 6);
+        chain.addAll(extend(store, 14));
+        assertKept(store, chain, 20);
+        store.close();
+    }
+
+    @Test
+    public void shrinkUnwrapped() throws Exception {
+        final List<StoredBlock> chain = create(10, 5);
+
+        assertTrue(RingBlockStore.resize(file, 4));
+
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, 10);
+        assertEquals(4, store.getCapacity());
+        assertEquals(last(chain), store.getChainHead());
+        assertKept(store, chain, 4);
+        store.close();
+    }
+
+    @Test
+    public void growWrapped() throws Exception {
+        final List<StoredBlock> chain = create(10, 15);
+
+        assertTrue(RingBlockStore.resize(file, 20));
+
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, 10);
+        assertEquals(20, store.getCapacity());
+        assertEquals(last(chain), store.getChainHead());
+        assertKept(store, chain, 10);
+        store.close();
+
+        // the copied records come first, so they are the first to be overwritten
+        final RingBlockStore extended = new RingBlockStore(PARAMS, file, 10);
+        chain.addAll(extend(extended, 11));
+        extended.close();
+        final RingBlockStore reopened = new RingBlockStore(PARAMS, file, 10);
+        assertKept(reopened, chain, 20);
+        reopened.close();
+    }
+
+    @Test
+    public void shrinkWrapped() throws Exception {
+        final List<StoredBlock> chain = create(10, 15);
+
+        assertTrue(RingBlockStore.resize(file, 5));
+
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, 10);
+        assertEquals(5, store.getCapacity());
+        assertEquals(last(chain), store.getChainHead());
+        assertKept(store, chain, 5);
+        store.close();
+    }
+
+    @Test
+    public void resizeWhileOpen() throws Exception {
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, 10);
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        chain.addAll(extend(store, 15));
+
+        store.resize(20);
+        assertEquals(20, store.getCapacity());
+        assertEquals(last(chain), store.getChainHead());
+        chain.addAll(extend(store, 10));
+        assertEquals(last(chain), store.getChainHead());
+        store.close();
+
+        try {
+            store.resize(10);
+            fail();
+        } catch (final BlockStoreException x) {
+            // expected
+        }
+
+        final RingBlockStore reopened = new RingBlockStore(PARAMS, file, 10);
+        assertEquals(20, reopened.getCapacity());
+        assertEquals(last(chain), reopened.getChainHead());
+        assertKept(reopened, chain, 20);
+        reopened.close();
+    }
+
+    @Test
+    public void reorgToOlderHead() throws Exception {
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, 10);
+        final List<StoredBlock> chain = extend(store, 6);
+        final StoredBlock olderHead = chain.get(2);
+        store.setChainHead(olderHead);
+        store.close();
+
+        // the head isn't the newest record, but it's still there
+        assertNull(RingBlockStore.verify(file));
+        final RingBlockStore reopened = new RingBlockStore(PARAMS, file, 10);
+        assertEquals(olderHead, reopened.getChainHead());
+        reopened.close();
+
+        // the head wouldn't survive shrinking to the newest three records
+        assertFalse(RingBlockStore.resize(file, 3));
+        assertNull(RingBlockStore.verify(file));
+        final RingBlockStore unchanged = new RingBlockStore(PARAMS, file, 3);
+        assertEquals(10, unchanged.getCapacity());
+        assertEquals(olderHead, unchanged.getChainHead());
+        unchanged.close();
+    }
+
+    @Test
+    public void rejectsBadMagic() throws Exception {
+        create(10, 5);
+        patch(0, new byte[] { 'X' });
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsBadCursor() throws Exception {
+        create(10, 5);
+        patch(4, new byte[] { 0, 0, 0, 1 });
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsBadSize() throws Exception {
+        create(10, 5);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsMissingChainHead() throws Exception {
+        create(10, 5);
+        final byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) 0x55);
+        patch(8, hash);
+        assertRejected();
+    }
+
+    @Test
+    public void capacityHysteresis() {
+        // a new store just goes by the thresholds
+        assertEquals(RingBlockStore.DEFAULT_CAPACITY, RingBlockStore.capacityFor(256, false, 63 * MB));
+        assertEquals(RingBlockStore.LARGE_CAPACITY, RingBlockStore.capacityFor(256, false, 65 * MB));
+        assertEquals(RingBlockStore.HUGE_CAPACITY, RingBlockStore.capacityFor(256, false, 513 * MB));
+        assertEquals(RingBlockStore.DEFAULT_CAPACITY, RingBlockStore.capacityFor(256, true, 513 * MB));
+
+        // shrinking happens right below a threshold
+        assertEquals(RingBlockStore.LARGE_CAPACITY,
+                RingBlockStore.capacityFor(256, false, 511 * MB, RingBlockStore.HUGE_CAPACITY));
+        assertEquals(RingBlockStore.DEFAULT_CAPACITY,
+                RingBlockStore.capacityFor(256, false, 63 * MB, RingBlockStore.HUGE_CAPACITY));
+
+        // growing needs twice the threshold
+        assertEquals(RingBlockStore.LARGE_CAPACITY,
+                RingBlockStore.capacityFor(256, false, 513 * MB, RingBlockStore.LARGE_CAPACITY));
+        assertEquals(RingBlockStore.HUGE_CAPACITY,
+                RingBlockStore.capacityFor(256, false, 1025 * MB, RingBlockStore.LARGE_CAPACITY));
+        assertEquals(RingBlockStore.DEFAULT_CAPACITY,
+                RingBlockStore.capacityFor(256, false, 127 * MB, RingBlockStore.DEFAULT_CAPACITY));
+        assertEquals(RingBlockStore.LARGE_CAPACITY,
+                RingBlockStore.capacityFor(256, false, 129 * MB, RingBlockStore.DEFAULT_CAPACITY));
+
+        // odd sizes, e.g. from an earlier version, stay as they are while within the band
+        assertEquals(7000, RingBlockStore.capacityFor(256, false, 100 * MB, 7000));
+    }
+
+    private List<StoredBlock> create(final int capacity, final int numBlocks) throws Exception {
+        final RingBlockStore store = new RingBlockStore(PARAMS, file, capacity);
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        chain.addAll(extend(store, numBlocks));
+        store.close();
+        return chain;
+    }
+
+    private List<StoredBlock> extend(final BlockStore store, final int numBlocks) throws Exception {
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock stored = store.getChainHead();
+        for (int i = 0; i < numBlocks; i++) {
+            stored = stored.build(stored.getHeader().createNextBlock(address).cloneAsHeader());
+            store.put(stored);
+            store.setChainHead(stored);
+            blocks.add(stored);
+        }
+        return blocks;
+    }
+
+    /**
+     * Asserts that exactly the newest {@code numKept} blocks of the chain are in the store. Only meaningful for a
+     * freshly opened store, as blocks that were put or looked up are served from memory even after being overwritten.
+     */
+    private static void assertKept(final RingBlockStore store, final List<StoredBlock> chain, final int numKept)
+            throws Exception {
+        for (int i = 0; i < chain.size(); i++) {
+            final StoredBlock block = chain.get(i);
+            final StoredBlock stored = store.get(block.getHeader().getHash());
+            if (i >= chain.size() - numKept)
+                assertEquals(block, stored);
+            else
+                assertNull(stored);
+        }
+    }
+
+    private void assertRejected() throws Exception {
+        assertNotNull(RingBlockStore.verify(file));
+        assertFalse(RingBlockStore.resize(file, 20));
+        try {
+            new RingBlockStore(PARAMS, file, 10).close();
+            fail();
+        } catch (final BlockStoreException x) {
+            // expected
+        }
+    }
+
+    private void patch(final long offset, final byte[] bytes) throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static StoredBlock last(final List<StoredBlock> chain) {
+        return chain.get(chain.size() - 1);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HedgedFetcherTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void primaryAnswers() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 1000, 5000);
+        assertEquals("a", fetcher.fetch(Arrays.asList(source("a", 0, "a"), source("b", 0, "b"))));
+    }
+
+    @Test
+    public void failoverOnError() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 1000, 5000);
+        final long start = System.currentTimeMillis();
+        assertEquals("b", fetcher.fetch(Arrays.asList(failingSource("a"), source("b", 0, "b"))));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void failoverOnNothing() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 1000, 5000);
+        assertEquals("b", fetcher.fetch(Arrays.asList(source("a", 0, null), source("b", 0, "b"))));
+    }
+
+    @Test
+    public void hedgeSlowSource() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 100, 5000);
+        final long start = System.currentTimeMillis();
+        assertEquals("b", fetcher.fetch(Arrays.asList(source("a", 3000, "a"), source("b", 0, "b"))));
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void deadline() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 100, 300);
+        assertNull(fetcher.fetch(Arrays.asList(source("a", 3000, "a"), source("b", 3000, "b"))));
+    }
+
+    @Test
+    public void allFail() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 1000, 5000);
+        assertNull(fetcher.fetch(Arrays.asList(failingSource("a"), failingSource("b"))));
+    }
+
+    @Test
+    public void noSources() throws Exception {
+        final HedgedFetcher fetcher = new HedgedFetcher(executor, 1000, 5000);
+        assertNull(fetcher.fetch(Collections.<HedgedFetcher.Source<String>> emptyList()));
+    }
+
+    private static HedgedFetcher.Source<String> source(final String name, final long delayMs, final String value) {
+        return new HedgedFetcher.Source<String>() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public String fetch() throws Exception {
+                Thread.sleep(delayMs);
+                return value;
+            }
+        };
+    }
+
+    private static HedgedFetcher.Source<String> failingSource(final String name) {
+        return new HedgedFetcher.Source<String>() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public String fetch() throws Exception {
+                throw new IOException("failed");
+            }
+        };
+    }
+}